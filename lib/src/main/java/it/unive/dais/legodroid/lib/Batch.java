@@ -0,0 +1,222 @@
+package it.unive.dais.legodroid.lib;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Future;
+
+import androidx.annotation.NonNull;
+import it.unive.dais.legodroid.lib.comm.AsyncChannel;
+import it.unive.dais.legodroid.lib.comm.Bytecode;
+import it.unive.dais.legodroid.lib.comm.Reply;
+import it.unive.dais.legodroid.lib.util.Promise;
+
+/**
+ * This class represents a group of operations that are sent together to the EV3 brick as one single direct command, hence costing one round trip.
+ * Instances of this class cannot be created by calling a constructor: they are passed as argument to the callback given to {@link EV3.Api#batch(it.unive.dais.legodroid.lib.util.ThrowingConsumer)}.
+ * While the callback runs, every operation performed on the same thread through the {@link EV3.Api} object - including sensor reads and motor commands of plugs - is
+ * appended to the batch instead of being sent: global offsets for the results are assigned automatically and the futures returned by reads are all completed from the same {@link Reply}.
+ * <p>
+ * The batch is sent when the callback returns, therefore futures must not be waited for within the callback itself.
+ * The batch as a whole is sent with the highest {@link AsyncChannel.Priority} among the operations it contains.
+ */
+public class Batch {
+    @NonNull
+    private final EV3.Api api;
+    @NonNull
+    private final Bytecode bc = new Bytecode();
+    @NonNull
+    private final List<Slice> slices = new ArrayList<>();
+    @NonNull
+    private final List<Runnable> dropHooks = new ArrayList<>();
+    private int reservation = 0;
+    private int ops = 0;
+    @NonNull
+    private AsyncChannel.Priority priority = AsyncChannel.Priority.TELEMETRY;
+
+    // a portion of the global buffer bound to the future reply of one operation
+    private static final class Slice {
+        final int offset, length;
+        @NonNull
+        final Promise<Reply> reply = new Promise<>();
+
+        Slice(int offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    Batch(@NonNull EV3.Api api) {
+        this.api = api;
+    }
+
+    /**
+     * Append a command with reply to the batch.
+     *
+     * @param reservation global reservation for the result in bytes.
+     * @param bc          object of type {@link Bytecode} representing the command; its global indices are relative to its own reservation and are shifted automatically.
+     * @return a {@link Promise} object hosting the portion of the {@link Reply} of the batch belonging to this command, which the caller owns and should release once decoded, see {@link Reply#release()}.
+     * @throws IOException              thrown when communication errors occur.
+     * @throws IllegalArgumentException thrown when a shifted global index exceeds {@link Bytecode#MAX_GLOBAL_INDEX}, or when the command contains jumps and is not the first one with a reply.
+     */
+    @NonNull
+    public Promise<Reply> send(int reservation, @NonNull Bytecode bc) throws IOException {
+        return send(reservation, bc, AsyncChannel.Priority.CONTROL);
+    }
+
+    /**
+     * Append a command with reply and the given priority class to the batch.
+     *
+     * @param reservation global reservation for the result in bytes.
+     * @param bc          object of type {@link Bytecode} representing the command; its global indices are relative to its own reservation and are shifted automatically.
+     * @param priority    the priority class of the command.
+     * @return a {@link Promise} object hosting the portion of the {@link Reply} of the batch belonging to this command, which the caller owns and should release once decoded, see {@link Reply#release()}.
+     * @throws IOException              thrown when communication errors occur.
+     * @throws IllegalArgumentException thrown when a shifted global index exceeds {@link Bytecode#MAX_GLOBAL_INDEX}, or when the command contains jumps and is not the first one with a reply.
+     */
+    @NonNull
+    public Promise<Reply> send(int reservation, @NonNull Bytecode bc, @NonNull AsyncChannel.Priority priority) throws IOException {
+        raise(priority);
+        this.bc.append(bc, this.reservation);
+        Slice s = new Slice(this.reservation, reservation);
+        this.reservation += reservation;
+        slices.add(s);
+        ++ops;
+        return s.reply;
+    }
+
+    /**
+     * Append a command with no reply to the batch.
+     *
+     * @param bc object of type {@link Bytecode} representing the command.
+     * @throws IOException thrown when communication errors occur.
+     */
+    public void sendNoReply(@NonNull Bytecode bc) throws IOException {
+        sendNoReply(bc, AsyncChannel.Priority.CONTROL);
+    }
+
+    /**
+     * Append a command with no reply and the given priority class to the batch.
+     *
+     * @param bc       object of type {@link Bytecode} representing the command.
+     * @param priority the priority class of the command.
+     * @throws IOException thrown when communication errors occur.
+     */
+    public void sendNoReply(@NonNull Bytecode bc, @NonNull AsyncChannel.Priority priority) throws IOException {
+        raise(priority);
+        this.bc.append(bc);
+        ++ops;
+    }
+
+    // run the given hook if the batch turns out not to have run, e.g. because it failed or its scope has been cancelled
+    void onDropped(@NonNull Runnable hook) {
+        dropHooks.add(hook);
+    }
+
+    // lower ordinals are more urgent
+    private void raise(@NonNull AsyncChannel.Priority p) {
+        if (p.ordinal() < priority.ordinal())
+            priority = p;
+    }
+
+    /**
+     * Append a READY_SI read to the batch.
+     * This is the same as calling {@link EV3.Api#getSiValue(byte, int, int, int)} from within the batch callback.
+     *
+     * @param port   port number.
+     * @param type   type constant as defined in {@link it.unive.dais.legodroid.lib.comm.Const}.
+     * @param mode   mode constant as defined in {@link it.unive.dais.legodroid.lib.comm.Const}.
+     * @param nvalue number of values the command expects to return in the result array.
+     * @return a future object containing an array of 32-bit floats whose length is equal to parameter {@code nvalues}.
+     * @throws IOException thrown when communication errors occur.
+     */
+    @NonNull
+    public Future<float[]> getSiValue(byte port, int type, int mode, int nvalue) throws IOException {
+        return api.getSiValue(port, type, mode, nvalue);
+    }
+
+    /**
+     * Append a READY_PCT read to the batch.
+     * This is the same as calling {@link EV3.Api#getPercentValue(byte, int, int, int)} from within the batch callback.
+     *
+     * @param port   port number.
+     * @param type   type constant as defined in {@link it.unive.dais.legodroid.lib.comm.Const}.
+     * @param mode   mode constant as defined in {@link it.unive.dais.legodroid.lib.comm.Const}.
+     * @param nvalue number of values the command expects to return in the result array.
+     * @return a future object containing an array of 16-bit integers whose length is equal to parameter {@code nvalues}.
+     * @throws IOException thrown when communication errors occur.
+     */
+    @NonNull
+    public Future<short[]> getPercentValue(byte port, int type, int mode, int nvalue) throws IOException {
+        return api.getPercentValue(port, type, mode, nvalue);
+    }
+
+    /**
+     * Append a READY_SI read decoding into the given array to the batch.
+     * This is the same as calling {@link EV3.Api#getSiValue(byte, int, int, float[])} from within the batch callback.
+     *
+     * @param port port number.
+     * @param type type constant as defined in {@link it.unive.dais.legodroid.lib.comm.Const}.
+     * @param mode mode constant as defined in {@link it.unive.dais.legodroid.lib.comm.Const}.
+     * @param dst  the destination array, whose length is the number of values.
+     * @return a promise completed with the destination array once filled.
+     * @throws IOException thrown when communication errors occur.
+     */
+    @NonNull
+    public Promise<float[]> getSiValue(byte port, int type, int mode, @NonNull float[] dst) throws IOException {
+        return api.getSiValue(port, type, mode, dst);
+    }
+
+    /**
+     * Append a READY_PCT read decoding into the given array to the batch.
+     * This is the same as calling {@link EV3.Api#getPercentValue(byte, int, int, short[])} from within the batch callback.
+     *
+     * @param port port number.
+     * @param type type constant as defined in {@link it.unive.dais.legodroid.lib.comm.Const}.
+     * @param mode mode constant as defined in {@link it.unive.dais.legodroid.lib.comm.Const}.
+     * @param dst  the destination array, whose length is the number of values.
+     * @return a promise completed with the destination array once filled.
+     * @throws IOException thrown when communication errors occur.
+     */
+    @NonNull
+    public Promise<short[]> getPercentValue(byte port, int type, int mode, @NonNull short[] dst) throws IOException {
+        return api.getPercentValue(port, type, mode, dst);
+    }
+
+    // send the batch as one command and bind the reply of the batch to the slices; batches with drop hooks expect a reply even when they have no slice, for knowing whether they ran.
+    // Each slice retains the buffer on its own, hence the reply returned is owned by the caller of EV3.Api.batch and releasing it does not affect the slices
+    @NonNull
+    Promise<Reply> commit() throws IOException {
+        if (slices.isEmpty() && dropHooks.isEmpty()) {
+            if (ops > 0)
+                api.ev3.channel.sendNoReply(bc, priority);
+            return Promise.completed(null);
+        }
+        Promise<Reply> r = api.ev3.channel.send(reservation, bc, priority);
+        r.onComplete(p -> {
+            Reply reply = p.getNow(null);
+            if (reply == null)
+                for (Runnable h : dropHooks)
+                    h.run();
+            for (Slice s : slices) {
+                if (reply != null) {
+                    // a slice whose promise has been cancelled meanwhile is released at once
+                    Reply x = reply.slice(s.offset, s.length);
+                    if (!s.reply.complete(x))
+                        x.release();
+                } else
+                    s.reply.fail(Objects.requireNonNull(p.getFailure()));
+            }
+        });
+        return r;
+    }
+
+    // fail all the slices when the batch could not be sent
+    void abort(@NonNull Throwable e) {
+        for (Slice s : slices)
+            s.reply.fail(e);
+        for (Runnable h : dropHooks)
+            h.run();
+    }
+}
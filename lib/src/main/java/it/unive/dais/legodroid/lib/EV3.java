@@ -3,28 +3,36 @@ package it.unive.dais.legodroid.lib;
 import android.annotation.SuppressLint;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.Arrays;
+import java.util.Objects;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import it.unive.dais.legodroid.lib.comm.AsyncChannel;
 import it.unive.dais.legodroid.lib.comm.Bytecode;
 import it.unive.dais.legodroid.lib.comm.Channel;
 import it.unive.dais.legodroid.lib.comm.Const;
 import it.unive.dais.legodroid.lib.comm.Reply;
+import it.unive.dais.legodroid.lib.comm.RttEstimator;
+import it.unive.dais.legodroid.lib.comm.Template;
 import it.unive.dais.legodroid.lib.plugs.GyroSensor;
 import it.unive.dais.legodroid.lib.plugs.LightSensor;
 import it.unive.dais.legodroid.lib.plugs.TachoMotor;
 import it.unive.dais.legodroid.lib.plugs.TouchSensor;
 import it.unive.dais.legodroid.lib.plugs.UltrasonicSensor;
 import it.unive.dais.legodroid.lib.util.Consumer;
+import it.unive.dais.legodroid.lib.util.FloatConsumer;
 import it.unive.dais.legodroid.lib.util.Function;
+import it.unive.dais.legodroid.lib.util.Promise;
+import it.unive.dais.legodroid.lib.util.ShortConsumer;
+import it.unive.dais.legodroid.lib.util.ThrowingConsumer;
 
 /**
  * Specialized EV3 class with default Api.
@@ -266,37 +274,248 @@ public class EV3 extends GenEV3<EV3.Api> {
          * @throws IOException thown when communication errors occur.
          */
         public void soundTone(int volume, int freq, int duration) throws IOException {
-            Bytecode bc = new Bytecode();
+            Bytecode bc = Bytecode.obtain();
             bc.addOpCode(Const.SOUND_CONTROL);
             bc.addOpCode(Const.SOUND_TONE);
-            bc.addParameter((byte) volume);
-            bc.addParameter((short) freq);
-            bc.addParameter((short) duration);
-            ev3.channel.sendNoReply(bc);
+            bc.addConstant((byte) volume);
+            bc.addConstant((short) freq);
+            bc.addConstant((short) duration);
+            sendNoReply(bc);
+            bc.recycle();
         }
 
         // mid level API
         //
 
-        private final Executor executor = Executors.newSingleThreadExecutor();
+        @Nullable
+        private ExecutorService executor;
+        private final ThreadLocal<Batch> batch = new ThreadLocal<>();
+        // reads in flight by slot, see readSlot(long): reads whose slot is taken by another read are not shared
+        @NonNull
+        private final AtomicReferenceArray<SharedRead> reads = new AtomicReferenceArray<>(READ_SLOTS);
+        // last value sent by output key, or NO_SETPOINT; values are ints, hence they are never mistaken for it
+        @NonNull
+        private final AtomicLongArray outputs = newOutputs();
+        @NonNull
+        private final Object[] outputLocks = newOutputLocks();
+        @NonNull
+        private final Runnable[] forgetters = newForgetters();
+
+        /**
+         * Settings of output ports whose last value sent is remembered by {@link #sendSetpoint(OutputPort, OutputSetting, int, Bytecode)}.
+         */
+        public enum OutputSetting {
+            /**
+             * Power or speed setpoint: the two are kept together because setting either one switches the regulation mode of the motor.
+             */
+            DRIVE,
+            /**
+             * Polarity of the motor.
+             */
+            POLARITY,
+            /**
+             * Type of the motor.
+             */
+            TYPE
+        }
+
+        private static final int OUTPUT_SETTINGS = OutputSetting.values().length;
+        private static final int OUTPUT_KEYS = OutputPort.values().length * OUTPUT_SETTINGS;
+        private static final long NO_SETPOINT = Long.MIN_VALUE;
+        private static final int READ_SLOTS = 64;   // a power of 2, see readSlot(long)
+
+        @NonNull
+        private static AtomicLongArray newOutputs() {
+            AtomicLongArray r = new AtomicLongArray(OUTPUT_KEYS);
+            for (int i = 0; i < OUTPUT_KEYS; ++i)
+                r.set(i, NO_SETPOINT);
+            return r;
+        }
+
+        @NonNull
+        private static Object[] newOutputLocks() {
+            Object[] r = new Object[OUTPUT_KEYS];
+            for (int i = 0; i < r.length; ++i)
+                r[i] = new Object();
+            return r;
+        }
+
+        // drop hooks are allocated once per output key rather than once per setpoint, hence a dropped command forgets whatever value is remembered by then:
+        // forgetting a value that did go out costs a redundant command at worst
+        @NonNull
+        private Runnable[] newForgetters() {
+            Runnable[] r = new Runnable[OUTPUT_KEYS];
+            for (int i = 0; i < r.length; ++i) {
+                final int key = i;
+                r[i] = () -> outputs.set(key, NO_SETPOINT);
+            }
+            return r;
+        }
+
+        // precompiled opInput_Device reads: port, type, mode and number of values are the slots
+        private static final Template READ_SI = readTemplate(Const.READY_SI);
+        private static final Template READ_PCT = readTemplate(Const.READY_PCT);
 
         @NonNull
-        private Bytecode prefaceGetValue(byte ready, byte port, int type, int mode, int nvalue) throws IOException {
-            Bytecode r = new Bytecode();
-            r.addOpCode(Const.INPUT_DEVICE);
-            r.addOpCode(ready);
-            r.addParameter(Const.LAYER_MASTER);
-            r.addParameter(port);
-            r.addParameter((byte) type);
-            r.addParameter((byte) mode);
-            r.addParameter((byte) nvalue);
-            r.addGlobalIndex((byte) 0x00);
+        private static Template readTemplate(byte ready) {
+            return new Template.Builder()
+                    .addOpCode(Const.INPUT_DEVICE)
+                    .addOpCode(ready)
+                    .addConstant(Const.LAYER_MASTER)
+                    .addByteSlot()
+                    .addByteSlot()
+                    .addByteSlot()
+                    .addByteSlot()
+                    .addGlobalIndex(0)
+                    .build();
+        }
+
+        @NonNull
+        private Bytecode prefaceGetValue(byte ready, byte port, int type, int mode, int nvalue) {
+            Template t = ready == Const.READY_PCT ? READ_PCT : READ_SI;
+            Bytecode r = t.obtain(port, type);
+            t.patch(r, 2, mode);
+            t.patch(r, 3, nvalue);
             return r;
         }
 
+        @NonNull
+        private Promise<Reply> sendRead(byte ready, byte port, int type, int mode, int nvalue, int reservation) throws IOException {
+            Bytecode bc = prefaceGetValue(ready, port, type, mode, nvalue);
+            try {
+                return send(reservation, bc, AsyncChannel.Priority.TELEMETRY);
+            } finally {
+                bc.recycle();
+            }
+        }
+
+        // a read in flight shared by the callers asking for it: the reply is released once all of them have decoded it, and the read is cancelled once all of them have cancelled it.
+        // It is also the continuation of the reply of the channel, which frees its slot before completing
+        private final class SharedRead implements Consumer<Promise<Reply>> {
+            final long key;
+            final int slot;
+            @NonNull
+            final Promise<Reply> reply = new Promise<>();
+            @NonNull
+            final AtomicInteger users = new AtomicInteger(1);   // the caller sending the read counts as the first user
+            @Nullable
+            volatile Promise<Reply> sent = null;                // the reply of the channel, set once the read has been sent
+
+            SharedRead(long key, int slot) {
+                this.key = key;
+                this.slot = slot;
+            }
+
+            // fails when the reply has already been released
+            boolean join() {
+                for (int n; (n = users.get()) > 0; )
+                    if (users.compareAndSet(n, n + 1))
+                        return true;
+                return false;
+            }
+
+            // the last user leaving releases the reply, or cancels the read if it is still pending
+            void leave() {
+                if (users.decrementAndGet() == 0) {
+                    Reply r = reply.getNow(null);
+                    if (r != null)
+                        r.release();
+                    else {
+                        Promise<Reply> p = sent;
+                        if (p != null)
+                            p.cancel(true);
+                    }
+                }
+            }
+
+            // releasing is idempotent, hence a reply arriving while the last user leaves is released either here or by leave()
+            @Override
+            public void call(@NonNull Promise<Reply> x) {
+                reads.compareAndSet(slot, this, null);
+                Throwable e = x.getFailure();
+                if (e != null)
+                    reply.fail(e);
+                else {
+                    Reply r = Objects.requireNonNull(x.getNow(null));
+                    reply.complete(r);
+                    if (users.get() == 0)
+                        r.release();
+                }
+            }
+        }
+
+        // Fibonacci hashing of the key of a read into its slot
+        private static int readSlot(long key) {
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - Integer.numberOfTrailingZeros(READ_SLOTS)));
+        }
+
+        // decode the reply to a read, which is released afterwards; reads with the same key that are already in flight share the same pending reply:
+        // the entry is removed as soon as the reply arrives, so any read issued afterwards is sent anew and never sees a stale value.
+        // Keys are primitive and slots preallocated, hence sharing allocates nothing by itself; what each read still allocates is the snapshot of the command bytes,
+        // the command queued with its queue node and pending reply, the shared read when sent, and for each user its promise and the two continuations linking it to the shared read
+        @NonNull
+        private <T> Promise<T> read(byte ready, byte port, int type, int mode, int nvalue, int reservation, @NonNull Function<Reply, T> decode) throws IOException {
+            if (batch.get() != null) {
+                return sendRead(ready, port, type, mode, nvalue, reservation).thenApply(r -> {
+                    try {
+                        return decode.apply(r);
+                    } finally {
+                        r.release();
+                    }
+                });
+            }
+            final long key = ((ready & 0xFFL) << 48) | ((port & 0xFFL) << 40) | ((type & 0xFFL) << 32) | ((mode & 0xFFL) << 24) | (nvalue & 0xFFFFFFL);
+            final int slot = readSlot(key);
+            SharedRead s;
+            while (true) {
+                s = reads.get(slot);
+                if (s != null && s.key == key) {
+                    if (s.join())
+                        break;
+                    reads.compareAndSet(slot, s, null);
+                    continue;
+                }
+                // a slot taken by another read is left alone: this read is sent on its own
+                final SharedRead n = new SharedRead(key, slot);
+                if (s == null && !reads.compareAndSet(slot, null, n))
+                    continue;
+                try {
+                    Promise<Reply> p = sendRead(ready, port, type, mode, nvalue, reservation);
+                    n.sent = p;
+                    p.onComplete(n);
+                } catch (IOException | RuntimeException e) {
+                    reads.compareAndSet(slot, n, null);
+                    n.reply.fail(e);
+                    throw e;
+                }
+                s = n;
+                break;
+            }
+            // each user gets a promise of its own, which leaves the shared read once done: cancelling it cancels the read only when no other user is left
+            final SharedRead shared = s;
+            final Promise<T> d = new Promise<>();
+            d.onComplete(x -> shared.leave());
+            shared.reply.onComplete(x -> {
+                if (d.isDone())
+                    return;
+                Throwable e = x.getFailure();
+                if (e != null)
+                    d.fail(e);
+                else {
+                    try {
+                        d.complete(decode.apply(x.getNow(null)));
+                    } catch (Throwable t) {
+                        d.fail(t);
+                    }
+                }
+            });
+            return d;
+        }
+
         /**
          * Low level method for sending direct commands to the GenEV3 brick.
          * This method sends the opInput_Device command READY_SI according to the official GenEV3 Developer Kit Documentation.
+         * Concurrent calls with the same arguments while a previous one is still in flight share its reply instead of sending the command again.
          *
          * @param port   port number.
          * @param type   type constant as defined in {@link Const}, e.g. {@link Const#EV3_TOUCH} or {@link Const#EV3_COLOR}.
@@ -307,23 +526,57 @@ public class EV3 extends GenEV3<EV3.Api> {
          * @see <a href="https://le-www-live-s.legocdn.com/sc/media/files/ev3-developer-kit/lego%20mindstorms%20ev3%20firmware%20developer%20kit-7be073548547d99f7df59ddfd57c0088.pdf?la=en-us">LEGO Mindstorms GenEV3 Firmware Developer Kit</a>
          */
         @NonNull
-        public Future<float[]> getSiValue(byte port, int type, int mode, int nvalue) throws IOException {
-            Bytecode bc = prefaceGetValue(Const.READY_SI, port, type, mode, nvalue);
-            Future<Reply> r = ev3.channel.send(4 * nvalue, bc);
-            return execAsync(() -> {
-                Reply reply = r.get();
-                float[] result = new float[nvalue];
-                for (int i = 0; i < nvalue; i++) {
-                    byte[] bData = Arrays.copyOfRange(reply.getData(), 4 * i, 4 * i + 4);
-                    result[i] = ByteBuffer.wrap(bData).order(ByteOrder.LITTLE_ENDIAN).getFloat();
-                }
-                return result;
+        public Promise<float[]> getSiValue(byte port, int type, int mode, int nvalue) throws IOException {
+            return getSiValue(port, type, mode, new float[nvalue]);
+        }
+
+        /**
+         * Send the opInput_Device command READY_SI and decode the values into the given array, with no boxing and no intermediate copy.
+         * Values are decoded straight from the reply buffer by the thread receiving the reply.
+         * This is meant for control loops reading sensors at a high rate, which can reuse the same array once the previous read is done.
+         *
+         * @param port port number.
+         * @param type type constant as defined in {@link Const}, e.g. {@link Const#EV3_TOUCH} or {@link Const#EV3_COLOR}.
+         * @param mode mode constant as defined in {@link Const}, e.g. {@link Const#COL_AMBIENT} or {@link Const#GYRO_ANGLE}.
+         * @param dst  the destination array, whose length is the number of values the command expects to return.
+         * @return a promise completed with the destination array once filled.
+         * @throws IOException thrown when communication errors occur.
+         * @see #getSiValue(byte, int, int, int)
+         */
+        @NonNull
+        public Promise<float[]> getSiValue(byte port, int type, int mode, @NonNull float[] dst) throws IOException {
+            final int nvalue = dst.length;
+            return read(Const.READY_SI, port, type, mode, nvalue, 4 * nvalue, r -> {
+                for (int i = 0; i < nvalue; i++)
+                    dst[i] = r.getFloat(4 * i);
+                return dst;
+            });
+        }
+
+        /**
+         * Send the opInput_Device command READY_SI for one value and pass it to the given callback, with no boxing.
+         * The callback is run by the thread receiving the reply, therefore it must not block.
+         *
+         * @param port port number.
+         * @param type type constant as defined in {@link Const}, e.g. {@link Const#EV3_TOUCH} or {@link Const#EV3_COLOR}.
+         * @param mode mode constant as defined in {@link Const}, e.g. {@link Const#COL_AMBIENT} or {@link Const#GYRO_ANGLE}.
+         * @param c    the callback receiving the value.
+         * @return a promise completed once the callback has returned, or failed if the read failed.
+         * @throws IOException thrown when communication errors occur.
+         * @see #getSiValue(byte, int, int, int)
+         */
+        @NonNull
+        public Promise<Void> getSiValue(byte port, int type, int mode, @NonNull FloatConsumer c) throws IOException {
+            return read(Const.READY_SI, port, type, mode, 1, 4, r -> {
+                c.call(r.getFloat(0));
+                return null;
             });
         }
 
         /**
          * Low level method for sending direct commands to the GenEV3 brick.
          * This method sends the opInput_Device command READY_PCT according to the official GenEV3 Developer Kit Documentation.
+         * Concurrent calls with the same arguments while a previous one is still in flight share its reply instead of sending the command again.
          *
          * @param port   port number.
          * @param type   type constant as defined in {@link Const}, e.g. {@link Const#EV3_TOUCH} or {@link Const#EV3_COLOR}.
@@ -334,48 +587,129 @@ public class EV3 extends GenEV3<EV3.Api> {
          * @see <a href="https://le-www-live-s.legocdn.com/sc/media/files/ev3-developer-kit/lego%20mindstorms%20ev3%20firmware%20developer%20kit-7be073548547d99f7df59ddfd57c0088.pdf?la=en-us">LEGO Mindstorms GenEV3 Firmware Developer Kit</a>
          */
         @NonNull
-        public Future<short[]> getPercentValue(byte port, int type, int mode, int nvalue) throws IOException {
-            Bytecode bc = prefaceGetValue(Const.READY_PCT, port, type, mode, nvalue);
-            Future<Reply> fr = ev3.channel.send(2 * nvalue, bc);
-            return execAsync(() -> {
-                Reply r = fr.get();
-                byte[] reply = r.getData();
-                short[] result = new short[nvalue];
-                for (int i = 0; i < nvalue; i++) {
-                    byte[] bData = Arrays.copyOfRange(reply, 2 * i, 2 * i + 2);
-                    result[i] = ByteBuffer.wrap(bData).order(ByteOrder.LITTLE_ENDIAN).getShort();
-                }
-                return result;
+        public Promise<short[]> getPercentValue(byte port, int type, int mode, int nvalue) throws IOException {
+            return getPercentValue(port, type, mode, new short[nvalue]);
+        }
+
+        /**
+         * Send the opInput_Device command READY_PCT and decode the values into the given array, with no boxing and no intermediate copy.
+         * Values are decoded straight from the reply buffer by the thread receiving the reply.
+         *
+         * @param port port number.
+         * @param type type constant as defined in {@link Const}, e.g. {@link Const#EV3_TOUCH} or {@link Const#EV3_COLOR}.
+         * @param mode mode constant as defined in {@link Const}, e.g. {@link Const#COL_AMBIENT} or {@link Const#GYRO_ANGLE}.
+         * @param dst  the destination array, whose length is the number of values the command expects to return.
+         * @return a promise completed with the destination array once filled.
+         * @throws IOException thrown when communication errors occur.
+         * @see #getPercentValue(byte, int, int, int)
+         */
+        @NonNull
+        public Promise<short[]> getPercentValue(byte port, int type, int mode, @NonNull short[] dst) throws IOException {
+            final int nvalue = dst.length;
+            return read(Const.READY_PCT, port, type, mode, nvalue, 2 * nvalue, r -> {
+                for (int i = 0; i < nvalue; i++)
+                    dst[i] = r.getShort(2 * i);
+                return dst;
+            });
+        }
+
+        /**
+         * Send the opInput_Device command READY_PCT for one value and pass it to the given callback, with no boxing.
+         * The callback is run by the thread receiving the reply, therefore it must not block.
+         *
+         * @param port port number.
+         * @param type type constant as defined in {@link Const}, e.g. {@link Const#EV3_TOUCH} or {@link Const#EV3_COLOR}.
+         * @param mode mode constant as defined in {@link Const}, e.g. {@link Const#COL_AMBIENT} or {@link Const#GYRO_ANGLE}.
+         * @param c    the callback receiving the value.
+         * @return a promise completed once the callback has returned, or failed if the read failed.
+         * @throws IOException thrown when communication errors occur.
+         * @see #getPercentValue(byte, int, int, int)
+         */
+        @NonNull
+        public Promise<Void> getPercentValue(byte port, int type, int mode, @NonNull ShortConsumer c) throws IOException {
+            return read(Const.READY_PCT, port, type, mode, 1, 2, r -> {
+                c.call(r.getShort(0));
+                return null;
             });
         }
 
+        /**
+         * Get the live round-trip time estimate of the channel to the brick.
+         * Controllers can use it to adjust their own loop period.
+         *
+         * @return the estimator, or null if the channel does not support it.
+         */
+        @Nullable
+        public RttEstimator getRttEstimator() {
+            return ev3.channel.getRttEstimator();
+        }
+
         /**
          * Low level method to execute the callback passed as argument within an Android {@link FutureTask}.
-         * The {@link Executor} in charge of the executing the function the is a builtin single-threaded executor.
+         * The {@link Executor} in charge of the executing the function the is a builtin single-threaded executor, created the first time this method is called and shut down by {@link #close()}.
+         * Replies are decoded by continuations of the promises returned by send methods, with no need for this method: use it only for callbacks that may block.
          *
          * @param c   functional object of type {@link Callable}.
          * @param <T> the return type of the callback.
          * @return a {@link FutureTask} object hosting the result of type {@code T}.
+         * @throws java.util.concurrent.RejectedExecutionException thrown when this object has been closed.
          */
         @NonNull
         public <T> FutureTask<T> execAsync(@NonNull Callable<T> c) {
             FutureTask<T> t = new FutureTask<>(c);
-            executor.execute(t);
+            executor().execute(t);
             return t;
         }
 
+        @NonNull
+        private synchronized ExecutorService executor() {
+            if (executor == null)
+                executor = Executors.newSingleThreadExecutor();
+            return executor;
+        }
+
         /**
          * Low level send command with reply.
          *
          * @param reservation global reservation for the result in bytes.
          * @param bc          object of type {@link Bytecode} representing the command to be sent.
-         * @return a {@link Future} object hosting the {@link Reply} object wrapping the reply by GenEV3.
+         * @return a {@link Promise} object hosting the {@link Reply} object wrapping the reply by GenEV3, which the caller owns and should release once decoded, see {@link Reply#release()}.
          * @throws IOException thrown when communication errors occur.
          * @see <a href="https://le-www-live-s.legocdn.com/sc/media/files/ev3-developer-kit/lego%20mindstorms%20ev3%20firmware%20developer%20kit-7be073548547d99f7df59ddfd57c0088.pdf?la=en-us">LEGO Mindstorms GenEV3 Firmware Developer Kit</a>
          */
         @NonNull
-        public Future<Reply> send(int reservation, @NonNull Bytecode bc) throws IOException {
-            return ev3.channel.send(reservation, bc);
+        public Promise<Reply> send(int reservation, @NonNull Bytecode bc) throws IOException {
+            return send(reservation, bc, AsyncChannel.Priority.CONTROL);
+        }
+
+        /**
+         * Low level send command with reply and the given priority class.
+         *
+         * @param reservation global reservation for the result in bytes.
+         * @param bc          object of type {@link Bytecode} representing the command to be sent.
+         * @param priority    the priority class of the command.
+         * @return a {@link Promise} object hosting the {@link Reply} object wrapping the reply by GenEV3, which the caller owns and should release once decoded, see {@link Reply#release()}.
+         * @throws IOException thrown when communication errors occur.
+         * @see AsyncChannel.Priority
+         */
+        @NonNull
+        public Promise<Reply> send(int reservation, @NonNull Bytecode bc, @NonNull AsyncChannel.Priority priority) throws IOException {
+            Batch b = batch.get();
+            return b != null ? b.send(reservation, bc, priority) : ev3.channel.send(reservation, bc, priority);
+        }
+
+        /**
+         * Low level send command with reply, with the reservations computed by the bytecode itself.
+         * This is meant for bytecodes whose variables have been allocated via {@link Bytecode#allocGlobal(String, int)} and {@link Bytecode#allocLocal(String, int)}.
+         *
+         * @param bc object of type {@link Bytecode} representing the command to be sent.
+         * @return a {@link Promise} object hosting the {@link Reply} object wrapping the reply by GenEV3, which the caller owns and should release once decoded, see {@link Reply#release()}.
+         * @throws IOException thrown when communication errors occur.
+         * @see Bytecode#getGlobalReservation()
+         */
+        @NonNull
+        public Promise<Reply> send(@NonNull Bytecode bc) throws IOException {
+            return send(bc.getGlobalReservation(), bc, AsyncChannel.Priority.CONTROL);
         }
 
         /**
@@ -386,12 +720,122 @@ public class EV3 extends GenEV3<EV3.Api> {
          * @see <a href="https://le-www-live-s.legocdn.com/sc/media/files/ev3-developer-kit/lego%20mindstorms%20ev3%20firmware%20developer%20kit-7be073548547d99f7df59ddfd57c0088.pdf?la=en-us">LEGO Mindstorms GenEV3 Firmware Developer Kit</a>
          */
         public void sendNoReply(@NonNull Bytecode bc) throws IOException {
-            ev3.channel.sendNoReply(bc);
+            sendNoReply(bc, AsyncChannel.Priority.CONTROL);
         }
 
-        @Override
-        public void close() throws Exception {
+        /**
+         * Low level send command with no reply and the given priority class.
+         *
+         * @param bc       object of type {@link Bytecode} representing the command to be sent.
+         * @param priority the priority class of the command.
+         * @throws IOException thrown when communication errors occur.
+         * @see AsyncChannel.Priority
+         */
+        public void sendNoReply(@NonNull Bytecode bc, @NonNull AsyncChannel.Priority priority) throws IOException {
+            Batch b = batch.get();
+            if (b != null)
+                b.sendNoReply(bc, priority);
+            else
+                ev3.channel.sendNoReply(bc, priority);
+        }
+
+        /**
+         * Low level send of a setpoint command with no reply for an output port.
+         * The last value sent for each port and setting is remembered: a command whose value is identical to it is skipped altogether.
+         * Moreover, a newer setpoint for the same port and setting replaces an older one that is still waiting to be written, so only the latest value goes out.
+         * Setpoints for the same port and setting are serialized, so that the value remembered is always the one queued last; it is forgotten when the command is dropped
+         * before being written, e.g. when the task is cancelled, or when the batch the command belongs to does not run.
+         *
+         * @param port    the output port the command refers to.
+         * @param setting the setting changed by the command.
+         * @param value   the value of the setting, used only for comparison with the last value sent; it must identify the command univocally.
+         * @param bc      object of type {@link Bytecode} representing the command to be sent.
+         * @return true if the command has been sent; false if it has been skipped.
+         * @throws IOException thrown when communication errors occur.
+         * @see AsyncChannel#sendLatest(int, Bytecode, AsyncChannel.Priority)
+         */
+        public boolean sendSetpoint(@NonNull OutputPort port, @NonNull OutputSetting setting, int value, @NonNull Bytecode bc) throws IOException {
+            final int key = outputKey(port, setting);
+            synchronized (outputLocks[key]) {
+                if (outputs.getAndSet(key, value) == value)
+                    return false;
+                final Runnable forget = forgetters[key];
+                try {
+                    Batch b = batch.get();
+                    if (b != null) {
+                        b.sendNoReply(bc);
+                        b.onDropped(forget);
+                    } else
+                        ev3.channel.sendLatest(key, bc, AsyncChannel.Priority.CONTROL, forget);
+                } catch (IOException | RuntimeException e) {
+                    outputs.set(key, NO_SETPOINT);
+                    throw e;
+                }
+                return true;
+            }
+        }
 
+        /**
+         * Forget the last value sent for the given output port and setting, so that the next setpoint is sent regardless.
+         * This must be called after sending commands that alter the setting through other means than {@link #sendSetpoint(OutputPort, OutputSetting, int, Bytecode)}.
+         *
+         * @param port    the output port.
+         * @param setting the setting.
+         */
+        public void clearSetpoint(@NonNull OutputPort port, @NonNull OutputSetting setting) {
+            outputs.set(outputKey(port, setting), NO_SETPOINT);
+        }
+
+        private static int outputKey(@NonNull OutputPort port, @NonNull OutputSetting setting) {
+            return port.ordinal() * OUTPUT_SETTINGS + setting.ordinal();
+        }
+
+        /**
+         * Send a group of operations to the GenEV3 brick as one single direct command, costing one round trip.
+         * All operations performed through this Api object by the callback, on the calling thread, are appended to the batch instead of being sent one by one:
+         * this includes sensor reads and motor commands issued via plugs, e.g. {@code api.batch(b -> { angle = gyro.getAngle(); motor.setPower(50); })}.
+         * Global offsets for the results of reads are assigned automatically and all the futures they return are completed from the one reply of the batch.
+         * The batch is sent when the callback returns: futures returned within the callback must not be waited for by the callback itself.
+         * Calling this method from within a batch callback simply runs the inner callback as part of the outer batch.
+         *
+         * @param body functional object that takes a parameter of type {@link Batch} and performs the operations.
+         * @return a {@link Promise} object hosting the {@link Reply} of the whole batch, which the caller owns and should release once decoded, see {@link Reply#release()}.
+         * Releasing it does not affect the portions of it the futures of the batch are completed with, which are released independently.
+         * @throws IOException thrown when communication errors occur.
+         */
+        @NonNull
+        public Promise<Reply> batch(@NonNull ThrowingConsumer<Batch, IOException> body) throws IOException {
+            Batch outer = batch.get();
+            if (outer != null) {
+                body.callThrows(outer);
+                return Promise.completed(null);
+            }
+            Batch b = new Batch(this);
+            batch.set(b);
+            try {
+                body.callThrows(b);
+            } catch (IOException | RuntimeException e) {
+                b.abort(e);
+                throw e;
+            } finally {
+                batch.remove();
+            }
+            try {
+                return b.commit();
+            } catch (IOException e) {
+                b.abort(e);
+                throw e;
+            }
+        }
+
+        /**
+         * Release the resources held by this object: the executor of {@link #execAsync(Callable)} is shut down, letting callbacks already submitted complete.
+         * This is called automatically when the callback passed to {@link GenEV3#run(Consumer, Function)} returns.
+         */
+        @Override
+        public synchronized void close() {
+            if (executor != null)
+                executor.shutdown();
         }
     }
 }
@@ -0,0 +1,343 @@
+package it.unive.dais.legodroid.lib;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import it.unive.dais.legodroid.lib.comm.AsyncChannel;
+import it.unive.dais.legodroid.lib.comm.Bytecode;
+import it.unive.dais.legodroid.lib.comm.Reply;
+import it.unive.dais.legodroid.lib.util.Promise;
+
+import static it.unive.dais.legodroid.lib.util.Prelude.ReTAG;
+
+/**
+ * This class represents a fleet of EV3 bricks driven together, each one through its own {@link AsyncChannel}. Bricks are identified by their index in the list given to the constructor.
+ * A command is broadcast to all the bricks, or to some of them, by queueing it on every channel at once: round trips to different bricks overlap, hence a fleet-wide snapshot
+ * costs about one round trip of the slowest brick rather than the sum of all of them. Queueing never blocks: a brick whose channel has no room for the command fails at once,
+ * via {@link AsyncChannel#trySend(int, Bytecode, AsyncChannel.Priority)}, so that one congested link does not hold back the others. Several operations can be sent as one command by appending them into a single
+ * {@link Bytecode} via {@link Bytecode#append(Bytecode, int)}.
+ * Replies are gathered into one aggregate {@link Promise} that is completed once every brick has either replied, failed or missed its own timeout, so that one slow brick does not stall the others;
+ * the {@link Outcome} of each brick reports the latency of its round trip.
+ * For instance, stopping all motors of all bricks is a matter of {@code fleet.broadcastNoReply(stopAll, AsyncChannel.Priority.SAFETY)}.
+ */
+public class Fleet implements AutoCloseable {
+    private static final String TAG = ReTAG("Fleet");
+
+    /**
+     * This class represents the outcome of a broadcast command on a single brick.
+     */
+    public static final class Outcome {
+        private final int brick;
+        @Nullable
+        private final Reply reply;
+        @Nullable
+        private final Throwable failure;
+        private final long latency;
+
+        private Outcome(int brick, @Nullable Reply reply, @Nullable Throwable failure, long latency) {
+            this.brick = brick;
+            this.reply = reply;
+            this.failure = failure;
+            this.latency = latency;
+        }
+
+        /**
+         * Get the index of the brick.
+         *
+         * @return the index within the fleet.
+         */
+        public int getBrick() {
+            return brick;
+        }
+
+        /**
+         * Check whether the brick has replied in time.
+         *
+         * @return true if a reply has been received; false if the command failed or timed out.
+         */
+        public boolean isSuccessful() {
+            return failure == null;
+        }
+
+        /**
+         * Get the reply of the brick.
+         *
+         * @return the reply, or null if the command failed or timed out. It is owned by the result, which releases it via {@link Result#release()}: it must not be released on its own.
+         */
+        @Nullable
+        public Reply getReply() {
+            return reply;
+        }
+
+        /**
+         * Get the cause of the failure: a {@link TimeoutException} when the brick has missed its timeout.
+         *
+         * @return the cause, or null if the brick has replied in time.
+         */
+        @Nullable
+        public Throwable getFailure() {
+            return failure;
+        }
+
+        /**
+         * Get the time between queueing the command on the channel of the brick and receiving the reply, or the failure.
+         * Queueing does not block, hence this does not include the time spent queueing the command on other bricks.
+         *
+         * @param unit the time unit of the result.
+         * @return the latency.
+         */
+        public long getLatency(@NonNull TimeUnit unit) {
+            return unit.convert(latency, TimeUnit.NANOSECONDS);
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format("brick #%d: %s in %dus", brick, failure == null ? "ok" : failure, latency / 1000);
+        }
+    }
+
+    /**
+     * This class represents the aggregate result of a broadcast command, i.e. the outcomes of all the bricks it has been sent to.
+     */
+    public static final class Result {
+        @NonNull
+        private final List<Outcome> outcomes;
+
+        private Result(@NonNull Outcome[] outcomes) {
+            this.outcomes = Collections.unmodifiableList(Arrays.asList(outcomes));
+        }
+
+        /**
+         * Get the outcomes, in the same order as the bricks the command has been sent to.
+         *
+         * @return an unmodifiable list of outcomes.
+         */
+        @NonNull
+        public List<Outcome> getOutcomes() {
+            return outcomes;
+        }
+
+        /**
+         * Get the number of bricks that have replied in time.
+         *
+         * @return the number of successful outcomes.
+         */
+        public int getSuccessCount() {
+            int n = 0;
+            for (Outcome o : outcomes)
+                if (o.isSuccessful())
+                    ++n;
+            return n;
+        }
+
+        /**
+         * Get the latency of the slowest brick that has replied in time.
+         *
+         * @param unit the time unit of the result.
+         * @return the maximum latency, or 0 if no brick has replied.
+         */
+        public long getMaxLatency(@NonNull TimeUnit unit) {
+            long max = 0;
+            for (Outcome o : outcomes)
+                if (o.isSuccessful())
+                    max = Math.max(max, o.latency);
+            return unit.convert(max, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Release all the replies, once they have been decoded.
+         *
+         * @see Reply#release()
+         */
+        public void release() {
+            for (Outcome o : outcomes)
+                if (o.reply != null)
+                    o.reply.release();
+        }
+    }
+
+    @NonNull
+    private final List<AsyncChannel> channels;
+    @Nullable
+    private ScheduledThreadPoolExecutor timer = null;
+
+    /**
+     * Create a fleet given the channels of its bricks.
+     *
+     * @param channels the channels, one per brick; the index of each channel is the index of its brick.
+     */
+    public Fleet(@NonNull List<? extends AsyncChannel> channels) {
+        this.channels = Collections.unmodifiableList(new ArrayList<AsyncChannel>(channels));
+    }
+
+    /**
+     * Get the number of bricks.
+     *
+     * @return the size of the fleet.
+     */
+    public int size() {
+        return channels.size();
+    }
+
+    /**
+     * Get the channel of a brick, e.g. for reading the round-trip time estimate of its link via {@link AsyncChannel#getRttEstimator()}.
+     *
+     * @param brick the index of the brick.
+     * @return the channel.
+     */
+    @NonNull
+    public AsyncChannel getChannel(int brick) {
+        return channels.get(brick);
+    }
+
+    @NonNull
+    private int[] all() {
+        int[] r = new int[channels.size()];
+        for (int i = 0; i < r.length; ++i)
+            r[i] = i;
+        return r;
+    }
+
+    @NonNull
+    private synchronized ScheduledThreadPoolExecutor timer() {
+        if (timer == null) {
+            timer = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, TAG);
+                t.setDaemon(true);
+                return t;
+            });
+            timer.setRemoveOnCancelPolicy(true);
+        }
+        return timer;
+    }
+
+    /**
+     * Broadcast a command with reply to all the bricks.
+     *
+     * @param reservation number of bytes for the global reservation on each brick.
+     * @param bc          object of type Bytecode with the command.
+     * @param priority    the priority class of the command.
+     * @param timeout     the time each brick is given for replying; 0 relies on the deadlines of the channels only.
+     * @param unit        the time unit of the timeout.
+     * @return a {@link Promise} object hosting the outcomes of all the bricks; it never fails, as failures are reported brick by brick.
+     */
+    @NonNull
+    public Promise<Result> broadcast(int reservation, @NonNull Bytecode bc, @NonNull AsyncChannel.Priority priority, long timeout, @NonNull TimeUnit unit) {
+        return broadcast(all(), reservation, bc, priority, timeout, unit);
+    }
+
+    /**
+     * Broadcast a command with reply to the given bricks.
+     * The command is queued on every channel before any reply is waited for, with no blocking: a brick whose in-flight window is full gets a {@link RejectedExecutionException} as outcome at once.
+     * A brick that does not reply within the timeout gets a {@link TimeoutException} as outcome,
+     * and its pending reply is cancelled, which frees its slot on the channel; the other bricks are not affected.
+     * Cancelling the aggregate promise cancels the replies still pending.
+     *
+     * @param bricks      the indices of the bricks.
+     * @param reservation number of bytes for the global reservation on each brick.
+     * @param bc          object of type Bytecode with the command.
+     * @param priority    the priority class of the command.
+     * @param timeout     the time each brick is given for replying; 0 relies on the deadlines of the channels only.
+     * @param unit        the time unit of the timeout.
+     * @return a {@link Promise} object hosting the outcomes of the given bricks, in the same order; it never fails, as failures are reported brick by brick.
+     */
+    @NonNull
+    public Promise<Result> broadcast(@NonNull int[] bricks, int reservation, @NonNull Bytecode bc, @NonNull AsyncChannel.Priority priority, long timeout, @NonNull TimeUnit unit) {
+        final int n = bricks.length;
+        final Outcome[] outcomes = new Outcome[n];
+        final List<Promise<Reply>> pending = new ArrayList<>(n);
+        final AtomicInteger left = new AtomicInteger(n);
+        final Promise<Result> all = new Promise<>();
+        if (n == 0) {
+            all.complete(new Result(outcomes));
+            return all;
+        }
+        for (int k = 0; k < n; ++k) {
+            final int i = k, brick = bricks[k];
+            final long sentAt = System.nanoTime();
+            Promise<Reply> r;
+            try {
+                r = channels.get(brick).trySend(reservation, bc, priority);
+            } catch (IOException | RuntimeException e) {
+                r = Promise.failed(e);
+            }
+            pending.add(r);
+            final Promise<Reply> reply = r;
+            final ScheduledFuture<?> expiry = timeout > 0 && !r.isDone()
+                    ? timer().schedule(() -> reply.fail(new TimeoutException(String.format("brick #%d did not reply within %d %s", brick, timeout, unit))), timeout, unit)
+                    : null;
+            r.onComplete(p -> {
+                if (expiry != null)
+                    expiry.cancel(false);
+                outcomes[i] = new Outcome(brick, p.getNow(null), p.getFailure(), System.nanoTime() - sentAt);
+                if (left.decrementAndGet() == 0)
+                    all.complete(new Result(outcomes));
+            });
+        }
+        all.onComplete(p -> {
+            if (p.isCancelled())
+                for (Promise<Reply> r : pending)
+                    r.cancel(true);
+        });
+        return all;
+    }
+
+    /**
+     * Broadcast a command with no reply to all the bricks, e.g. for stopping all motors with {@link AsyncChannel.Priority#SAFETY}.
+     *
+     * @param bc       the object of type Bytecode.
+     * @param priority the priority class of the command.
+     * @return the number of bricks the command has been queued to.
+     */
+    public int broadcastNoReply(@NonNull Bytecode bc, @NonNull AsyncChannel.Priority priority) {
+        return broadcastNoReply(all(), bc, priority);
+    }
+
+    /**
+     * Broadcast a command with no reply to the given bricks.
+     * Bricks whose channel cannot take the command at once, e.g. because it has failed or its in-flight window is full, are skipped and logged, so that the others get the command anyway.
+     * Commands with {@link AsyncChannel.Priority#SAFETY} are never held back by the window.
+     *
+     * @param bricks   the indices of the bricks.
+     * @param bc       the object of type Bytecode.
+     * @param priority the priority class of the command.
+     * @return the number of bricks the command has been queued to.
+     */
+    public int broadcastNoReply(@NonNull int[] bricks, @NonNull Bytecode bc, @NonNull AsyncChannel.Priority priority) {
+        int n = 0;
+        for (int brick : bricks) {
+            try {
+                channels.get(brick).trySendNoReply(bc, priority);
+                ++n;
+            } catch (IOException | RuntimeException e) {
+                Log.w(TAG, String.format("cannot send to brick #%d: %s", brick, e));
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Release the resources held by this object: the timer of broadcast timeouts is stopped. Channels are not closed.
+     */
+    @Override
+    public synchronized void close() {
+        if (timer != null) {
+            timer.shutdownNow();
+            timer = null;
+        }
+    }
+}
@@ -3,15 +3,20 @@ package it.unive.dais.legodroid.lib;
 import android.os.AsyncTask;
 import android.util.Log;
 
+import java.io.IOException;
 import java.util.concurrent.ExecutionException;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import it.unive.dais.legodroid.lib.comm.AsyncChannel;
+import it.unive.dais.legodroid.lib.comm.Bytecode;
 import it.unive.dais.legodroid.lib.comm.Channel;
+import it.unive.dais.legodroid.lib.comm.Const;
 import it.unive.dais.legodroid.lib.comm.SpooledAsyncChannel;
+import it.unive.dais.legodroid.lib.comm.Template;
 import it.unive.dais.legodroid.lib.util.Consumer;
 import it.unive.dais.legodroid.lib.util.Function;
+import it.unive.dais.legodroid.lib.util.Prelude;
 
 import static it.unive.dais.legodroid.lib.util.Prelude.ReTAG;
 
@@ -38,6 +43,7 @@ public class GenEV3<A extends EV3.Api> {
 
     @Nullable
     private AsyncTask<Void, Void, Void> task = null;
+    private int scope = 0;
 
     /**
      * Main constructor.
@@ -64,6 +70,7 @@ public class GenEV3<A extends EV3.Api> {
      * Notably, there is no other way of getting the Api object for safety reasons.
      * The callback is executed by a worker thread, thus any operation on the UI must be delegated to runOnUiThread() invocations.
      * Also, each GenEV3 instance can have at most one running task - i.e. one worker thread can be up at any given time.
+     * Each run opens a new cancellation scope on the channel, which is cancelled by {@link #cancel()}.
      *
      * @param legoMain functional object that takes a parameter of type Api and has no return type.
      * @param makeApi  functional object that constructs an Api object given an GenEV3 object; the return Api object is passed as argument to the legoMain function object.
@@ -72,6 +79,7 @@ public class GenEV3<A extends EV3.Api> {
     public synchronized void run(@NonNull Consumer<A> legoMain, @NonNull Function<GenEV3<A>, A> makeApi) throws AlreadyRunningException {
         if (task != null)
             throw new AlreadyRunningException("GenEV3 task is already running");
+        scope = channel.beginScope();
         task = new MyAsyncTask<>(this, legoMain, makeApi).executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
@@ -96,12 +104,17 @@ public class GenEV3<A extends EV3.Api> {
         protected Void doInBackground(Void... voids) {
             Thread.currentThread().setName(TAG);
             Log.v(TAG, "starting EV3 task");
+            A api = null;
             try {
-                main.call(make.apply(ev3));
+                api = make.apply(ev3);
+                main.call(api);
                 Log.v(TAG, "exiting EV3 task");
             } catch (Throwable e) {
                 Log.e(TAG, String.format("uncaught exception: %s. Aborting EV3 task", e.getMessage()));
                 e.printStackTrace();
+            } finally {
+                if (api != null)
+                    Prelude.trap(api::close);
             }
             synchronized (ev3) {
                 ev3.task = null;
@@ -113,17 +126,40 @@ public class GenEV3<A extends EV3.Api> {
     /**
      * Cancel the GenEV3 task currently being run by the worker thread.
      * Cancellation is not equivalent to killing the thread, it is just a software flag the task code can peek.
+     * Nonetheless, commands sent by the task that have not been written yet are dropped, futures waiting for replies are cancelled at once, and further commands sent by the task
+     * fail with a {@link java.util.concurrent.CancellationException} - except for stopping motors. Finally all motors are stopped.
      * This method is thread-safe and can be either called from the callback or from any other thread.
      *
      * @see #isCancelled()
+     * @see AsyncChannel#cancelScope(int)
      */
     public synchronized void cancel() {
         if (task != null) {
             Log.v(TAG, "cancelling task");
             task.cancel(true);
+            channel.cancelScope(scope);
+            try {
+                stopAll();
+            } catch (IOException e) {
+                Log.e(TAG, String.format("cannot stop motors on cancellation: %s", e));
+            }
         }
     }
 
+    private static final Template STOP_ALL = new Template.Builder()
+            .addOpCode(Const.OUTPUT_STOP)
+            .addConstant(Const.LAYER_MASTER)
+            .addConstant(Const.ALL_MOTORS)
+            .addConstant(Const.COAST)
+            .build();
+
+    // stop all motors bypassing any other queued traffic
+    private void stopAll() throws IOException {
+        Bytecode bc = STOP_ALL.obtain();
+        channel.sendNoReply(bc, AsyncChannel.Priority.SAFETY);
+        bc.recycle();
+    }
+
     /**
      * Test the cancellation flag. This is meant to be called from within the GenEV3 task callback.
      *
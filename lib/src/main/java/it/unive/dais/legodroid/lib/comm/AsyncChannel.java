@@ -1,36 +1,197 @@
 package it.unive.dais.legodroid.lib.comm;
 
 import java.io.IOException;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import it.unive.dais.legodroid.lib.util.Promise;
 
 /**
  * Classes implementing this interface represent active on-going connections between two devices, in a similar fashion to {@link Channel}.
- * Communication is <b>asynchronous</b> though: no receive method exists, as calling {@link #send(Command)} returns a future reply.
+ * Communication is <b>asynchronous</b> though: no receive method exists, as calling {@link #send(Command)} returns a promise of the reply.
+ * Send methods taking a {@link Bytecode} do not retain it once they return, hence callers can reuse or recycle it.
  */
 public interface AsyncChannel extends AutoCloseable {
     /**
-     * Send a {@link Command} asynchronously and returns a future object hosting the {@link Reply} object.
+     * Priority classes of commands. Channels supporting priorities write {@link #SAFETY} and {@link #CONTROL} commands before {@link #TELEMETRY} ones,
+     * while keeping the former two in the order they have been sent in, so that a command never overtakes an earlier one to the same device.
+     * Commands sent without specifying a priority belong to {@link #CONTROL}.
+     */
+    enum Priority {
+        /**
+         * Commands that must go out as soon as possible regardless of the in-flight window and of batching, e.g. stopping or braking motors.
+         */
+        SAFETY,
+        /**
+         * Ordinary commands, e.g. setting motor power or speed.
+         */
+        CONTROL,
+        /**
+         * Periodic reads, e.g. polling sensors: these are written only when no command of higher priority is pending, and may be dropped when stale.
+         */
+        TELEMETRY
+    }
+
+    /**
+     * Lifecycle states of a channel.
+     * A channel starts {@link #OPEN}; {@link #FAILED} and {@link #CLOSED} are final.
+     */
+    enum State {
+        /**
+         * The channel is working.
+         */
+        OPEN,
+        /**
+         * The channel is still up but the device is not responding as expected: commands are still sent, though replies may be late.
+         */
+        DEGRADED,
+        /**
+         * The link died: all pending commands have failed, and so do commands sent afterwards.
+         */
+        FAILED,
+        /**
+         * The channel has been closed explicitly.
+         */
+        CLOSED
+    }
+
+    /**
+     * Callback interface for channel state changes.
+     */
+    interface StateListener {
+        /**
+         * Called once for each state change, by the thread that detected it; implementations must not block.
+         *
+         * @param channel the channel.
+         * @param state   the new state.
+         * @param cause   the error that caused the change, or null if none.
+         */
+        void onStateChanged(@NonNull AsyncChannel channel, @NonNull State state, @Nullable Throwable cause);
+    }
+
+    /**
+     * Exception thrown by the send methods of a channel, or reported through the promises they return, once the channel has failed or has been closed.
+     */
+    class ChannelFailedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Constructor by string and inner throwable.
+         *
+         * @param msg   the message.
+         * @param cause the error that made the channel fail, or null if it has been closed explicitly.
+         */
+        public ChannelFailedException(@NonNull String msg, @Nullable Throwable cause) {
+            super(msg, cause);
+        }
+    }
+
+    /**
+     * Get the current lifecycle state of the channel.
+     *
+     * @return the state.
+     */
+    @NonNull
+    State getState();
+
+    /**
+     * Register a listener for state changes.
+     *
+     * @param l the listener.
+     */
+    void addStateListener(@NonNull StateListener l);
+
+    /**
+     * Unregister a listener for state changes.
+     *
+     * @param l the listener.
+     */
+    void removeStateListener(@NonNull StateListener l);
+
+    /**
+     * Send a {@link Command} asynchronously and returns a promise hosting the {@link Reply} object.
+     * Continuations can be attached to the promise without blocking any thread.
+     * The sequence number of the command is assigned by the channel, as each channel owns its own sequence space.
      *
      * @param cmd the command to be sent.
-     * @return the future object hosting the reply.
+     * @return the promise hosting the reply, which the caller owns and should release once decoded, see {@link Reply#release()}.
      * @throws IOException thrown when communication errors occur.
      */
     @NonNull
-    Future<Reply> send(@NonNull Command cmd) throws IOException;
+    Promise<Reply> send(@NonNull Command cmd) throws IOException;
 
     /**
-     * Send a {@link Command} asynchronously and returns a future object hosting the {@link Reply} object.
+     * Send a {@link Command} asynchronously and returns a promise hosting the {@link Reply} object.
      * Can specify the global reservation for the command on the GenEV3 side.
      *
      * @param reservation number of bytes for the global reservation on the GenEV3.
      * @param bc          object of type Bytecode with the command.
-     * @return the future object hossting the reply.
+     * @return the promise hosting the reply, which the caller owns and should release once decoded, see {@link Reply#release()}.
      * @throws IOException thrown when communication errors occur.
      */
     @NonNull
-    Future<Reply> send(int reservation, @NonNull Bytecode bc) throws IOException;
+    Promise<Reply> send(int reservation, @NonNull Bytecode bc) throws IOException;
+
+    /**
+     * Send a {@link Command} asynchronously with the given priority and returns a promise hosting the {@link Reply} object.
+     * The default implementation ignores the priority.
+     *
+     * @param reservation number of bytes for the global reservation on the GenEV3.
+     * @param bc          object of type Bytecode with the command.
+     * @param priority    the priority class of the command.
+     * @return the promise hosting the reply, which the caller owns and should release once decoded, see {@link Reply#release()}.
+     * @throws IOException thrown when communication errors occur.
+     */
+    @NonNull
+    default Promise<Reply> send(int reservation, @NonNull Bytecode bc, @NonNull Priority priority) throws IOException {
+        return send(reservation, bc);
+    }
+
+    /**
+     * Send a {@link Bytecode} with reply asynchronously, with the reservations computed by the bytecode itself.
+     *
+     * @param bc object of type Bytecode with the command.
+     * @return the promise hosting the reply, which the caller owns and should release once decoded, see {@link Reply#release()}.
+     * @throws IOException thrown when communication errors occur.
+     * @see Bytecode#getGlobalReservation()
+     * @see Bytecode#getLocalReservation()
+     */
+    @NonNull
+    default Promise<Reply> send(@NonNull Bytecode bc) throws IOException {
+        return send(bc.getGlobalReservation(), bc);
+    }
+
+    /**
+     * Send a {@link Bytecode} with reply asynchronously with the given priority, with the reservations computed by the bytecode itself.
+     *
+     * @param bc       object of type Bytecode with the command.
+     * @param priority the priority class of the command.
+     * @return the promise hosting the reply, which the caller owns and should release once decoded, see {@link Reply#release()}.
+     * @throws IOException thrown when communication errors occur.
+     * @see Bytecode#getGlobalReservation()
+     * @see Bytecode#getLocalReservation()
+     */
+    @NonNull
+    default Promise<Reply> send(@NonNull Bytecode bc, @NonNull Priority priority) throws IOException {
+        return send(bc.getGlobalReservation(), bc, priority);
+    }
+
+    /**
+     * Send a command with reply as {@link #send(int, Bytecode, Priority)} does, though never blocking the caller: when the channel has no room for the command,
+     * the promise fails at once with a {@link RejectedExecutionException}. This is meant for callers driving several channels, which must not be held back by any one of them.
+     * The default implementation calls {@link #send(int, Bytecode, Priority)}, hence it blocks whenever that does.
+     *
+     * @param reservation number of bytes for the global reservation on the GenEV3.
+     * @param bc          object of type Bytecode with the command.
+     * @param priority    the priority class of the command.
+     * @return the promise hosting the reply, which the caller owns and should release once decoded, see {@link Reply#release()}.
+     * @throws IOException thrown when communication errors occur.
+     */
+    @NonNull
+    default Promise<Reply> trySend(int reservation, @NonNull Bytecode bc, @NonNull Priority priority) throws IOException {
+        return send(reservation, bc, priority);
+    }
 
     /**
      * Lower-level method for sending a custom-built Bytecode objects as commands.
@@ -40,6 +201,93 @@ public interface AsyncChannel extends AutoCloseable {
      */
     void sendNoReply(@NonNull Bytecode bc) throws IOException;
 
+    /**
+     * Lower-level method for sending a custom-built Bytecode objects as commands with the given priority.
+     * The default implementation ignores the priority.
+     *
+     * @param bc       the object of type Bytecode.
+     * @param priority the priority class of the command.
+     * @throws IOException thrown when communication errors occur.
+     */
+    default void sendNoReply(@NonNull Bytecode bc, @NonNull Priority priority) throws IOException {
+        sendNoReply(bc);
+    }
+
+    /**
+     * Send a command with no reply as {@link #sendNoReply(Bytecode, Priority)} does, though never blocking the caller.
+     * The default implementation calls {@link #sendNoReply(Bytecode, Priority)}, hence it blocks whenever that does.
+     *
+     * @param bc       the object of type Bytecode.
+     * @param priority the priority class of the command.
+     * @throws IOException                thrown when communication errors occur.
+     * @throws RejectedExecutionException thrown when the channel has no room for the command.
+     */
+    default void trySendNoReply(@NonNull Bytecode bc, @NonNull Priority priority) throws IOException {
+        sendNoReply(bc, priority);
+    }
+
+    /**
+     * Send a command with no reply that supersedes any previous command sent with the same key and still waiting to be written, so that only the latest one goes out.
+     * This is meant for setpoints, whose intermediate values are worthless once a newer one is available.
+     * The default implementation calls {@link #sendLatest(int, Bytecode, Priority, Runnable)} with no hook.
+     *
+     * @param key      the conflation key: commands with the same key supersede each other.
+     * @param bc       the object of type Bytecode.
+     * @param priority the priority class of the command.
+     * @throws IOException thrown when communication errors occur.
+     */
+    default void sendLatest(int key, @NonNull Bytecode bc, @NonNull Priority priority) throws IOException {
+        sendLatest(key, bc, priority, null);
+    }
+
+    /**
+     * Send a command with no reply as {@link #sendLatest(int, Bytecode, Priority)} does, running the given hook if the command is dropped before being written
+     * for any other reason than being superseded, e.g. because its scope is cancelled. This allows callers to forget about values that never reached the device.
+     * The default implementation sends every command as {@link #sendNoReply(Bytecode, Priority)} does and never runs the hook.
+     *
+     * @param key       the conflation key: commands with the same key supersede each other.
+     * @param bc        the object of type Bytecode.
+     * @param priority  the priority class of the command.
+     * @param onDropped the hook, or null if none.
+     * @throws IOException thrown when communication errors occur.
+     */
+    default void sendLatest(int key, @NonNull Bytecode bc, @NonNull Priority priority, @Nullable Runnable onDropped) throws IOException {
+        sendNoReply(bc, priority);
+    }
+
+    /**
+     * Get the round-trip time estimator of the channel.
+     * The default implementation does not estimate round-trip times and returns null.
+     *
+     * @return the estimator, or null if the channel does not support it.
+     */
+    @Nullable
+    default RttEstimator getRttEstimator() {
+        return null;
+    }
+
+    /**
+     * Open a new cancellation scope: all commands sent from now on belong to it, until another scope is opened.
+     * The default implementation does not support scopes and always returns 0.
+     *
+     * @return the identifier of the new scope.
+     * @see #cancelScope(int)
+     */
+    default int beginScope() {
+        return 0;
+    }
+
+    /**
+     * Cancel the given scope: commands belonging to it that have not been written yet are dropped, and the promises of those still waiting for their reply are cancelled at once.
+     * Commands sent afterwards within the same scope are rejected with a {@link java.util.concurrent.CancellationException}, except for {@link Priority#SAFETY} ones.
+     * Scopes are opened in increasing order, and cancelling one cancels all the scopes opened before it too: a cancelled scope is never reopened by cancelling a later one.
+     * The default implementation does nothing.
+     *
+     * @param scope the identifier of the scope, as returned by {@link #beginScope()}.
+     */
+    default void cancelScope(int scope) {
+    }
+
     /**
      * Schedule disconnection from the device.
      * Calling this method explicitly invalidates the object, therefore it is recommended to trigger the {@link AutoCloseable} behaviour by losing the reference to the object instead, when you need to disconnect.
@@ -8,6 +8,7 @@ import android.util.Log;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.List;
 import java.util.Objects;
 import java.util.Set;
 import java.util.UUID;
@@ -86,40 +87,45 @@ public class BluetoothConnection implements Connection<BluetoothConnection.Bluet
         private final InputStream in;
         @NonNull
         private final OutputStream out;
+        @NonNull
+        private final FrameWriter writer = new FrameWriter();
+        @NonNull
+        private final FrameReader reader;
 
         private BluetoothChannel(@NonNull BluetoothSocket socket) throws IOException {
             in = socket.getInputStream();
             out = socket.getOutputStream();
+            reader = new FrameReader(in);
         }
 
         @Override
         public void send(@NonNull Command p) throws IOException {
-            byte[] a = p.marshal();
-            byte[] l = new byte[]{(byte) (a.length & 0xFF), (byte) ((a.length >> 8) & 0xFF)};
-            byte[] w = Prelude.concat(l, a);
-//            Log.d(TAG, String.format("send: { %s }", Prelude.bytesToHex(w)));
-            out.write(w);
+            writer.write(out, p);
         }
 
-        @NonNull
+        /**
+         * Send all the given commands with a single write on the socket stream.
+         * This is not thread-safe: callers must serialize calls, as {@link SpooledAsyncChannel} does with its writer thread.
+         *
+         * @param cmds the commands to be sent.
+         * @throws IOException thrown when communication errors occur.
+         */
         @Override
-        public Reply receive() throws IOException {
-            byte[] lb = readSized(2);
-            int len = ((lb[1] & 0xff) << 8) | (lb[0] & 0xff);
-//            Log.d(TAG, String.format("receive len = %d", len));
-            return new Reply(readSized(len));
+        public void send(@NonNull List<Command> cmds) throws IOException {
+            writer.write(out, cmds);
         }
 
+        /**
+         * Receive the next reply: the socket stream is read in large chunks, hence replies arriving back to back are decoded from a single read.
+         * The reply is a view into a recycled buffer, see {@link FrameReader}.
+         *
+         * @return the object of type {@link Reply}, which the caller owns and should release once decoded, see {@link Reply#release()}.
+         * @throws IOException thrown when communication errors occur.
+         */
         @NonNull
-        private byte[] readSized(int size) throws IOException {
-            byte[] r = new byte[size];
-            int off = 0;
-            while (off < size) {
-//                Log.d(TAG, "reading...");
-                off += in.read(r, off, size - off);
-//                Log.d(TAG, String.format("receive: %s", Prelude.bytesToHex(r)));
-            }
-            return r;
+        @Override
+        public Reply receive() throws IOException {
+            return reader.read();
         }
 
         @Override
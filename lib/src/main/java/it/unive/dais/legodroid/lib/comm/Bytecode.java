@@ -1,14 +1,35 @@
 package it.unive.dais.legodroid.lib.comm;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 /**
  * This class is a low-level buffer for creating commands to be sent to the GenEV3 device.
  * Parts can be appended using this class methods according to which data type and command segment is needed.
+ * Bytes are encoded straight into a little-endian {@link ByteBuffer}. Constants and global indices can be encoded in the shortest legal form, see {@link #addConstant(int)} and {@link #addGlobalIndex(int)}; objects can be pooled via {@link #obtain()} and {@link #recycle()}, making a steady-state control loop allocate nothing for encoding.
+ * Sending is not free of allocations: channels snapshot the bytes via {@link #getBytes()} and queue a command for each send.
+ * <p>
+ * This class is also a small assembler: global and local variables can be allocated by name via {@link #allocGlobal(String, int)} and {@link #allocLocal(String, int)},
+ * which keep track of the reservations the command needs, and jumps can refer to {@link Label} objects bound before or after them. This allows running short loops and
+ * conditionals on the brick within one direct command, e.g.:
+ * <pre>{@code
+ * Bytecode bc = new Bytecode();
+ * bc.allocLocal("i", 1);
+ * bc.allocGlobal("result", 4);
+ * Bytecode.Label loop = bc.newLabel();
+ * bc.bind(loop);
+ * // ... body writing to global "result" ...
+ * bc.addOpCode(Const.ADD8); bc.addLocal("i"); bc.addConstant(1); bc.addLocal("i");
+ * bc.addOpCode(Const.JR_LT8); bc.addLocal("i"); bc.addConstant(10); bc.addOffset(loop);
+ * channel.send(bc);
+ * }</pre>
  *
  * @see <a href="http://google.com</a>https://le-www-live-s.legocdn.com/sc/media/files/ev3-developer-kit/lego%20mindstorms%20ev3%20firmware%20developer%20kit-7be073548547d99f7df59ddfd57c0088.pdf?la=en-us">GenEV3 Developer Kit Documentation</a>
  */
@@ -16,18 +37,141 @@ public class Bytecode {
     private static final byte BYTE_SIZE = (byte) 0b10000001;
     private static final byte SHORT_SIZE = (byte) 0x82;
     private static final byte INT_SIZE = (byte) 0x83;
+    private static final int LC0_MIN = -31;
+    private static final int LC0_MAX = 31;
+    private static final int GV0 = 0x60;
+    private static final int GV0_MAX = 0x1F;
+    private static final byte GV1 = (byte) 0xE1;
+    private static final byte GV2 = (byte) 0xE2;
+    /**
+     * Maximum global index that can be encoded, i.e. the maximum global reservation of a direct command minus one.
+     */
+    public static final int MAX_GLOBAL_INDEX = 1023;
+    /**
+     * Maximum global reservation of a direct command in bytes.
+     */
+    public static final int MAX_GLOBAL_RESERVATION = MAX_GLOBAL_INDEX + 1;
+    /**
+     * Maximum local reservation of a direct command in bytes.
+     */
+    public static final int MAX_LOCAL_RESERVATION = 63;
+    private static final int LV0 = 0x40;
+    private static final byte LV1 = (byte) 0xC1;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int POOL_SIZE = 16;
+    @NonNull
+    private static final AtomicReferenceArray<Bytecode> pool = new AtomicReferenceArray<>(POOL_SIZE);
 
     @NonNull
-    private final ByteArrayOutputStream underlying;
+    private ByteBuffer buf = ByteBuffer.allocate(INITIAL_CAPACITY).order(ByteOrder.LITTLE_ENDIAN);
+    @NonNull
+    private int[] globals = new int[4];
+    private int nglobals = 0;
+    private int globalSize = 0;
+    private int localSize = 0;
+    @Nullable
+    private HashMap<String, Integer> globalNames, localNames;
+    // jump offsets waiting for their label to be bound
+    @NonNull
+    private int[] fixups = new int[0];
     @NonNull
-    private final DataOutputStream out;
+    private Label[] fixupLabels = new Label[0];
+    private int nfixups = 0;
+    private boolean jumps = false;
+
+    /**
+     * This class represents a position within a bytecode that jumps can refer to, either before or after it is bound.
+     * Labels are created by {@link #newLabel()} and are valid only within the bytecode that created them, until it is reset.
+     */
+    public static final class Label {
+        @NonNull
+        private final Bytecode owner;
+        private int position = -1;
+
+        private Label(@NonNull Bytecode owner) {
+            this.owner = owner;
+        }
+
+        /**
+         * Check whether the label has been bound.
+         *
+         * @return true if the label has been bound to a position; false otherwise.
+         */
+        public boolean isBound() {
+            return position >= 0;
+        }
+    }
 
     /**
      * Create an empty object.
+     * Consider {@link #obtain()} for bytecodes built at a high rate, e.g. in control loops.
      */
     public Bytecode() {
-        underlying = new ByteArrayOutputStream();
-        out = new DataOutputStream(underlying);
+    }
+
+    /**
+     * Get an empty object from a shared pool, or create a new one if the pool is empty.
+     * Pooled objects keep their buffer across uses, hence building a bytecode allocates nothing once the pool is warm.
+     * Call {@link #recycle()} when done: send methods of channels do not retain the bytecode, therefore it can be recycled as soon as they return.
+     *
+     * @return an empty object of type {@link Bytecode}.
+     */
+    @NonNull
+    public static Bytecode obtain() {
+        for (int i = 0; i < POOL_SIZE; ++i) {
+            Bytecode r = pool.get(i);
+            if (r != null && pool.compareAndSet(i, r, null))
+                return r;
+        }
+        return new Bytecode();
+    }
+
+    /**
+     * Clear this object and give it back to the shared pool.
+     * The object must not be used after calling this method.
+     *
+     * @see #obtain()
+     */
+    public void recycle() {
+        reset();
+        for (int i = 0; i < POOL_SIZE; ++i)
+            if (pool.get(i) == null && pool.compareAndSet(i, null, this))
+                return;
+    }
+
+    /**
+     * Clear this object, keeping its buffer.
+     */
+    public void reset() {
+        buf.clear();
+        nglobals = 0;
+        globalSize = 0;
+        localSize = 0;
+        if (globalNames != null)
+            globalNames.clear();
+        if (localNames != null)
+            localNames.clear();
+        Arrays.fill(fixupLabels, 0, nfixups, null);
+        nfixups = 0;
+        jumps = false;
+    }
+
+    private void ensure(int n) {
+        if (buf.remaining() < n) {
+            ByteBuffer b = ByteBuffer.allocate(Math.max(2 * buf.capacity(), buf.position() + n)).order(ByteOrder.LITTLE_ENDIAN);
+            buf.flip();
+            b.put(buf);
+            buf = b;
+        }
+    }
+
+    /**
+     * Get the length of the bytecode.
+     *
+     * @return the length in bytes.
+     */
+    public int length() {
+        return buf.position();
     }
 
     /**
@@ -38,7 +182,8 @@ public class Bytecode {
      * @see <a href="https://le-www-live-s.legocdn.com/sc/media/files/ev3-developer-kit/lego%20mindstorms%20ev3%20firmware%20developer%20kit-7be073548547d99f7df59ddfd57c0088.pdf?la=en-us">LEGO Mindstorms GenEV3 Firmware Developer Kit</a>
      */
     public void addOpCode(byte opcode) throws IOException {
-        out.writeByte(opcode);
+        ensure(1);
+        buf.put(opcode);
     }
 
     /**
@@ -49,8 +194,8 @@ public class Bytecode {
      * @see <a href="https://le-www-live-s.legocdn.com/sc/media/files/ev3-developer-kit/lego%20mindstorms%20ev3%20firmware%20developer%20kit-7be073548547d99f7df59ddfd57c0088.pdf?la=en-us">LEGO Mindstorms GenEV3 Firmware Developer Kit</a>
      */
     public void addParameter(byte param) throws IOException {
-        out.writeByte(BYTE_SIZE);
-        out.writeByte(param);
+        ensure(2);
+        buf.put(BYTE_SIZE).put(param);
     }
 
     /**
@@ -61,9 +206,8 @@ public class Bytecode {
      * @see <a href="https://le-www-live-s.legocdn.com/sc/media/files/ev3-developer-kit/lego%20mindstorms%20ev3%20firmware%20developer%20kit-7be073548547d99f7df59ddfd57c0088.pdf?la=en-us">LEGO Mindstorms GenEV3 Firmware Developer Kit</a>
      */
     public void addParameter(short param) throws IOException {
-        out.writeByte(SHORT_SIZE);
-        out.writeByte(param);
-        out.writeByte(param >> 8);
+        ensure(3);
+        buf.put(SHORT_SIZE).putShort(param);
     }
 
     /**
@@ -74,11 +218,28 @@ public class Bytecode {
      * @see <a href="https://le-www-live-s.legocdn.com/sc/media/files/ev3-developer-kit/lego%20mindstorms%20ev3%20firmware%20developer%20kit-7be073548547d99f7df59ddfd57c0088.pdf?la=en-us">LEGO Mindstorms GenEV3 Firmware Developer Kit</a>
      */
     public void addParameter(int param) throws IOException {
-        out.writeByte(INT_SIZE);
-        out.writeByte(param);
-        out.writeByte(param >> 8);
-        out.writeByte(param >> 16);
-        out.writeByte(param >> 24);
+        ensure(5);
+        buf.put(INT_SIZE).putInt(param);
+    }
+
+    /**
+     * Append the given constant in the shortest legal encoding: LC0 within range [ -31 - 31 ], LC1 within the range of bytes, LC2 within the range of shorts and LC4 otherwise.
+     * The brick converts constants to the type expected by each parameter, hence this can replace any of the {@code addParameter} methods for constant parameters.
+     *
+     * @param value the constant.
+     * @throws IOException thrown when communication errors occur.
+     * @see <a href="https://le-www-live-s.legocdn.com/sc/media/files/ev3-developer-kit/lego%20mindstorms%20ev3%20firmware%20developer%20kit-7be073548547d99f7df59ddfd57c0088.pdf?la=en-us">LEGO Mindstorms GenEV3 Firmware Developer Kit</a>
+     */
+    public void addConstant(int value) throws IOException {
+        if (value >= LC0_MIN && value <= LC0_MAX) {
+            ensure(1);
+            buf.put((byte) (value & 0x3F));
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+            addParameter((byte) value);
+        else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE)
+            addParameter((short) value);
+        else
+            addParameter(value);
     }
 
     /**
@@ -89,7 +250,270 @@ public class Bytecode {
      * @see <a href="https://le-www-live-s.legocdn.com/sc/media/files/ev3-developer-kit/lego%20mindstorms%20ev3%20firmware%20developer%20kit-7be073548547d99f7df59ddfd57c0088.pdf?la=en-us">LEGO Mindstorms GenEV3 Firmware Developer Kit</a>
      */
     public void addGlobalIndex(byte index) throws IOException {
-        out.writeByte(index + 0x60);
+        addGlobalIndex(index & 0xFF);
+    }
+
+    /**
+     * Append the global index part in the shortest legal encoding: GV0 up to 31, GV1 up to 255 and GV2 otherwise.
+     *
+     * @param index the index, i.e. the offset in bytes within the global buffer, within range [ 0 - 1023 ].
+     * @throws IOException              thrown when communication errors occur.
+     * @throws IllegalArgumentException thrown when the index is out of range.
+     * @see <a href="https://le-www-live-s.legocdn.com/sc/media/files/ev3-developer-kit/lego%20mindstorms%20ev3%20firmware%20developer%20kit-7be073548547d99f7df59ddfd57c0088.pdf?la=en-us">LEGO Mindstorms GenEV3 Firmware Developer Kit</a>
+     */
+    public void addGlobalIndex(int index) throws IOException {
+        if (index < 0 || index > MAX_GLOBAL_INDEX)
+            throw new IllegalArgumentException(String.format("global index %d out of range", index));
+        ensure(3);
+        markGlobal(length());
+        if (index <= GV0_MAX)
+            buf.put((byte) (GV0 + index));
+        else if (index <= 0xFF)
+            buf.put(GV1).put((byte) index);
+        else
+            buf.put(GV2).putShort((short) index);
+    }
+
+    /**
+     * Append the local index part in the shortest legal encoding: LV0 up to 31 and LV1 otherwise.
+     *
+     * @param index the index, i.e. the offset in bytes within the local buffer, within range [ 0 - 62 ].
+     * @throws IOException              thrown when communication errors occur.
+     * @throws IllegalArgumentException thrown when the index is out of range.
+     * @see <a href="https://le-www-live-s.legocdn.com/sc/media/files/ev3-developer-kit/lego%20mindstorms%20ev3%20firmware%20developer%20kit-7be073548547d99f7df59ddfd57c0088.pdf?la=en-us">LEGO Mindstorms GenEV3 Firmware Developer Kit</a>
+     */
+    public void addLocalIndex(int index) throws IOException {
+        if (index < 0 || index >= MAX_LOCAL_RESERVATION)
+            throw new IllegalArgumentException(String.format("local index %d out of range", index));
+        ensure(2);
+        if (index <= GV0_MAX)
+            buf.put((byte) (LV0 + index));
+        else
+            buf.put(LV1).put((byte) index);
+    }
+
+    // offsets are aligned to the natural alignment of the variable, arrays and strings to 4 bytes
+    private static int align(int offset, int size) {
+        final int a = size >= 4 ? 4 : size >= 2 ? 2 : 1;
+        return (offset + a - 1) & -a;
+    }
+
+    /**
+     * Allocate a named global variable of the given size.
+     * The global reservation needed by the command grows accordingly, see {@link #getGlobalReservation()}.
+     *
+     * @param name the name of the variable.
+     * @param size the size in bytes, e.g. 4 for a float and 1 for an 8-bit integer.
+     * @return the global index of the variable, aligned to its size.
+     * @throws IllegalArgumentException thrown when the name is already allocated or the global buffer would exceed {@link #MAX_GLOBAL_RESERVATION}.
+     */
+    public int allocGlobal(@NonNull String name, int size) {
+        if (globalNames == null)
+            globalNames = new HashMap<>();
+        final int r = alloc(globalNames, name, globalSize, size, MAX_GLOBAL_RESERVATION, "global");
+        globalSize = r + size;
+        return r;
+    }
+
+    /**
+     * Allocate a named local variable of the given size.
+     * Local variables live only while the command runs and are not returned within the reply; they are not initialized.
+     *
+     * @param name the name of the variable.
+     * @param size the size in bytes, e.g. 4 for a float and 1 for an 8-bit integer.
+     * @return the local index of the variable, aligned to its size.
+     * @throws IllegalArgumentException thrown when the name is already allocated or the local buffer would exceed {@link #MAX_LOCAL_RESERVATION}.
+     */
+    public int allocLocal(@NonNull String name, int size) {
+        if (localNames == null)
+            localNames = new HashMap<>();
+        final int r = alloc(localNames, name, localSize, size, MAX_LOCAL_RESERVATION, "local");
+        localSize = r + size;
+        return r;
+    }
+
+    private static int alloc(@NonNull HashMap<String, Integer> names, @NonNull String name, int used, int size, int max, @NonNull String kind) {
+        if (size <= 0)
+            throw new IllegalArgumentException(String.format("%s variable '%s' must have a positive size", kind, name));
+        if (names.containsKey(name))
+            throw new IllegalArgumentException(String.format("%s variable '%s' already allocated", kind, name));
+        final int r = align(used, size);
+        if (r + size > max)
+            throw new IllegalArgumentException(String.format("%s variable '%s' exceeds the %s reservation of %d bytes", kind, name, kind, max));
+        names.put(name, r);
+        return r;
+    }
+
+    /**
+     * Append a reference to a named global variable.
+     *
+     * @param name the name of the variable.
+     * @throws IOException              thrown when communication errors occur.
+     * @throws IllegalArgumentException thrown when no global variable with the given name has been allocated.
+     * @see #allocGlobal(String, int)
+     */
+    public void addGlobal(@NonNull String name) throws IOException {
+        addGlobalIndex(lookup(globalNames, name, "global"));
+    }
+
+    /**
+     * Append a reference to a named local variable.
+     *
+     * @param name the name of the variable.
+     * @throws IOException              thrown when communication errors occur.
+     * @throws IllegalArgumentException thrown when no local variable with the given name has been allocated.
+     * @see #allocLocal(String, int)
+     */
+    public void addLocal(@NonNull String name) throws IOException {
+        addLocalIndex(lookup(localNames, name, "local"));
+    }
+
+    private static int lookup(@Nullable HashMap<String, Integer> names, @NonNull String name, @NonNull String kind) {
+        Integer r = names != null ? names.get(name) : null;
+        if (r == null)
+            throw new IllegalArgumentException(String.format("%s variable '%s' not allocated", kind, name));
+        return r;
+    }
+
+    /**
+     * Get the global reservation needed by this bytecode: the space allocated for named global variables, or more if plain global indices refer beyond it.
+     * Plain global indices added via {@link #addGlobalIndex(int)} are accounted as 1 byte each, hence commands reading wider values at plain indices must still pass their reservation explicitly.
+     *
+     * @return the global reservation in bytes.
+     */
+    public int getGlobalReservation() {
+        return Math.max(globalSize, getMaxGlobalIndex() + 1);
+    }
+
+    /**
+     * Get the local reservation needed by this bytecode, i.e. the space allocated for named local variables.
+     *
+     * @return the local reservation in bytes.
+     */
+    public int getLocalReservation() {
+        return localSize;
+    }
+
+    /**
+     * Create a new unbound label for this bytecode.
+     *
+     * @return a new object of type {@link Label}.
+     */
+    @NonNull
+    public Label newLabel() {
+        return new Label(this);
+    }
+
+    /**
+     * Bind the given label to the current position, i.e. the position of the next op-code to be appended.
+     * Jumps already referring to the label are resolved.
+     *
+     * @param label the label.
+     * @throws IllegalArgumentException thrown when the label belongs to another bytecode.
+     * @throws IllegalStateException    thrown when the label has already been bound.
+     */
+    public void bind(@NonNull Label label) {
+        checkOwner(label);
+        if (label.isBound())
+            throw new IllegalStateException("label already bound");
+        label.position = length();
+        int k = 0;
+        for (int i = 0; i < nfixups; ++i) {
+            if (fixupLabels[i] == label)
+                patch(fixups[i], 2, label.position - (fixups[i] + 2));
+            else {
+                fixups[k] = fixups[i];
+                fixupLabels[k++] = fixupLabels[i];
+            }
+        }
+        Arrays.fill(fixupLabels, k, nfixups, null);
+        nfixups = k;
+    }
+
+    private void checkOwner(@NonNull Label label) {
+        if (label.owner != this)
+            throw new IllegalArgumentException("label belongs to another bytecode");
+    }
+
+    /**
+     * Append the offset parameter of a jump to the given label, which may be bound either before or after this call.
+     * The offset is the last parameter of all jump op-codes, e.g. {@link Const#JR}, {@link Const#JR_TRUE} or {@link Const#JR_LT8}, and is relative to the end of the jump:
+     * it is always encoded as a 16-bit constant, so that forward jumps can be resolved in place once the label is bound.
+     *
+     * @param label the target label.
+     * @throws IOException              thrown when communication errors occur.
+     * @throws IllegalArgumentException thrown when the label belongs to another bytecode.
+     */
+    public void addOffset(@NonNull Label label) throws IOException {
+        checkOwner(label);
+        addParameter((short) 0);
+        final int pos = length() - 2;
+        jumps = true;
+        if (label.isBound()) {
+            patch(pos, 2, label.position - (pos + 2));
+            return;
+        }
+        if (nfixups == fixups.length) {
+            fixups = Arrays.copyOf(fixups, Math.max(4, 2 * nfixups));
+            fixupLabels = Arrays.copyOf(fixupLabels, fixups.length);
+        }
+        fixups[nfixups] = pos;
+        fixupLabels[nfixups++] = label;
+    }
+
+    private void checkResolved() {
+        if (nfixups > 0)
+            throw new IllegalStateException(String.format("%d jumps refer to unbound labels", nfixups));
+    }
+
+    // whether global indices can be shifted: re-encoding them would move the targets of jumps
+    boolean isRelocatable() {
+        return !jumps;
+    }
+
+    // decode the global index encoded at the given position, in any form
+    private static int decodeGlobal(@NonNull byte[] a, int p) {
+        if (a[p] == GV1)
+            return a[p + 1] & 0xFF;
+        if (a[p] == GV2)
+            return (a[p + 1] & 0xFF) | ((a[p + 2] & 0xFF) << 8);
+        return a[p] & GV0_MAX;
+    }
+
+    // size in bytes of the global index encoded at the given position
+    private static int globalSize(@NonNull byte[] a, int p) {
+        return a[p] == GV1 ? 2 : a[p] == GV2 ? 3 : 1;
+    }
+
+    private void markGlobal(int pos) {
+        if (nglobals == globals.length)
+            globals = Arrays.copyOf(globals, 2 * globals.length);
+        globals[nglobals++] = pos;
+    }
+
+    /**
+     * Get the highest global index referred to by this bytecode.
+     *
+     * @return the highest global index, or -1 when no global index has been added.
+     */
+    public int getMaxGlobalIndex() {
+        int r = -1;
+        for (int i = 0; i < nglobals; ++i)
+            r = Math.max(r, decodeGlobal(buf.array(), globals[i]));
+        return r;
+    }
+
+    static int getMaxGlobalIndex(@NonNull byte[] a, @NonNull int[] positions) {
+        int r = -1;
+        for (int p : positions)
+            r = Math.max(r, decodeGlobal(a, p));
+        return r;
+    }
+
+    // positions of the global indices within the bytes
+    @NonNull
+    int[] getGlobalPositions() {
+        return Arrays.copyOf(globals, nglobals);
     }
 
     /**
@@ -99,16 +523,101 @@ public class Bytecode {
      * @throws IOException thrown when communication errors occur.
      */
     public void append(@NonNull Bytecode bc) throws IOException {
-        out.write(bc.getBytes());
+        append(bc, 0);
+    }
+
+    /**
+     * Append another object of type {@link Bytecode}, shifting all its global indices by the given offset.
+     * This allows merging commands that share one global buffer: each appended bytecode writes its results at its own offset.
+     * Shifted indices are re-encoded in the shortest legal form, which may be longer than the original one.
+     * Local variables of both bytecodes share the same local buffer, which is as large as the largest of the two.
+     *
+     * @param bc     the bytecode to be appended.
+     * @param offset the offset in bytes to be added to each global index of the appended bytecode.
+     * @throws IOException              thrown when communication errors occur.
+     * @throws IllegalArgumentException thrown when a shifted global index exceeds {@link #MAX_GLOBAL_INDEX}, or when global indices of a bytecode containing jumps would be shifted.
+     * @throws IllegalStateException    thrown when the appended bytecode contains jumps to unbound labels.
+     */
+    public void append(@NonNull Bytecode bc, int offset) throws IOException {
+        bc.checkResolved();
+        if (offset != 0 && bc.nglobals > 0 && !bc.isRelocatable())
+            throw new IllegalArgumentException("global indices of a bytecode with jumps cannot be shifted");
+        append(bc.buf.array(), 0, bc.length(), bc.globals, bc.nglobals, offset);
+        jumps |= bc.jumps;
+        localSize = Math.max(localSize, bc.localSize);
+        if (bc.globalSize > 0)
+            globalSize = Math.max(globalSize, offset + bc.globalSize);
+    }
+
+    // append the given bytes, whose global indices are at the given positions, shifting them by the given offset; the byte array is not modified
+    void append(@NonNull byte[] bytes, @NonNull int[] positions, int offset) throws IOException {
+        append(bytes, 0, bytes.length, positions, positions.length, offset);
+    }
+
+    private void append(@NonNull byte[] bytes, int from, int len, @NonNull int[] positions, int npositions, int offset) throws IOException {
+        if (offset == 0 || npositions == 0) {
+            ensure(len);
+            final int base = length();
+            buf.put(bytes, from, len);
+            for (int i = 0; i < npositions; ++i)
+                markGlobal(base + positions[i]);
+            return;
+        }
+        // copy the segments between global indices and re-encode each shifted index, as its encoding may grow
+        final int mark = buf.position(), marked = nglobals;
+        int last = 0;
+        for (int i = 0; i < npositions; ++i) {
+            final int p = positions[i];
+            ensure(p - last);
+            buf.put(bytes, from + last, p - last);
+            try {
+                addGlobalIndex(decodeGlobal(bytes, from + p) + offset);
+            } catch (IllegalArgumentException e) {
+                buf.position(mark);
+                nglobals = marked;
+                throw e;
+            }
+            last = p + globalSize(bytes, from + p);
+        }
+        ensure(len - last);
+        buf.put(bytes, from + last, len - last);
+    }
+
+    // append precompiled bytes whose global indices are at the given positions, with no decoding
+    void load(@NonNull byte[] bytes, @NonNull int[] positions) {
+        ensure(bytes.length);
+        final int base = length();
+        buf.put(bytes);
+        if (nglobals + positions.length > globals.length)
+            globals = Arrays.copyOf(globals, Math.max(2 * globals.length, nglobals + positions.length));
+        for (int p : positions)
+            globals[nglobals++] = base + p;
+    }
+
+    // overwrite the value of a fixed-size parameter at the given position
+    void patch(int pos, int width, int value) {
+        switch (width) {
+            case 1:
+                buf.put(pos, (byte) value);
+                break;
+            case 2:
+                buf.putShort(pos, (short) value);
+                break;
+            default:
+                buf.putInt(pos, value);
+        }
     }
 
     /**
      * Get the bytecode as a byte array.
+     * This copies the bytecode into a new array, hence the result is not affected by later changes to this object and survives its recycling.
      *
      * @return the byte array representing this bytecode.
+     * @throws IllegalStateException thrown when jumps refer to unbound labels.
      */
     @NonNull
     public byte[] getBytes() {
-        return underlying.toByteArray();
+        checkResolved();
+        return Arrays.copyOf(buf.array(), buf.position());
     }
 }
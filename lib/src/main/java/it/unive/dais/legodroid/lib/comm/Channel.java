@@ -1,6 +1,7 @@
 package it.unive.dais.legodroid.lib.comm;
 
 import java.io.IOException;
+import java.util.List;
 
 import androidx.annotation.NonNull;
 
@@ -19,10 +20,22 @@ public interface Channel extends AutoCloseable {
      */
     void send(@NonNull Command data) throws IOException;
 
+    /**
+     * Send a sequence of {@link Command} objects synchronously, in order.
+     * Implementations should gather them into as few writes as possible; the default implementation sends them one by one.
+     *
+     * @param data the commands to be sent.
+     * @throws IOException thrown when communication errors occur.
+     */
+    default void send(@NonNull List<Command> data) throws IOException {
+        for (Command c : data)
+            send(c);
+    }
+
     /**
      * Receive a {@link Reply} synchronously, i.e. this method is <b>blocks</b> until a reply is actually read from the channel.
      *
-     * @return the object of type {@link Reply}.
+     * @return the object of type {@link Reply}, which the caller owns and should release once decoded, see {@link Reply#release()}.
      * @throws IOException thrown when communication errors occur.
      */
     @NonNull
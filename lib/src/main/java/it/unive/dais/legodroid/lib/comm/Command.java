@@ -8,25 +8,24 @@ import androidx.annotation.NonNull;
  */
 public class Command extends Packet {
 
-    private static int sequenceCounter = 0;
-
     private boolean hasReply;
     private int reservationH;
     private int reservationL;
 
     /**
-     * Create a command given some parameters.
+     * Create a command given some parameters and an explicit sequence number.
      *
+     * @param counter           the sequence number of the command, within range [ 0 - 65535 ].
      * @param hasReply          true if the commands expects a reply; false otherwise.
      * @param localReservation  local reservation in bytes.
      * @param globalReservation global reservation in bytes.
      * @param bytecode          the bytecode of the command.
      */
-    public Command(boolean hasReply, int localReservation, int globalReservation, @NonNull byte[] bytecode) {
-        super(Command.sequenceCounter++, bytecode);
+    public Command(int counter, boolean hasReply, int localReservation, int globalReservation, @NonNull byte[] bytecode) {
+        super(counter & 0xFFFF, bytecode);
         if (globalReservation > 1024)
             throw new IllegalArgumentException("global buffer must be less than 1024 bytes");
-        if (localReservation > 64)
+        if (localReservation >= 64)
             throw new IllegalArgumentException("local buffer must be less than 64 bytes");
 
         this.hasReply = hasReply;
@@ -34,6 +33,96 @@ public class Command extends Packet {
         this.reservationL = globalReservation & 0xFF;
     }
 
+    /**
+     * Create a command given some parameters.
+     * The sequence number is left to 0: asynchronous channels assign their own sequence number when the command is sent.
+     *
+     * @param hasReply          true if the commands expects a reply; false otherwise.
+     * @param localReservation  local reservation in bytes.
+     * @param globalReservation global reservation in bytes.
+     * @param bytecode          the bytecode of the command.
+     * @see AsyncChannel#send(Command)
+     */
+    public Command(boolean hasReply, int localReservation, int globalReservation, @NonNull byte[] bytecode) {
+        this(0, hasReply, localReservation, globalReservation, bytecode);
+    }
+
+    private Command(int counter, @NonNull Command cmd) {
+        super(counter & 0xFFFF, cmd.data);
+        this.hasReply = cmd.hasReply;
+        this.reservationH = cmd.reservationH;
+        this.reservationL = cmd.reservationL;
+    }
+
+    /**
+     * Create a copy of this command with a different sequence number.
+     * The bytecode is shared, not copied.
+     *
+     * @param counter the new sequence number.
+     * @return a new object of type {@link Command}.
+     */
+    @NonNull
+    public Command withCounter(int counter) {
+        return new Command(counter, this);
+    }
+
+    /**
+     * Check whether the command expects a reply.
+     *
+     * @return true if the command expects a reply; false otherwise.
+     */
+    public boolean hasReply() {
+        return hasReply;
+    }
+
+    /**
+     * Get the global reservation of the command.
+     *
+     * @return the global reservation in bytes.
+     */
+    public int getGlobalReservation() {
+        return ((reservationH & 0x03) << 8) | reservationL;
+    }
+
+    /**
+     * Get the local reservation of the command.
+     *
+     * @return the local reservation in bytes.
+     */
+    public int getLocalReservation() {
+        return reservationH >> 2;
+    }
+
+    /**
+     * Get the size of the frame of this command, i.e. the length prefix plus the serialized command.
+     *
+     * @return the size in bytes.
+     */
+    public int getFrameSize() {
+        return 7 + data.length;
+    }
+
+    /**
+     * Serialize the command, prefixed by its length, into the given array with no intermediate copy.
+     *
+     * @param dst the destination array.
+     * @param off the offset where the frame begins.
+     * @return the number of bytes written, i.e. {@link #getFrameSize()}.
+     * @throws IndexOutOfBoundsException thrown when the frame does not fit the array.
+     */
+    public int writeFrame(@NonNull byte[] dst, int off) {
+        final int len = 5 + data.length;
+        dst[off] = (byte) (len & 0xFF);
+        dst[off + 1] = (byte) ((len >> 8) & 0xFF);
+        dst[off + 2] = (byte) (getCounter() & 0xFF);
+        dst[off + 3] = (byte) ((getCounter() >> 8) & 0xFF);
+        dst[off + 4] = hasReply ? Const.DIRECT_COMMAND_REPLY : Const.DIRECT_COMMAND_NOREPLY;
+        dst[off + 5] = (byte) (this.reservationL & 0xFF);
+        dst[off + 6] = (byte) (this.reservationH & 0xFF);
+        System.arraycopy(data, 0, dst, off + 7, data.length);
+        return len + 2;
+    }
+
     /**
      * Serialized the command into an array of bytes.
      *
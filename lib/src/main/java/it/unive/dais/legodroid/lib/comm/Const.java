@@ -13,6 +13,67 @@ public class Const {
     public static final byte DIRECT_COMMAND_SUCCESS = (byte) 0x02;
     public static final byte DIRECT_COMMAND_FAIL = (byte) 0x04;
 
+    // Direct Commands - GENERAL
+    public static final byte NOP = (byte) 0x01;
+
+    // Direct Commands - MATH
+    public static final byte ADD8 = (byte) 0x10;
+    public static final byte ADD16 = (byte) 0x11;
+    public static final byte ADD32 = (byte) 0x12;
+    public static final byte ADDF = (byte) 0x13;
+    public static final byte SUB8 = (byte) 0x14;
+    public static final byte SUB16 = (byte) 0x15;
+    public static final byte SUB32 = (byte) 0x16;
+    public static final byte SUBF = (byte) 0x17;
+
+    // Direct Commands - MOVE
+    public static final byte MOVE8_8 = (byte) 0x30;
+    public static final byte MOVE8_16 = (byte) 0x31;
+    public static final byte MOVE8_32 = (byte) 0x32;
+    public static final byte MOVE8_F = (byte) 0x33;
+    public static final byte MOVE16_8 = (byte) 0x34;
+    public static final byte MOVE16_16 = (byte) 0x35;
+    public static final byte MOVE16_32 = (byte) 0x36;
+    public static final byte MOVE16_F = (byte) 0x37;
+    public static final byte MOVE32_8 = (byte) 0x38;
+    public static final byte MOVE32_16 = (byte) 0x39;
+    public static final byte MOVE32_32 = (byte) 0x3A;
+    public static final byte MOVE32_F = (byte) 0x3B;
+    public static final byte MOVEF_8 = (byte) 0x3C;
+    public static final byte MOVEF_16 = (byte) 0x3D;
+    public static final byte MOVEF_32 = (byte) 0x3E;
+    public static final byte MOVEF_F = (byte) 0x3F;
+
+    // Direct Commands - PROGRAM FLOW
+    public static final byte JR = (byte) 0x40;
+    public static final byte JR_FALSE = (byte) 0x41;
+    public static final byte JR_TRUE = (byte) 0x42;
+    public static final byte JR_NAN = (byte) 0x43;
+    public static final byte JR_LT8 = (byte) 0x64;
+    public static final byte JR_LT16 = (byte) 0x65;
+    public static final byte JR_LT32 = (byte) 0x66;
+    public static final byte JR_LTF = (byte) 0x67;
+    public static final byte JR_GT8 = (byte) 0x68;
+    public static final byte JR_GT16 = (byte) 0x69;
+    public static final byte JR_GT32 = (byte) 0x6A;
+    public static final byte JR_GTF = (byte) 0x6B;
+    public static final byte JR_EQ8 = (byte) 0x6C;
+    public static final byte JR_EQ16 = (byte) 0x6D;
+    public static final byte JR_EQ32 = (byte) 0x6E;
+    public static final byte JR_EQF = (byte) 0x6F;
+    public static final byte JR_NEQ8 = (byte) 0x70;
+    public static final byte JR_NEQ16 = (byte) 0x71;
+    public static final byte JR_NEQ32 = (byte) 0x72;
+    public static final byte JR_NEQF = (byte) 0x73;
+    public static final byte JR_LTEQ8 = (byte) 0x74;
+    public static final byte JR_LTEQ16 = (byte) 0x75;
+    public static final byte JR_LTEQ32 = (byte) 0x76;
+    public static final byte JR_LTEQF = (byte) 0x77;
+    public static final byte JR_GTEQ8 = (byte) 0x78;
+    public static final byte JR_GTEQ16 = (byte) 0x79;
+    public static final byte JR_GTEQ32 = (byte) 0x7A;
+    public static final byte JR_GTEQF = (byte) 0x7B;
+
     // Direct Commands - SOUND
     public static final byte SOUND_CONTROL = (byte) 0x94;
 
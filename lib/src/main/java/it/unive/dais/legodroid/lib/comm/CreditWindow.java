@@ -0,0 +1,104 @@
+package it.unive.dais.legodroid.lib.comm;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * This class implements the in-flight window of an asynchronous channel.
+ * Each reply-bearing command takes one credit plus as many bytes as its global reservation, and gives them back once its reply has arrived.
+ * A command whose reservation exceeds the byte limit on its own is admitted only when the window is empty, so it cannot starve.
+ */
+class CreditWindow {
+    private final int maxCount;
+    private final int maxBytes;
+    private int count = 0;
+    private int bytes = 0;
+
+    /**
+     * Create a window given its limits.
+     *
+     * @param maxCount maximum number of reply-bearing commands in flight.
+     * @param maxBytes maximum amount of global reservation in flight, in bytes.
+     */
+    CreditWindow(int maxCount, int maxBytes) {
+        if (maxCount < 1 || maxCount > ReplyTable.SLOTS)
+            throw new IllegalArgumentException(String.format("in-flight window must be within range [ 1 - %d ]", ReplyTable.SLOTS));
+        if (maxBytes < 0)
+            throw new IllegalArgumentException("in-flight reservation must be non-negative");
+        this.maxCount = maxCount;
+        this.maxBytes = maxBytes;
+    }
+
+    private boolean fits(int reservation) {
+        return count < maxCount && (bytes + reservation <= maxBytes || count == 0);
+    }
+
+    /**
+     * Take credits for a command without blocking.
+     *
+     * @param reservation the global reservation of the command.
+     * @return true if credits have been taken; false if the window is full.
+     */
+    synchronized boolean tryAcquire(int reservation) {
+        if (!fits(reservation))
+            return false;
+        ++count;
+        bytes += reservation;
+        return true;
+    }
+
+    /**
+     * Take credits for a command, blocking until they are available.
+     *
+     * @param reservation the global reservation of the command.
+     * @param timeoutMs   maximum wait in milliseconds.
+     * @throws InterruptedException       thrown when interrupted.
+     * @throws RejectedExecutionException thrown when the timeout expires.
+     */
+    synchronized void acquire(int reservation, long timeoutMs) throws InterruptedException {
+        awaitUntil(reservation, timeoutMs);
+        ++count;
+        bytes += reservation;
+    }
+
+    /**
+     * Block until there is room for a command, without taking credits.
+     * This is meant for commands with no reply, which would never give their credits back.
+     *
+     * @param timeoutMs maximum wait in milliseconds.
+     * @throws InterruptedException       thrown when interrupted.
+     * @throws RejectedExecutionException thrown when the timeout expires.
+     */
+    synchronized void awaitRoom(long timeoutMs) throws InterruptedException {
+        awaitUntil(0, timeoutMs);
+    }
+
+    /**
+     * Check whether there is room for a command, without taking credits.
+     *
+     * @return true if the window is not full.
+     */
+    synchronized boolean hasRoom() {
+        return fits(0);
+    }
+
+    private void awaitUntil(int reservation, long timeoutMs) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!fits(reservation)) {
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0)
+                throw new RejectedExecutionException(String.format("in-flight window full (%d commands, %d bytes)", count, bytes));
+            wait(left);
+        }
+    }
+
+    /**
+     * Give back the credits taken by a command.
+     *
+     * @param reservation the global reservation of the command.
+     */
+    synchronized void release(int reservation) {
+        --count;
+        bytes -= reservation;
+        notifyAll();
+    }
+}
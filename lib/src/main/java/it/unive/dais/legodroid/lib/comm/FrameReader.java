@@ -0,0 +1,227 @@
+package it.unive.dais.legodroid.lib.comm;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * This class decodes reply frames from a stream, reading it in large chunks: a single read may bring in any number of frames, which are then handed out one by one with no further read.
+ * Replies are read-only views into the chunk they were read into, hence the payload is never copied after it has left the stream.
+ * A chunk is recycled once the reader has moved past it and all the replies viewing it have been released via {@link Reply#release()};
+ * replies that are never released simply keep their chunk from being recycled until they are garbage collected.
+ * Instances of this class are not thread-safe: each channel owns one and serializes its receives, though replies can be released from any thread.
+ * Besides blocking streams, a reader can be fed from a non-blocking channel via {@link #fill(ReadableByteChannel)} and drained via {@link #poll()}, as {@link IoReactor} does.
+ */
+public class FrameReader {
+    static final int DEFAULT_CHUNK_SIZE = 2048;
+    private static final int POOL_SIZE = 4;
+    // length prefix, counter and status
+    private static final int PREFIX_SIZE = 2;
+    private static final int MIN_FRAME_SIZE = 3;
+
+    /**
+     * This class represents a buffer shared by the reader and the replies viewing it.
+     */
+    static final class Chunk {
+        @NonNull
+        final byte[] buf;
+        @NonNull
+        private final FrameReader owner;
+        @NonNull
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        private Chunk(@NonNull FrameReader owner, int size) {
+            this.owner = owner;
+            this.buf = new byte[size];
+        }
+
+        void retain() {
+            refs.incrementAndGet();
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0)
+                owner.recycle(this);
+        }
+
+        // true when nobody but the reader refers to this chunk, hence its bytes can be overwritten
+        private boolean isExclusive() {
+            return refs.get() == 1;
+        }
+    }
+
+    @Nullable
+    private final InputStream in;
+    private final int chunkSize;
+    @NonNull
+    private final AtomicReferenceArray<Chunk> pool = new AtomicReferenceArray<>(POOL_SIZE);
+    @NonNull
+    private Chunk chunk;
+    @Nullable
+    private ByteBuffer view = null;
+    private int start = 0, end = 0;
+    private long reads = 0;
+
+    /**
+     * Create a reader with the default chunk size.
+     *
+     * @param in the input stream.
+     */
+    public FrameReader(@NonNull InputStream in) {
+        this(in, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Create a reader given the chunk size.
+     *
+     * @param in        the input stream.
+     * @param chunkSize the size in bytes of the chunks the stream is read into; larger frames get a chunk of their own.
+     */
+    public FrameReader(@NonNull InputStream in, int chunkSize) {
+        this.in = in;
+        this.chunkSize = Math.max(chunkSize, 64);
+        this.chunk = new Chunk(this, this.chunkSize);
+    }
+
+    /**
+     * Create a reader with no stream, to be fed via {@link #fill(ReadableByteChannel)}.
+     *
+     * @param chunkSize the size in bytes of the chunks; larger frames get a chunk of their own.
+     */
+    FrameReader(int chunkSize) {
+        this.in = null;
+        this.chunkSize = Math.max(chunkSize, 64);
+        this.chunk = new Chunk(this, this.chunkSize);
+    }
+
+    @NonNull
+    private Chunk obtain(int size) {
+        if (size <= chunkSize) {
+            for (int i = 0; i < POOL_SIZE; ++i) {
+                Chunk c = pool.get(i);
+                if (c != null && pool.compareAndSet(i, c, null)) {
+                    c.refs.set(1);
+                    return c;
+                }
+            }
+        }
+        return new Chunk(this, Math.max(size, chunkSize));
+    }
+
+    private void recycle(@NonNull Chunk c) {
+        if (c.buf.length != chunkSize)
+            return;
+        for (int i = 0; i < POOL_SIZE; ++i)
+            if (pool.get(i) == null && pool.compareAndSet(i, null, c))
+                return;
+    }
+
+    /**
+     * Read the next reply, blocking until a whole frame is available.
+     * Frames already buffered by a previous read are returned with no access to the stream.
+     *
+     * @return an object of type {@link Reply} viewing the buffer; call {@link Reply#release()} once it has been decoded.
+     * @throws EOFException thrown when the stream ends.
+     * @throws IOException  thrown when communication errors occur or the frame is malformed.
+     */
+    @NonNull
+    public Reply read() throws IOException {
+        Reply r;
+        while ((r = poll()) == null)
+            fill();
+        return r;
+    }
+
+    /**
+     * Get the next reply if a whole frame is already buffered, with no access to the stream.
+     * When it returns null, room for the pending frame has been made in the current chunk, hence the next fill cannot overflow it.
+     *
+     * @return an object of type {@link Reply} viewing the buffer, or null if more bytes are needed.
+     * @throws IOException thrown when the frame is malformed.
+     */
+    @Nullable
+    Reply poll() throws IOException {
+        if (start == end && start > 0 && chunk.isExclusive())
+            start = end = 0;
+        int need = PREFIX_SIZE;
+        if (end - start >= PREFIX_SIZE) {
+            final byte[] b = chunk.buf;
+            final int len = (b[start] & 0xFF) | ((b[start + 1] & 0xFF) << 8);
+            if (len < MIN_FRAME_SIZE)
+                throw new IOException(String.format("malformed frame of length %d", len));
+            need = PREFIX_SIZE + len;
+            if (end - start >= need) {
+                final int p = start + PREFIX_SIZE;
+                start += need;
+                return new Reply((b[p] & 0xFF) | ((b[p + 1] & 0xFF) << 8), b[p + 2] != Const.DIRECT_COMMAND_SUCCESS, b, p + MIN_FRAME_SIZE, len - MIN_FRAME_SIZE, chunk);
+            }
+        }
+        if (chunk.buf.length - start < need)
+            move(need);
+        return null;
+    }
+
+    // the pending frame does not fit the rest of the chunk: shift it to the front, or carry it over to another chunk if replies still view this one
+    private void move(int need) {
+        final int pending = end - start;
+        if (chunk.isExclusive() && chunk.buf.length >= need) {
+            System.arraycopy(chunk.buf, start, chunk.buf, 0, pending);
+        } else {
+            Chunk c = obtain(need);
+            System.arraycopy(chunk.buf, start, c.buf, 0, pending);
+            chunk.release();
+            chunk = c;
+        }
+        start = 0;
+        end = pending;
+    }
+
+    private void fill() throws IOException {
+        final int n = Objects.requireNonNull(in).read(chunk.buf, end, chunk.buf.length - end);
+        if (n < 0)
+            throw new EOFException(String.format("end of stream with %d bytes of a frame pending", end - start));
+        end += n;
+        ++reads;
+    }
+
+    /**
+     * Read from a non-blocking channel into the current chunk whatever is available, to be called after {@link #poll()} has returned null.
+     *
+     * @param ch the channel.
+     * @return the number of bytes read, possibly 0.
+     * @throws EOFException thrown when the channel has reached the end of stream.
+     * @throws IOException  thrown when communication errors occur.
+     */
+    int fill(@NonNull ReadableByteChannel ch) throws IOException {
+        ByteBuffer v = view;
+        if (v == null || v.array() != chunk.buf)
+            view = v = ByteBuffer.wrap(chunk.buf);
+        v.limit(v.capacity());
+        v.position(end);
+        final int n = ch.read(v);
+        if (n < 0)
+            throw new EOFException(String.format("end of stream with %d bytes of a frame pending", end - start));
+        if (n > 0) {
+            end += n;
+            ++reads;
+        }
+        return n;
+    }
+
+    /**
+     * Get the number of reads performed on the stream so far.
+     *
+     * @return the number of reads.
+     */
+    public long getReads() {
+        return reads;
+    }
+}
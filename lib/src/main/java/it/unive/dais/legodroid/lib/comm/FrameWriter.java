@@ -0,0 +1,107 @@
+package it.unive.dais.legodroid.lib.comm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+
+/**
+ * This class frames commands into one reusable buffer: length prefix, sequence number, command type, reservations and bytecode are laid out in a single pass,
+ * ready for one write call. Once the buffer has grown to the largest frame seen, framing allocates nothing.
+ * {@link Channel} implementations share this path whether they write to an {@link OutputStream} or to a NIO channel, see {@link #frame(List)}.
+ * Instances of this class are not thread-safe: each channel owns one and serializes its sends.
+ */
+public class FrameWriter {
+    private static final int INITIAL_CAPACITY = 256;
+
+    @NonNull
+    private byte[] buf;
+    @NonNull
+    private ByteBuffer view;
+
+    /**
+     * Create a writer with a default initial capacity.
+     */
+    public FrameWriter() {
+        this(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Create a writer given the initial capacity of its buffer.
+     *
+     * @param capacity the initial capacity in bytes; the buffer grows as needed.
+     */
+    public FrameWriter(int capacity) {
+        buf = new byte[Math.max(capacity, 16)];
+        view = ByteBuffer.wrap(buf);
+    }
+
+    private void ensure(int len) {
+        if (buf.length < len) {
+            buf = new byte[Math.max(len, 2 * buf.length)];
+            view = ByteBuffer.wrap(buf);
+        }
+    }
+
+    /**
+     * Frame the given command into the buffer.
+     *
+     * @param cmd the command.
+     * @return a {@link ByteBuffer} positioned at the beginning of the frame and limited to its end, valid until the next call on this object.
+     */
+    @NonNull
+    public ByteBuffer frame(@NonNull Command cmd) {
+        ensure(cmd.getFrameSize());
+        final int len = cmd.writeFrame(buf, 0);
+        view.clear();
+        view.limit(len);
+        return view;
+    }
+
+    /**
+     * Frame all the given commands back to back into the buffer, in order.
+     *
+     * @param cmds the commands.
+     * @return a {@link ByteBuffer} positioned at the beginning of the first frame and limited to the end of the last one, valid until the next call on this object.
+     */
+    @NonNull
+    public ByteBuffer frame(@NonNull List<Command> cmds) {
+        int len = 0;
+        for (int i = 0; i < cmds.size(); ++i)
+            len += cmds.get(i).getFrameSize();
+        ensure(len);
+        int off = 0;
+        for (int i = 0; i < cmds.size(); ++i)
+            off += cmds.get(i).writeFrame(buf, off);
+        view.clear();
+        view.limit(off);
+        return view;
+    }
+
+    /**
+     * Frame the given command and write it to the stream with one write call.
+     *
+     * @param out the output stream.
+     * @param cmd the command.
+     * @throws IOException thrown when communication errors occur.
+     */
+    public void write(@NonNull OutputStream out, @NonNull Command cmd) throws IOException {
+        final int len = frame(cmd).limit();
+        out.write(buf, 0, len);
+    }
+
+    /**
+     * Frame all the given commands and write them to the stream with one write call, then flush it.
+     *
+     * @param out  the output stream.
+     * @param cmds the commands.
+     * @throws IOException thrown when communication errors occur.
+     */
+    public void write(@NonNull OutputStream out, @NonNull List<Command> cmds) throws IOException {
+        final int len = frame(cmds).limit();
+        out.write(buf, 0, len);
+        out.flush();
+    }
+}
@@ -0,0 +1,361 @@
+package it.unive.dais.legodroid.lib.comm;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import it.unive.dais.legodroid.lib.util.Prelude;
+
+import static it.unive.dais.legodroid.lib.util.Prelude.ReTAG;
+
+/**
+ * This class implements an I/O reactor serving any number of {@link SpooledAsyncChannel} objects over non-blocking sockets with a fixed number of threads.
+ * Each thread owns a {@link Selector} and a share of the channels: it writes the commands queued on a channel as soon as the channel wakes it up, reads replies
+ * as soon as the socket is readable, and dispatches them to the reply table of the channel, just like the writer and spooler threads of a standalone channel would do.
+ * Deadlines of pending replies and the link watchdog are driven by the selector timeout. Channels are assigned to the least loaded thread when they are created.
+ * Reply continuations run on the reactor thread, hence they must return quickly.
+ *
+ * @see SpooledAsyncChannel#SpooledAsyncChannel(StreamChannel, IoReactor)
+ */
+public class IoReactor implements AutoCloseable {
+    private static final String TAG = ReTAG("IoReactor");
+    // gathers written per channel at each wakeup, so that a busy channel does not starve the others
+    private static final int MAX_ROUNDS = 4;
+    // reads per channel at each selection
+    private static final int MAX_READS = 4;
+
+    @NonNull
+    private final Loop[] loops;
+
+    /**
+     * Create a reactor and start its threads.
+     *
+     * @param threads the number of threads, each one with a selector of its own.
+     * @throws IOException thrown when a selector cannot be opened.
+     */
+    public IoReactor(int threads) throws IOException {
+        loops = new Loop[Math.max(1, threads)];
+        try {
+            for (int i = 0; i < loops.length; ++i)
+                loops[i] = new Loop(i);
+        } catch (IOException e) {
+            for (Loop l : loops)
+                if (l != null)
+                    Prelude.trap(l.selector::close);
+            throw e;
+        }
+        for (Loop l : loops) {
+            Thread t = new Thread(l, l.TAG);
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    /**
+     * Create a reactor with a single thread.
+     *
+     * @throws IOException thrown when the selector cannot be opened.
+     */
+    public IoReactor() throws IOException {
+        this(1);
+    }
+
+    /**
+     * Get the number of threads of this reactor.
+     *
+     * @return the number of threads.
+     */
+    public int getThreadCount() {
+        return loops.length;
+    }
+
+    /**
+     * Get the number of channels currently served by this reactor.
+     *
+     * @return the number of channels.
+     */
+    public int getChannelCount() {
+        int n = 0;
+        for (Loop l : loops)
+            n += l.count.get();
+        return n;
+    }
+
+    // called by the constructor of the channel
+    @NonNull
+    Registration register(@NonNull SpooledAsyncChannel owner, @NonNull StreamChannel ch) {
+        Loop best = loops[0];
+        for (Loop l : loops)
+            if (l.count.get() < best.count.get())
+                best = l;
+        if (best.closed)
+            throw new IllegalStateException("reactor is closed");
+        Registration r = new Registration(best, owner, ch.getSocketChannel());
+        best.count.incrementAndGet();
+        r.wakeUp();
+        return r;
+    }
+
+    /**
+     * Stop the threads of the reactor. Channels still served by it fail with an {@link AsyncChannel.ChannelFailedException}.
+     */
+    @Override
+    public void close() {
+        for (Loop l : loops) {
+            l.closed = true;
+            l.selector.wakeup();
+        }
+    }
+
+    private static long deadline(long now, long left) {
+        return left == Long.MAX_VALUE ? Long.MAX_VALUE : now + left;
+    }
+
+    private final class Loop implements Runnable {
+        private final String TAG;
+        @NonNull
+        private final Selector selector;
+        @NonNull
+        private final ConcurrentLinkedQueue<Registration> woken = new ConcurrentLinkedQueue<>();
+        @NonNull
+        private final List<Registration> regs = new ArrayList<>();  // confined to the loop thread
+        @NonNull
+        private final AtomicInteger count = new AtomicInteger(0);
+        private volatile boolean closed = false;
+
+        private Loop(int id) throws IOException {
+            this.TAG = ReTAG(IoReactor.TAG, "#" + id);
+            this.selector = Selector.open();
+        }
+
+        @Override
+        public void run() {
+            Log.v(TAG, "reactor thread started");
+            try {
+                while (!closed) {
+                    // channels woken since the last round, in arrival order
+                    for (int n = woken.size(); n > 0; --n) {
+                        Registration r = woken.poll();
+                        if (r == null)
+                            break;
+                        r.scheduled.set(false);
+                        r.run();
+                    }
+                    final long left = timers(System.nanoTime());
+                    if (!woken.isEmpty())
+                        selector.selectNow();
+                    else if (left == Long.MAX_VALUE)
+                        selector.select();
+                    else
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(left + 999999)));
+                    for (Iterator<SelectionKey> it = selector.selectedKeys().iterator(); it.hasNext(); ) {
+                        SelectionKey k = it.next();
+                        it.remove();
+                        ((Registration) k.attachment()).ready(k);
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                Log.e(TAG, String.format("reactor thread failed: %s", e));
+            } finally {
+                shutdown();
+            }
+            Log.v(TAG, "reactor thread quitting");
+        }
+
+        // run the timers that are due; returns the time left until the earliest one
+        private long timers(long now) {
+            long next = Long.MAX_VALUE;
+            for (Registration r : regs) {
+                if (r.timerAt <= now)
+                    r.timerAt = deadline(now, r.owner.runTimers(now));
+                next = Math.min(next, r.timerAt);
+            }
+            return next == Long.MAX_VALUE ? next : Math.max(0, next - now);
+        }
+
+        private void shutdown() {
+            closed = true;
+            final IOException e = new IOException("reactor closed");
+            List<Registration> left = new ArrayList<>(regs);
+            for (Registration r; (r = woken.poll()) != null; )
+                if (r.key == null && !r.cancelled)
+                    left.add(r);
+            for (Registration r : left)
+                r.owner.fail(e);
+            regs.clear();
+            count.set(0);
+            Prelude.trap(selector::close);
+        }
+    }
+
+    /**
+     * This class binds a channel to the reactor thread serving it.
+     */
+    final class Registration {
+        @NonNull
+        private final Loop loop;
+        @NonNull
+        private final SpooledAsyncChannel owner;
+        @NonNull
+        private final SocketChannel socket;
+        @NonNull
+        private final FrameReader reader = new FrameReader(FrameReader.DEFAULT_CHUNK_SIZE);
+        @NonNull
+        private final FrameWriter writer = new FrameWriter();
+        @NonNull
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private volatile boolean cancelled = false;
+        // the following are confined to the loop thread
+        private boolean dropped = false;
+        @Nullable
+        private SelectionKey key = null;
+        @Nullable
+        private ByteBuffer pending = null;
+        private long timerAt = Long.MAX_VALUE;
+
+        private Registration(@NonNull Loop loop, @NonNull SpooledAsyncChannel owner, @NonNull SocketChannel socket) {
+            this.loop = loop;
+            this.owner = owner;
+            this.socket = socket;
+        }
+
+        /**
+         * Have the reactor thread write the commands queued on the channel. Can be called from any thread.
+         */
+        void wakeUp() {
+            if (scheduled.compareAndSet(false, true)) {
+                loop.woken.offer(this);
+                loop.selector.wakeup();
+            }
+        }
+
+        /**
+         * Have the reactor thread stop serving the channel. Can be called from any thread.
+         */
+        void cancel() {
+            cancelled = true;
+            wakeUp();
+        }
+
+        private void run() {
+            if (cancelled) {
+                drop();
+                return;
+            }
+            if (key == null) {
+                try {
+                    key = socket.register(loop.selector, SelectionKey.OP_READ, this);
+                    loop.regs.add(this);
+                } catch (IOException e) {
+                    owner.fail(e);
+                    drop();
+                    return;
+                }
+            }
+            write();
+        }
+
+        private void drop() {
+            if (dropped)
+                return;
+            dropped = true;
+            if (key != null) {
+                key.cancel();
+                key = null;
+                loop.regs.remove(this);
+            }
+            pending = null;
+            loop.count.decrementAndGet();
+        }
+
+        private void write() {
+            if (pending != null)
+                return;     // waiting for the socket to become writable
+            final long now = System.nanoTime();
+            timerAt = deadline(now, owner.runTimers(now));
+            for (int round = 0; round < MAX_ROUNDS; ++round) {
+                List<Command> frames = owner.gather();
+                if (frames == null)
+                    return;
+                if (frames.isEmpty())
+                    continue;
+                timerAt = Math.min(timerAt, deadline(now, owner.getRttEstimator().getTimeout(TimeUnit.NANOSECONDS)));
+                ByteBuffer b = writer.frame(frames);
+                try {
+                    socket.write(b);
+                } catch (IOException e) {
+                    owner.writeFailed(e);
+                    return;
+                }
+                if (b.hasRemaining()) {
+                    pending = b;
+                    Objects.requireNonNull(key).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            wakeUp();   // more commands may be queued: serve the other channels first
+        }
+
+        private void ready(@NonNull SelectionKey k) {
+            try {
+                if (k.isReadable())
+                    read();
+                if (k.isValid() && k.isWritable())
+                    flush();
+            } catch (CancelledKeyException ignored) {
+            }
+        }
+
+        private void read() {
+            try {
+                for (int i = 0; ; ++i) {
+                    Reply r;
+                    while ((r = reader.poll()) != null) {
+                        try {
+                            owner.dispatch(r);
+                        } catch (Throwable e) {
+                            Log.e(loop.TAG, String.format("exception caught while dispatching reply #%d: %s", r.getCounter(), e));
+                        }
+                    }
+                    if (i == MAX_READS || reader.fill(socket) == 0)
+                        break;
+                }
+            } catch (IOException e) {
+                // EOF and I/O errors mean the link is gone
+                owner.fail(e);
+            }
+        }
+
+        private void flush() {
+            ByteBuffer b = Objects.requireNonNull(pending);
+            try {
+                socket.write(b);
+            } catch (IOException e) {
+                pending = null;
+                owner.fail(e);
+                return;
+            }
+            if (!b.hasRemaining()) {
+                pending = null;
+                Objects.requireNonNull(key).interestOps(SelectionKey.OP_READ);
+                write();
+            }
+        }
+    }
+}
@@ -8,7 +8,7 @@ import androidx.annotation.NonNull;
  */
 public abstract class Packet {
     /**
-     * The sequence number: always increasing and uniquely identifying the packet.
+     * The 16-bit sequence number: it wraps around and uniquely identifies the packet among those in flight on the same channel.
      */
     protected final int counter;
     /**
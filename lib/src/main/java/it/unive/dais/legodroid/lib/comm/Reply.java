@@ -2,25 +2,71 @@ package it.unive.dais.legodroid.lib.comm;
 
 import android.util.Log;
 
+import java.util.Arrays;
+
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 /**
  * This class implements a reply for the GenEV3 device.
+ * A reply is a read-only view of its payload within a larger buffer, e.g. the chunk a {@link FrameReader} has read it into: the accessor methods such as {@link #getFloat(int)}
+ * decode values in place, while {@link #getData()} copies the payload into an array of its own.
+ * Replies read by a {@link FrameReader} should be released via {@link #release()} once decoded, so that the buffer can be recycled.
+ * <p>
+ * Whoever obtains a reply from a public method of this library owns it, e.g. from {@link AsyncChannel#send(Command)}, {@code EV3.Api.send} or {@code EV3.Api.batch}: the library never releases it
+ * on behalf of the owner, hence it stays readable until the owner releases it. A reply never released is reclaimed by the garbage collector, but its buffer is not recycled.
+ * The only exception are replies owned by an aggregate, e.g. those of a {@code Fleet.Result}, which are released by releasing the aggregate.
  */
 public class Reply extends Packet {
     private static final String TAG = "Reply";
     private final boolean error;
+    private final int offset;
+    private final int length;
+    @Nullable
+    private final FrameReader.Chunk chunk;
+    private volatile boolean released = false;
+    @Nullable
+    private byte[] copy;
 
     /**
      * Create a reply object given the raw byte array received by the GenEV3 device.
-     * This constructor acts as a deserializer.
+     * This constructor acts as a deserializer; the array is not copied, hence it must not be modified afterwards.
      *
      * @param bytes the input byte array
      */
     public Reply(@NonNull byte[] bytes) {
-        super(((bytes[1] << 8) & 0xff00) | (bytes[0] & 0xff), new byte[bytes.length - 3]);
-        error = bytes[2] != Const.DIRECT_COMMAND_SUCCESS;
-        System.arraycopy(bytes, 3, data, 0, data.length);
+        this(((bytes[1] << 8) & 0xff00) | (bytes[0] & 0xff), bytes[2] != Const.DIRECT_COMMAND_SUCCESS, bytes, 3, bytes.length - 3, null);
+    }
+
+    Reply(int counter, boolean error, @NonNull byte[] buf, int offset, int length, @Nullable FrameReader.Chunk chunk) {
+        super(counter, buf);
+        this.error = error;
+        this.offset = offset;
+        this.length = length;
+        this.chunk = chunk;
+        if (chunk != null)
+            chunk.retain();
+    }
+
+    /**
+     * Create a reply hosting a portion of the data of this reply, e.g. the results of one of the commands merged into a single direct command.
+     * Counter and error flag are the same as this reply. The portion is a view sharing the buffer of this reply, unless it exceeds the data: in that case it is a zero-padded copy.
+     * The result must be released independently of this reply.
+     *
+     * @param offset offset in bytes of the portion within the data.
+     * @param length length in bytes of the portion.
+     * @return a new object of type {@link Reply}.
+     * @throws IllegalStateException thrown when this reply has been released.
+     */
+    @NonNull
+    public Reply slice(int offset, int length) {
+        checkLive();
+        if (offset >= 0 && offset + length <= this.length)
+            return new Reply(counter, error, data, this.offset + offset, length, chunk);
+        final int from = Math.min(offset, this.length);
+        final byte[] r = new byte[length];
+        System.arraycopy(data, this.offset + from, r, 0, Math.min(length, this.length - from));
+        return new Reply(counter, error, r, 0, length, null);
     }
 
     /**
@@ -32,17 +78,107 @@ public class Reply extends Packet {
         return error;
     }
 
+    /**
+     * Get the length of the data.
+     *
+     * @return the length in bytes.
+     */
+    public int length() {
+        return length;
+    }
+
+    private void checkLive() {
+        if (released)
+            throw new IllegalStateException(String.format("reply #%d already released", counter));
+    }
+
+    private int index(int i, int size) {
+        checkLive();
+        if (i < 0 || i + size > length)
+            throw new IndexOutOfBoundsException(String.format("offset %d out of reply data of length %d", i, length));
+        return offset + i;
+    }
+
+    /**
+     * Decode an 8-bit integer from the data.
+     *
+     * @param i the offset in bytes within the data.
+     * @return the value.
+     * @throws IndexOutOfBoundsException thrown when the value exceeds the data.
+     * @throws IllegalStateException     thrown when this reply has been released.
+     */
+    public byte getByte(int i) {
+        return data[index(i, 1)];
+    }
+
+    /**
+     * Decode a little-endian 16-bit integer from the data.
+     *
+     * @param i the offset in bytes within the data.
+     * @return the value.
+     * @throws IndexOutOfBoundsException thrown when the value exceeds the data.
+     * @throws IllegalStateException     thrown when this reply has been released.
+     */
+    public short getShort(int i) {
+        final int p = index(i, 2);
+        return (short) ((data[p] & 0xFF) | (data[p + 1] << 8));
+    }
+
+    /**
+     * Decode a little-endian 32-bit integer from the data.
+     *
+     * @param i the offset in bytes within the data.
+     * @return the value.
+     * @throws IndexOutOfBoundsException thrown when the value exceeds the data.
+     * @throws IllegalStateException     thrown when this reply has been released.
+     */
+    public int getInt(int i) {
+        final int p = index(i, 4);
+        return (data[p] & 0xFF) | ((data[p + 1] & 0xFF) << 8) | ((data[p + 2] & 0xFF) << 16) | (data[p + 3] << 24);
+    }
+
+    /**
+     * Decode a little-endian 32-bit float from the data.
+     *
+     * @param i the offset in bytes within the data.
+     * @return the value.
+     * @throws IndexOutOfBoundsException thrown when the value exceeds the data.
+     * @throws IllegalStateException     thrown when this reply has been released.
+     */
+    public float getFloat(int i) {
+        return Float.intBitsToFloat(getInt(i));
+    }
+
+    /**
+     * Release the buffer this reply views, so that it can be recycled.
+     * No data can be accessed afterwards, except for the array returned by a previous call to {@link #getData()}; releasing more than once has no effect.
+     * Replies shared among several consumers must not be released by any of them.
+     */
+    public synchronized void release() {
+        if (!released) {
+            released = true;
+            if (chunk != null)
+                chunk.release();
+        }
+    }
+
     /**
      * Get the data array of bytes.
+     * The data is copied into an array of its own the first time this method is called; later calls return the same array.
      *
      * @return the array of bytes.
+     * @throws IllegalStateException thrown when this reply has been released before the first call.
      * @implNote this implementation logs when the error flag is set; execution is not interrupted.
      */
     @NonNull
     @Override
-    public byte[] getData() {
+    public synchronized byte[] getData() {
         if (isError())
             Log.e(TAG, String.format("error on reply #%d", counter)); //throw new IllegalStateException(String.format("reply returned error (counter = %d)", getCounter()));
-        return data;
+        if (copy == null) {
+            checkLive();
+            copy = Arrays.copyOfRange(data, offset, offset + length);
+        }
+        return copy;
     }
 }
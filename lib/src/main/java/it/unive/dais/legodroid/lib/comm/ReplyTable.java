@@ -0,0 +1,182 @@
+package it.unive.dais.legodroid.lib.comm;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * This class correlates in-flight commands with their future replies.
+ * Each channel owns its own 16-bit sequence space, which wraps around: a sequence number maps to a slot of a fixed-size table,
+ * hence matching an incoming {@link Reply} is constant time and completed entries are freed as soon as their reply arrives.
+ * Access is thread-safe and lock-free, except for deadlines: {@link #arm(SpooledAsyncChannel.FutureReply, long, long)} and {@link #sweep(long, RttEstimator)}
+ * must be called by one same thread, e.g. the writer thread of the channel, which keeps track of the earliest deadline so that sweeping scans the table only once it has passed.
+ */
+class ReplyTable {
+    /**
+     * Number of slots, i.e. the maximum number of reply-bearing commands that can be in flight at any given time.
+     * Must be a power of 2 dividing the 16-bit sequence space.
+     */
+    static final int SLOTS = 256;
+    private static final int SEQUENCE_MASK = 0xFFFF;
+
+    @NonNull
+    private final AtomicReferenceArray<SpooledAsyncChannel.FutureReply> slots = new AtomicReferenceArray<>(SLOTS);
+    @NonNull
+    private final AtomicInteger next = new AtomicInteger(0);
+    private final long staleMs;
+    // earliest deadline among the armed entries, if any, as known since the last scan: entries completed meanwhile may leave it earlier than the actual one, which costs an early scan at worst
+    private long earliest;
+    private boolean armed = false;
+
+    /**
+     * Create an empty table.
+     *
+     * @param staleMs age in milliseconds after which an entry still waiting for its reply can be evicted when its slot is needed again.
+     */
+    ReplyTable(long staleMs) {
+        this.staleMs = staleMs;
+    }
+
+    private static int slotOf(int seq) {
+        return seq & (SLOTS - 1);
+    }
+
+    /**
+     * Allocate the next sequence number without reserving a slot, for commands that expect no reply.
+     *
+     * @return a 16-bit sequence number.
+     */
+    int nextSequence() {
+        return next.getAndIncrement() & SEQUENCE_MASK;
+    }
+
+    /**
+     * Allocate a sequence number and store the given future in the corresponding slot.
+     * Occupied slots are skipped, unless their entry is older than the stale threshold: such an entry is evicted and failed with a {@link TimeoutException},
+     * which releases its waiters and gives its credits back.
+     *
+     * @param r the future reply to be registered.
+     * @return the sequence number to be used by the command.
+     * @throws IOException thrown when all slots are taken by pending replies.
+     */
+    int register(@NonNull SpooledAsyncChannel.FutureReply r) throws IOException {
+        final long now = System.currentTimeMillis();
+        for (int i = 0; i < SLOTS; ++i) {
+            final int seq = nextSequence();
+            final int slot = slotOf(seq);
+            r.setId(seq);
+            if (slots.compareAndSet(slot, null, r))
+                return seq;
+            SpooledAsyncChannel.FutureReply old = slots.get(slot);
+            if (old != null && now - old.getIssuedAt() > staleMs && slots.compareAndSet(slot, old, r)) {
+                old.fail(new TimeoutException(String.format("command #%d evicted after %d ms with no reply", old.getId(), now - old.getIssuedAt())));
+                return seq;
+            }
+        }
+        throw new IOException(String.format("too many commands in flight (max %d)", SLOTS));
+    }
+
+    /**
+     * Remove the entry matching the given sequence number.
+     * Replies whose sequence number does not match the slot entry, e.g. late replies to evicted entries, are ignored.
+     *
+     * @param seq the sequence number of an incoming reply.
+     * @return the future reply registered with that sequence number, or null if none.
+     */
+    @Nullable
+    SpooledAsyncChannel.FutureReply remove(int seq) {
+        final int slot = slotOf(seq);
+        SpooledAsyncChannel.FutureReply r = slots.get(slot);
+        if (r != null && r.getId() == (seq & SEQUENCE_MASK) && slots.compareAndSet(slot, r, null))
+            return r;
+        return null;
+    }
+
+    /**
+     * Free the slot taken by the given future, if it still holds it.
+     *
+     * @param r the future reply.
+     */
+    void release(@NonNull SpooledAsyncChannel.FutureReply r) {
+        slots.compareAndSet(slotOf(r.getId()), r, null);
+    }
+
+    /**
+     * Arm the deadline of the given entry, right before writing its command.
+     *
+     * @param r       the future reply.
+     * @param now     current time as given by {@link System#nanoTime()}.
+     * @param timeout time left until the deadline in nanoseconds.
+     */
+    void arm(@NonNull SpooledAsyncChannel.FutureReply r, long now, long timeout) {
+        r.setWritten(now, timeout);
+        final long deadline = now + timeout;
+        if (!armed || deadline - earliest < 0) {
+            earliest = deadline;
+            armed = true;
+        }
+    }
+
+    /**
+     * Fail the entries whose deadline has expired with a {@link TimeoutException}; the estimator is backed off once if any entry expired.
+     * Entries with no deadline are left alone. The table is scanned only once the earliest deadline known has passed, which makes calls in between constant time.
+     *
+     * @param now current time as given by {@link System#nanoTime()}.
+     * @param rtt the round-trip time estimator of the channel.
+     * @return the time left until the earliest deadline among the entries left in nanoseconds, or {@link Long#MAX_VALUE} if none.
+     */
+    long sweep(long now, @NonNull RttEstimator rtt) {
+        if (!armed)
+            return Long.MAX_VALUE;
+        if (earliest - now > 0)
+            return earliest - now;
+        long next = Long.MAX_VALUE;
+        boolean expired = false;
+        for (int i = 0; i < SLOTS; ++i) {
+            SpooledAsyncChannel.FutureReply r = slots.get(i);
+            if (r == null || !r.hasDeadline())
+                continue;
+            final long left = r.getDeadline() - now;
+            if (left > 0)
+                next = Math.min(next, left);
+            else if (r.fail(new TimeoutException(String.format("reply to command #%d timed out", r.getId()))))
+                expired = true;
+        }
+        armed = next != Long.MAX_VALUE;
+        earliest = now + next;
+        if (expired)
+            rtt.backoff();
+        return next;
+    }
+
+    /**
+     * Cancel all the entries belonging to the given cancellation scope or to any scope opened before it; entries with a negative scope belong to none and are left alone.
+     * Cancelled entries free their slot by themselves.
+     *
+     * @param scope the identifier of the latest scope cancelled.
+     */
+    void cancelScope(int scope) {
+        for (int i = 0; i < SLOTS; ++i) {
+            SpooledAsyncChannel.FutureReply r = slots.get(i);
+            if (r != null && r.getScope() >= 0 && r.getScope() <= scope)
+                r.cancel(true);
+        }
+    }
+
+    /**
+     * Remove all the entries and fail them with the given exception.
+     *
+     * @param e the cause of the failure.
+     */
+    void failAll(@NonNull Throwable e) {
+        for (int i = 0; i < SLOTS; ++i) {
+            SpooledAsyncChannel.FutureReply r = slots.getAndSet(i, null);
+            if (r != null)
+                r.fail(e);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package it.unive.dais.legodroid.lib.comm;
+
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+
+/**
+ * This class estimates the round-trip time of a channel, in the same fashion as TCP does (Jacobson/Karels): a smoothed RTT and an RTT variance are updated
+ * at each reply, and the timeout for replies is the smoothed RTT plus four times the variance, clamped within [ 250 ms - 30 s ].
+ * Each timeout doubles the current timeout until the next sample, so that a link getting slower is not flooded by spurious expirations.
+ * Access is thread-safe.
+ */
+public class RttEstimator {
+    /**
+     * Timeout in milliseconds used before the first sample.
+     */
+    public static final long INITIAL_TIMEOUT_MS = 1000;
+    /**
+     * Minimum timeout in milliseconds.
+     */
+    public static final long MIN_TIMEOUT_MS = 250;
+    /**
+     * Maximum timeout in milliseconds.
+     */
+    public static final long MAX_TIMEOUT_MS = 30000;
+
+    private static final long MIN_TIMEOUT_NS = TimeUnit.MILLISECONDS.toNanos(MIN_TIMEOUT_MS);
+    private static final long MAX_TIMEOUT_NS = TimeUnit.MILLISECONDS.toNanos(MAX_TIMEOUT_MS);
+
+    private long srtt = 0;
+    private long rttvar = 0;
+    private long timeout = TimeUnit.MILLISECONDS.toNanos(INITIAL_TIMEOUT_MS);
+    private long samples = 0;
+
+    /**
+     * Feed a round-trip time measurement.
+     *
+     * @param rttNanos the time between writing a command and receiving its reply, in nanoseconds.
+     */
+    synchronized void sample(long rttNanos) {
+        if (rttNanos < 0)
+            return;
+        if (samples++ == 0) {
+            srtt = rttNanos;
+            rttvar = rttNanos / 2;
+        } else {
+            // RTTVAR <- 3/4 RTTVAR + 1/4 |SRTT - R|, SRTT <- 7/8 SRTT + 1/8 R
+            rttvar += (Math.abs(srtt - rttNanos) - rttvar) / 4;
+            srtt += (rttNanos - srtt) / 8;
+        }
+        timeout = clamp(srtt + 4 * rttvar);
+    }
+
+    /**
+     * Double the timeout after a reply has not arrived in time.
+     */
+    synchronized void backoff() {
+        timeout = clamp(timeout * 2);
+    }
+
+    private static long clamp(long t) {
+        return Math.max(MIN_TIMEOUT_NS, Math.min(MAX_TIMEOUT_NS, t));
+    }
+
+    /**
+     * Get the smoothed round-trip time.
+     *
+     * @param unit the time unit of the result.
+     * @return the smoothed RTT, or 0 when no reply has been received yet.
+     */
+    public synchronized long getSmoothedRtt(@NonNull TimeUnit unit) {
+        return unit.convert(srtt, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Get the round-trip time variance, i.e. the smoothed mean deviation of samples from the smoothed RTT.
+     *
+     * @param unit the time unit of the result.
+     * @return the RTT variance, or 0 when no reply has been received yet.
+     */
+    public synchronized long getRttVariance(@NonNull TimeUnit unit) {
+        return unit.convert(rttvar, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Get the current timeout for replies.
+     *
+     * @param unit the time unit of the result.
+     * @return the timeout.
+     */
+    public synchronized long getTimeout(@NonNull TimeUnit unit) {
+        return unit.convert(timeout, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Get the number of samples received so far.
+     *
+     * @return the number of samples.
+     */
+    public synchronized long getSamples() {
+        return samples;
+    }
+
+    @NonNull
+    @Override
+    public synchronized String toString() {
+        return String.format("srtt=%dus rttvar=%dus timeout=%dms", srtt / 1000, rttvar / 1000, timeout / 1000000);
+    }
+}
@@ -5,50 +5,748 @@ import android.os.AsyncTask;
 import android.util.Log;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.LockSupport;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import it.unive.dais.legodroid.lib.util.Consumer;
+import it.unive.dais.legodroid.lib.util.Function;
+import it.unive.dais.legodroid.lib.util.Promise;
 
 import static it.unive.dais.legodroid.lib.util.Prelude.ReTAG;
 
 /**
- * This class implements an asynchronous channel that sends commands and receives replies via a spooler thread.
+ * This class implements an asynchronous channel that sends commands via a writer thread and receives replies via a spooler thread.
+ * Send methods can be called by any number of threads: commands are put into a lock-free queue and the writer thread, which is the only one writing to the
+ * underlying channel, gathers all the commands pending at each wakeup into a single write.
+ * Commands are queued into two lanes and the writer always drains the first one first: {@link AsyncChannel.Priority#SAFETY} and {@link AsyncChannel.Priority#CONTROL}
+ * commands share the first lane in FIFO order, so that e.g. stopping a motor never waits behind a backlog of sensor reads but never overtakes a command to the same motor
+ * sent earlier either; {@link AsyncChannel.Priority#SAFETY} commands also bypass the in-flight window and are never held back for batching.
+ * The number of reply-bearing commands in flight, and the amount of global reservation they take on the brick, are bounded by a window:
+ * credits are taken when sending and given back by the spooler as replies arrive, so that pipelining never overruns the direct command buffer of the brick.
+ * An I/O error or the end of stream on the underlying channel, either while writing or while reading, makes the channel {@link AsyncChannel.State#FAILED} at once:
+ * all pending commands fail with an {@link AsyncChannel.ChannelFailedException}, and so do commands sent afterwards.
+ * Each reply-bearing command gets a deadline when it is written, based on the round-trip time estimated by a {@link RttEstimator}: commands whose reply does not arrive
+ * in time fail with a {@link TimeoutException}, so that slow or lost replies are noticed within a few round trips rather than after a fixed long timeout.
+ * An optional watchdog sends a probe when no reply has been received for a while, telling an idle link from a stalled one: see {@link #setWatchdog(long, int)}.
+ * Commands are tagged with the cancellation scope current when they are sent, so that cancelling a scope drops its unsent commands and cancels its pending replies
+ * without touching the others.
+ * Channels over a non-blocking socket can be served by a shared {@link IoReactor} instead of a writer and a spooler thread of their own, so that many bricks are driven by a
+ * constant number of threads: see {@link #SpooledAsyncChannel(StreamChannel, IoReactor, int, int, Backpressure)}.
  *
  * @see AsyncChannel
  */
 public class SpooledAsyncChannel implements AsyncChannel {
+    private static final String TAG = ReTAG("SpooledAsyncChannel");
+    private static final byte[] PROBE = {Const.NOP};
+    // scope of internal commands, e.g. watchdog probes, which is never opened nor cancelled
+    private static final int NO_SCOPE = -1;
+
+    /**
+     * Default maximum number of reply-bearing commands in flight.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+    /**
+     * Default maximum amount of global reservation in flight, in bytes.
+     */
+    public static final int DEFAULT_MAX_RESERVATION = 1024;
+
+    /**
+     * Behaviour of the send methods when the in-flight window is full.
+     */
+    public enum Backpressure {
+        /**
+         * The caller blocks until credits are given back, or fails after the default timeout.
+         */
+        BLOCK,
+        /**
+         * The command is rejected at once: {@link #send(Command)} returns a future failed with a {@link RejectedExecutionException}
+         * and {@link #sendNoReply(Bytecode)} throws it.
+         */
+        REJECT
+    }
 
     @NonNull
     private final Channel channel;
     @NonNull
-    private final List<FutureReply> q = Collections.synchronizedList(new ArrayList<>());
+    private final ReplyTable table = new ReplyTable(FutureReply.GET_MAX_TIMEOUT_MS);
+    @NonNull
+    private final RttEstimator rtt = new RttEstimator();
+    @NonNull
+    private final CreditWindow window;
     @NonNull
+    private final Backpressure backpressure;
+    @NonNull
+    private final ConcurrentLinkedQueue<Outbound>[] lanes = newLanes();
+    @NonNull
+    private final ConcurrentHashMap<Integer, Outbound> latest = new ConcurrentHashMap<>();
+    @NonNull
+    private final Writer writer = new Writer();
+    @Nullable
+    private final WriterTask writerTask;
+    @Nullable
     private final SpoolerTask task;
+    @Nullable
+    private final IoReactor.Registration registration;
+    private volatile int batchMaxOps = 1;
+    private volatile long batchWindowNanos = 0;
+    private volatile long telemetryMaxAgeNanos = 0;
+    private volatile long watchdogIdleNanos = 0;
+    private volatile int watchdogMaxMisses = 1;
+    private volatile long lastReplyAt = System.nanoTime();
+    @Nullable
+    private volatile FutureReply probe = null;
+    private int probeMisses = 0;
+    private volatile State state = State.OPEN;
+    private volatile int scope = 0;
+    private volatile int cancelledUpTo = NO_SCOPE;    // scopes are opened in increasing order and cancelling one cancels all those opened before
+    @Nullable
+    private volatile ChannelFailedException failure = null;
+    @NonNull
+    private final CopyOnWriteArrayList<StateListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Create an asynchronous channel given a synchrounous channel and the in-flight window configuration.
+     *
+     * @param channel        a synchrounous channel.
+     * @param maxInFlight    maximum number of reply-bearing commands in flight.
+     * @param maxReservation maximum amount of global reservation in flight, in bytes.
+     * @param backpressure   behaviour of the send methods when the window is full.
+     */
+    public SpooledAsyncChannel(@NonNull Channel channel, int maxInFlight, int maxReservation, @NonNull Backpressure backpressure) {
+        this(channel, null, maxInFlight, maxReservation, backpressure);
+    }
+
+    /**
+     * Create an asynchronous channel served by the given reactor: commands are written and replies are read by one of the reactor threads, with no thread of its own.
+     * The socket of the channel must not be read or written by anybody else afterwards. The batching window set via {@link #setBatching(int, long)} is not applied,
+     * as a reactor thread never lingers on a single channel: commands already queued are still merged.
+     *
+     * @param channel        a synchrounous channel over a non-blocking socket.
+     * @param reactor        the reactor serving the channel.
+     * @param maxInFlight    maximum number of reply-bearing commands in flight.
+     * @param maxReservation maximum amount of global reservation in flight, in bytes.
+     * @param backpressure   behaviour of the send methods when the window is full.
+     */
+    public SpooledAsyncChannel(@NonNull StreamChannel channel, @NonNull IoReactor reactor, int maxInFlight, int maxReservation, @NonNull Backpressure backpressure) {
+        this((Channel) channel, reactor, maxInFlight, maxReservation, backpressure);
+    }
+
+    /**
+     * Create an asynchronous channel served by the given reactor, with the default in-flight window and blocking backpressure.
+     *
+     * @param channel a synchrounous channel over a non-blocking socket.
+     * @param reactor the reactor serving the channel.
+     */
+    public SpooledAsyncChannel(@NonNull StreamChannel channel, @NonNull IoReactor reactor) {
+        this(channel, reactor, DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_RESERVATION, Backpressure.BLOCK);
+    }
+
+    private SpooledAsyncChannel(@NonNull Channel channel, @Nullable IoReactor reactor, int maxInFlight, int maxReservation, @NonNull Backpressure backpressure) {
+        this.channel = channel;
+        this.window = new CreditWindow(maxInFlight, maxReservation);
+        this.backpressure = backpressure;
+        if (reactor != null) {
+            this.writerTask = null;
+            this.task = null;
+            this.registration = reactor.register(this, (StreamChannel) channel);
+        } else {
+            this.writerTask = new WriterTask();
+            this.task = new SpoolerTask(channel, this::dispatch, this::fail);
+            this.registration = null;
+            writerTask.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+    }
 
     /**
-     * Create an asynchronous channel given a synchrounous channel.
+     * Create an asynchronous channel given a synchrounous channel, with the default in-flight window and blocking backpressure.
      *
      * @param channel a synchrounous channel.
      */
     public SpooledAsyncChannel(@NonNull Channel channel) {
-        this.channel = channel;
-        this.task = new SpoolerTask(channel, q);
-        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        this(channel, DEFAULT_MAX_IN_FLIGHT, DEFAULT_MAX_RESERVATION, Backpressure.BLOCK);
     }
 
     @Override
     public void close() {
-        task.cancel(true);
+        if (terminate(State.CLOSED, new ChannelFailedException("channel closed", null), null))
+            stop();
+    }
+
+    // stop the writer and spooler threads, or leave the reactor
+    private void stop() {
+        if (registration != null)
+            registration.cancel();
+        if (writerTask != null)
+            writerTask.cancel(true);
+        if (task != null)
+            task.cancel(true);
+    }
+
+    // urgent wakeups also cut short the writer lingering for a batch
+    private void wakeWriter(boolean urgent) {
+        if (registration != null)
+            registration.wakeUp();
+        else if (writerTask != null)
+            writerTask.wakeUp(urgent);
+    }
+
+    private void wakeWriter() {
+        wakeWriter(false);
+    }
+
+    /**
+     * Open a new cancellation scope: all commands sent from now on belong to it, until another scope is opened.
+     *
+     * @return the identifier of the new scope.
+     */
+    @Override
+    public synchronized int beginScope() {
+        return ++scope;
+    }
+
+    /**
+     * Cancel the given scope along with all the scopes opened before it: commands belonging to them that are still queued are dropped and the futures of those waiting for their reply are cancelled.
+     * Commands sent afterwards within any of these scopes are rejected, except for {@link AsyncChannel.Priority#SAFETY} ones, which allows stopping motors on cleanup.
+     * Cancellation is monotonic, hence a scope stays cancelled even after later scopes have been cancelled too. Late replies to cancelled commands are simply discarded by the spooler.
+     *
+     * @param scope the identifier of the scope.
+     */
+    @Override
+    public void cancelScope(int scope) {
+        synchronized (this) {
+            if (scope > cancelledUpTo)
+                cancelledUpTo = scope;
+        }
+        for (ConcurrentLinkedQueue<Outbound> q : lanes) {
+            for (Outbound o : q) {
+                if (isCancelled(o.scope))
+                    o.cancel();
+            }
+        }
+        table.cancelScope(cancelledUpTo);
+    }
+
+    // internal commands belong to no scope, hence they are never cancelled
+    private boolean isCancelled(int scope) {
+        return scope != NO_SCOPE && scope <= cancelledUpTo;
+    }
+
+    /**
+     * Get the round-trip time estimator of this channel, which is fed by every reply received.
+     * Controllers can read the live estimate to adjust their own loop period.
+     *
+     * @return the estimator.
+     */
+    @NonNull
+    @Override
+    public RttEstimator getRttEstimator() {
+        return rtt;
+    }
+
+    @NonNull
+    @Override
+    public State getState() {
+        return state;
+    }
+
+    @Override
+    public void addStateListener(@NonNull StateListener l) {
+        listeners.add(l);
+    }
+
+    @Override
+    public void removeStateListener(@NonNull StateListener l) {
+        listeners.remove(l);
+    }
+
+    // make the channel fail due to a fatal error on the underlying channel
+    void fail(@NonNull Throwable cause) {
+        if (terminate(State.FAILED, new ChannelFailedException(String.format("channel failed: %s", cause), cause), cause))
+            stop();
+    }
+
+    // move to a final state, failing all pending commands; returns false if the channel was already in a final state
+    private boolean terminate(@NonNull State s, @NonNull ChannelFailedException e, @Nullable Throwable cause) {
+        synchronized (listeners) {
+            if (state == State.FAILED || state == State.CLOSED)
+                return false;
+            failure = e;
+            state = s;
+        }
+        if (s == State.FAILED)
+            Log.w(TAG, String.format("channel %s: %s", s, e.getMessage()));
+        else
+            Log.v(TAG, String.format("channel %s", s));
+        table.failAll(e);
+        drainLanes(e);
+        wakeWriter();
+        notifyListeners(s, cause);
+        return true;
+    }
+
+    // state changes other than the final ones
+    private void changeState(@NonNull State s, @Nullable Throwable cause) {
+        synchronized (listeners) {
+            if (state == s || state == State.FAILED || state == State.CLOSED)
+                return;
+            state = s;
+        }
+        notifyListeners(s, cause);
+    }
+
+    private void notifyListeners(@NonNull State s, @Nullable Throwable cause) {
+        for (StateListener l : listeners) {
+            try {
+                l.onStateChanged(this, s, cause);
+            } catch (Throwable e) {
+                Log.e(TAG, String.format("exception in state listener: %s", e));
+            }
+        }
+    }
+
+    private void drainLanes(@NonNull Throwable e) {
+        for (ConcurrentLinkedQueue<Outbound> q : lanes) {
+            Outbound o;
+            while ((o = q.poll()) != null) {
+                if (o.reply != null)
+                    o.reply.fail(e);
+                o.discarded();
+            }
+        }
+    }
+
+    /**
+     * Enable or disable automatic micro-batching of reply-bearing commands.
+     * When enabled, commands sent via {@link #send(int, Bytecode)} that are queued back to back are merged into a single direct command, up to the given number of
+     * operations or 1024 bytes of global reservation: their global indices are shifted so that each writes to its own portion of the global buffer, and each future reply is
+     * completed with its own slice of the combined {@link Reply}. Reading N sensors thus costs one round trip instead of N.
+     * The writer thread waits up to the given time window for further commands to join a batch, trading latency for throughput.
+     * Shifted global indices are re-encoded in the shortest legal form, so batches are not limited to the first 32 bytes of the global buffer.
+     * Commands belonging to different cancellation scopes are never merged, so that cancelling a scope cancels the batches of its commands as a whole.
+     *
+     * @param maxOps   maximum number of commands merged into one; values lower than 2 disable batching.
+     * @param windowMs time window in milliseconds the writer waits for further commands once a batchable command is queued; 0 merges only what is already queued.
+     */
+    public void setBatching(int maxOps, long windowMs) {
+        batchWindowNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, windowMs));
+        batchMaxOps = Math.max(1, maxOps);
+    }
+
+    /**
+     * Set the maximum time a {@link AsyncChannel.Priority#TELEMETRY} command can wait in its lane.
+     * Older telemetry commands are dropped by the writer instead of being written: their future replies fail with a {@link TimeoutException}.
+     *
+     * @param maxAgeMs maximum age in milliseconds; 0 disables dropping.
+     */
+    public void setTelemetryMaxAge(long maxAgeMs) {
+        telemetryMaxAgeNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxAgeMs));
+    }
+
+    /**
+     * Enable or disable the link watchdog.
+     * When enabled, a cheap reply-bearing probe is sent whenever no reply has been received for the given idle period.
+     * A probe missing its deadline makes the channel {@link AsyncChannel.State#DEGRADED}; after the given number of consecutive misses the channel is
+     * considered dead and becomes {@link AsyncChannel.State#FAILED}. Any reply received brings a degraded channel back to {@link AsyncChannel.State#OPEN}.
+     * State listeners are notified of each change.
+     *
+     * @param idleMs    idle period in milliseconds after which a probe is sent; 0 disables the watchdog.
+     * @param maxMisses number of consecutive probes missing their deadline after which the channel fails.
+     * @see #addStateListener(StateListener)
+     */
+    public void setWatchdog(long idleMs, int maxMisses) {
+        watchdogMaxMisses = Math.max(1, maxMisses);
+        watchdogIdleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, idleMs));
+        wakeWriter();
+    }
+
+    // called by the spooler, or by the reactor thread serving the channel, for each reply received
+    void dispatch(@NonNull Reply r) {
+        lastReplyAt = System.nanoTime();
+        if (state == State.DEGRADED)
+            changeState(State.OPEN, null);
+        FutureReply t = table.remove(r.getCounter());
+        if (t != null) {
+            if (t.hasDeadline())
+                rtt.sample(System.nanoTime() - t.getWrittenAt());
+            // nobody else will ever see a reply whose future was already cancelled or failed
+            if (!t.complete(r))
+                r.release();
+        } else {
+            Log.w(TAG, String.format("no pending command for reply #%d", r.getCounter()));
+            r.release();
+        }
+    }
+
+    // the following are called by the reactor thread serving the channel, in place of the writer thread
+
+    long runTimers(long now) {
+        return writer.timers(now);
+    }
+
+    @Nullable
+    List<Command> gather() {
+        Outbound o = writer.poll();
+        return o == null ? null : writer.gather(o);
+    }
+
+    void writeFailed(@NonNull Throwable e) {
+        writer.failed(e, true);
+    }
+
+    // called by the writer thread: sends a probe when the link has been quiet for too long; returns the time left until the next probe is due
+    private long watchdog(long now) {
+        final long idle = watchdogIdleNanos;
+        if (idle <= 0 || probe != null)
+            return Long.MAX_VALUE;
+        final long left = lastReplyAt + idle - now;
+        if (left > 0)
+            return left;
+        FutureReply r = new FutureReply(table, window);
+        r.scope = NO_SCOPE;
+        probe = r;
+        r.onComplete(p -> {
+            Throwable e = p.getFailure();
+            if (e == null) {
+                Objects.requireNonNull(p.getNow(null)).release();
+                probeMisses = 0;
+            } else if (e instanceof TimeoutException) {
+                if (++probeMisses >= watchdogMaxMisses)
+                    fail(new IOException(String.format("link watchdog: %d probes missed", probeMisses), e));
+                else
+                    changeState(State.DEGRADED, e);
+            }
+            lastReplyAt = System.nanoTime();
+            probe = null;
+            wakeWriter();    // for scheduling the next probe
+        });
+        enqueue(new Outbound(new Command(true, 0, 0, PROBE), r, null, Priority.SAFETY));
+        return idle;
+    }
+
+    // SAFETY and CONTROL share the first lane, so that they keep the order they have been sent in
+    private static int laneOf(@NonNull Priority priority) {
+        return priority == Priority.TELEMETRY ? 1 : 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    @NonNull
+    private static ConcurrentLinkedQueue<Outbound>[] newLanes() {
+        ConcurrentLinkedQueue<Outbound>[] r = (ConcurrentLinkedQueue<Outbound>[]) new ConcurrentLinkedQueue<?>[2];
+        for (int i = 0; i < r.length; ++i)
+            r[i] = new ConcurrentLinkedQueue<>();
+        return r;
+    }
+
+    // a command waiting to be written, along with its future reply when it expects one
+    private static final class Outbound {
+        @NonNull
+        Command cmd;            // replaced in place by sendLatest() until the writer takes it
+        @Nullable
+        final FutureReply reply;
+        @Nullable
+        final int[] globals;    // positions of the global indices within the bytecode of the command, when known
+        final int reservation;
+        @NonNull
+        final Priority priority;
+        volatile long queuedAt = System.nanoTime();
+        @Nullable
+        Integer key = null;     // conflation key of commands sent via sendLatest()
+        @Nullable
+        Runnable onDropped = null;     // hook of commands sent via sendLatest(), run when they are dropped without being superseded
+        int scope;
+        volatile boolean dropped = false;   // superseded or cancelled before being written
+        private boolean taken = false;      // the writer has taken the command, which can no longer be replaced
+
+        Outbound(@NonNull Command cmd, @Nullable FutureReply reply, @Nullable int[] globals, @NonNull Priority priority) {
+            this.cmd = cmd;
+            this.reply = reply;
+            this.globals = globals;
+            this.reservation = cmd.getGlobalReservation();
+            this.priority = priority;
+        }
+
+        // replace the command with a newer one with the same key, keeping its place in the queue; fails once the writer has taken or dropped it
+        synchronized boolean replace(@NonNull Command cmd, @NonNull Priority priority, int scope, @Nullable Runnable onDropped) {
+            if (taken || dropped || this.priority != priority || this.scope != scope)
+                return false;
+            this.cmd = cmd;
+            this.onDropped = onDropped;
+            queuedAt = System.nanoTime();
+            return true;
+        }
+
+        // called by the writer right before framing the command
+        @NonNull
+        synchronized Command take() {
+            taken = true;
+            return cmd;
+        }
+
+        // drop the command because a newer one with the same key replaces it
+        synchronized void supersede() {
+            dropped = true;
+            onDropped = null;
+        }
+
+        // drop the command because its scope has been cancelled
+        void cancel() {
+            dropped = true;
+            if (reply != null)
+                reply.cancel(true);
+            discarded();
+        }
+
+        // the command will never be written, though no newer one with the same key supersedes it
+        synchronized void discarded() {
+            Runnable r = onDropped;
+            onDropped = null;
+            if (r != null)
+                r.run();
+        }
+    }
+
+    // turns queued commands into frames: only one thread at a time drives it, either the writer thread or the reactor thread serving the channel
+    private class Writer {
+        private static final int MAX_GATHER = 32;
+        private static final int MAX_BATCH_RESERVATION = 1024;
+        private static final int MAX_BATCH_GLOBAL_INDEX = Bytecode.MAX_GLOBAL_INDEX;
+
+        @NonNull
+        private final List<Outbound> drained = new ArrayList<>(MAX_GATHER);
+        @NonNull
+        private final List<Command> frames = new ArrayList<>(MAX_GATHER);
+        @NonNull
+        private final List<FutureReply> replies = new ArrayList<>(MAX_GATHER);
+        @NonNull
+        private final List<Outbound> members = new ArrayList<>(MAX_GATHER);
+
+        private boolean isBatchable(@NonNull Outbound o) {
+            return o.globals != null && o.reply != null && batchMaxOps > 1;
+        }
+
+        // poll from the highest non-empty lane
+        @Nullable
+        private Outbound poll() {
+            for (ConcurrentLinkedQueue<Outbound> q : lanes) {
+                Outbound o = q.poll();
+                if (o != null)
+                    return o;
+            }
+            return null;
+        }
+
+        private boolean isEmpty() {
+            for (ConcurrentLinkedQueue<Outbound> q : lanes)
+                if (!q.isEmpty())
+                    return false;
+            return true;
+        }
+
+        private boolean isStale(@NonNull Outbound o) {
+            final long maxAge = telemetryMaxAgeNanos;
+            return o.priority == Priority.TELEMETRY && maxAge > 0 && System.nanoTime() - o.queuedAt > maxAge;
+        }
+
+        // expire overdue replies and send a probe if due; returns the time left until the earliest deadline
+        private long timers(long now) {
+            return Math.min(table.sweep(now, rtt), watchdog(now));
+        }
+
+        // turn the given command and those queued after it into frames, arming the deadlines of their replies; the result is empty when all of them have been dropped
+        @NonNull
+        private List<Command> gather(@NonNull Outbound o) {
+            drained.clear();
+            do {
+                drained.add(o);
+            } while (drained.size() < MAX_GATHER && (o = poll()) != null);
+            frames.clear();
+            replies.clear();
+            for (int i = 0; i < drained.size(); )
+                i = prepare(i);
+            if (!frames.isEmpty()) {
+                final long writtenAt = System.nanoTime(), timeout = rtt.getTimeout(TimeUnit.NANOSECONDS);
+                for (FutureReply r : replies)
+                    table.arm(r, writtenAt, timeout);
+            }
+            return frames;
+        }
+
+        // the frames last gathered could not be written
+        private void failed(@NonNull Throwable e, boolean fatal) {
+            Log.e(TAG, String.format("exception caught while writing %d commands: %s", frames.size(), e));
+            for (FutureReply r : replies)
+                r.fail(e);
+            if (fatal && e instanceof IOException)
+                fail(e);
+        }
+
+        // turn the drained command at the given index, and possibly the following ones, into a frame; returns the index of the next command to be prepared
+        private int prepare(int i) {
+            Outbound o = drained.get(i);
+            if (o.key != null)
+                latest.remove(o.key, o);
+            if (o.dropped)
+                return i + 1;
+            if (isStale(o)) {
+                if (o.reply != null)
+                    o.reply.fail(new TimeoutException("stale telemetry command dropped"));
+                o.discarded();
+                return i + 1;
+            }
+            if (o.reply == null) {
+                frames.add(o.take().withCounter(table.nextSequence()));
+                return i + 1;
+            }
+            if (o.reply.isDone())   // skip commands cancelled before being written
+                return i + 1;
+            if (isBatchable(o)) {
+                int next = collectBatch(i);
+                if (members.size() > 1) {
+                    mergeBatch();
+                    return next;
+                }
+            }
+            register(o.cmd, o.reply);
+            return i + 1;
+        }
+
+        private void register(@NonNull Command cmd, @NonNull FutureReply r) {
+            try {
+                frames.add(cmd.withCounter(table.register(r)));
+                replies.add(r);
+            } catch (IOException e) {
+                r.fail(e);
+            }
+        }
+
+        // collect consecutive batchable commands starting at the given index into members; returns the index of the first command left out
+        private int collectBatch(int i) {
+            members.clear();
+            int offset = 0;
+            final int maxOps = batchMaxOps;
+            for (; i < drained.size() && members.size() < maxOps; ++i) {
+                Outbound o = drained.get(i);
+                if (!isBatchable(o))
+                    break;
+                if (Objects.requireNonNull(o.reply).isDone() || isStale(o)) {
+                    if (!o.reply.isDone())
+                        o.reply.fail(new TimeoutException("stale telemetry command dropped"));
+                    continue;
+                }
+                if (offset + o.reservation > MAX_BATCH_RESERVATION || Bytecode.getMaxGlobalIndex(o.cmd.getData(), Objects.requireNonNull(o.globals)) + offset > MAX_BATCH_GLOBAL_INDEX)
+                    break;
+                if (!members.isEmpty() && o.scope != members.get(0).scope)     // a batch belongs to one scope only, for cancelScope() to find it
+                    break;
+                members.add(o);
+                offset += o.reservation;
+            }
+            return i;
+        }
+
+        private void mergeBatch() {
+            final int n = members.size();
+            final FutureReply[] children = new FutureReply[n];
+            final int[] offsets = new int[n];
+            final int[] lengths = new int[n];
+            Bytecode bc = Bytecode.obtain();
+            int offset = 0;
+            try {
+                for (int k = 0; k < n; ++k) {
+                    Outbound o = members.get(k);
+                    bc.append(o.cmd.getData(), Objects.requireNonNull(o.globals), offset);
+                    children[k] = o.reply;
+                    offsets[k] = offset;
+                    lengths[k] = o.reservation;
+                    offset += o.reservation;
+                }
+            } catch (IOException e) {
+                for (Outbound o : members)
+                    Objects.requireNonNull(o.reply).fail(e);
+                bc.recycle();
+                return;
+            }
+            FutureReply batch = new FutureReply(table, window);
+            batch.scope = members.get(0).scope;
+            batch.onComplete(p -> {
+                Reply r = p.getNow(null);
+                for (int k = 0; k < n; ++k) {
+                    if (r != null)
+                        children[k].complete(r.slice(offsets[k], lengths[k]));
+                    else
+                        children[k].fail(Objects.requireNonNull(p.getFailure()));
+                }
+                // slices hold the buffer on their own
+                if (r != null)
+                    r.release();
+            });
+            register(new Command(true, 0, offset, bc.getBytes()), batch);
+            bc.recycle();
+        }
+    }
+
+    private class WriterTask extends AsyncTask<Void, Void, Void> {
+        private final String TAG = ReTAG("WriterTask");
+        @Nullable
+        private volatile Thread thread = null;
+        private volatile boolean parked = false;
+
+        // called by producers after enqueuing; urgent wakeups unpark the thread anyway, so that it does not linger or, when not parked yet, it does not park at all
+        private void wakeUp(boolean urgent) {
+            Thread t = thread;
+            if ((parked || urgent) && t != null)
+                LockSupport.unpark(t);
+        }
+
+        @Override
+        protected Void doInBackground(Void... voids) {
+            Log.v(TAG, "writer task started");
+            Thread.currentThread().setName(TAG);
+            thread = Thread.currentThread();
+            while (!isCancelled()) {
+                final long left = writer.timers(System.nanoTime());
+                Outbound o = writer.poll();
+                if (o == null) {
+                    // sleep until the earliest deadline, unless new commands come first
+                    parked = true;
+                    if (writer.isEmpty()) {
+                        if (left == Long.MAX_VALUE)
+                            LockSupport.park(this);
+                        else
+                            LockSupport.parkNanos(this, left);
+                    }
+                    parked = false;
+                    continue;
+                }
+                // linger for other commands to join the batch
+                final long linger = batchWindowNanos;
+                if (linger > 0 && o.priority != Priority.SAFETY && writer.isBatchable(o) && writer.isEmpty())
+                    LockSupport.parkNanos(this, linger);
+                List<Command> frames = writer.gather(o);
+                if (frames.isEmpty())
+                    continue;
+                try {
+                    channel.send(frames);
+                } catch (Throwable e) {
+                    writer.failed(e, !isCancelled());
+                }
+            }
+            Log.v(TAG, "writer task quitting due to cancellation");
+            return null;
+        }
     }
 
     private static class SpoolerTask extends AsyncTask<Void, Void, Void> {
@@ -58,11 +756,14 @@ public class SpooledAsyncChannel implements AsyncChannel {
         @NonNull
         private final Channel channel;
         @NonNull
-        private final List<FutureReply> q;
+        private final Consumer<Reply> onReceive;
+        @NonNull
+        private final Consumer<Throwable> onFatal;
 
-        private SpoolerTask(@NonNull Channel ch, @NonNull List<FutureReply> q) {
+        private SpoolerTask(@NonNull Channel ch, @NonNull Consumer<Reply> onReceive, @NonNull Consumer<Throwable> onFatal) {
             this.channel = ch;
-            this.q = q;
+            this.onReceive = onReceive;
+            this.onFatal = onFatal;
         }
 
         @SuppressLint("DefaultLocale")
@@ -75,16 +776,15 @@ public class SpooledAsyncChannel implements AsyncChannel {
             @Nullable Throwable last = null;
             while (!isCancelled()) {
                 try {
-                    Reply r = channel.receive();
-                    synchronized (q) {
-                        for (FutureReply t : q) {
-                            if (t.id == r.getCounter()) {
-                                t.setReply(r);
-                                break;
-                            }
-                        }
-                    }
+                    onReceive.call(channel.receive());
                     retries = MAX_RETRIES;
+                } catch (IOException e) {
+                    // EOF and I/O errors mean the link is gone: retrying would only delay the failure of pending commands
+                    if (!isCancelled()) {
+                        cause = String.format("fatal exception %s", e);
+                        onFatal.call(e);
+                    }
+                    break;
                 } catch (Throwable e) {
                     Log.e(TAG, String.format("recoverable exception caught: %s", e));
                     e.printStackTrace();
@@ -105,135 +805,306 @@ public class SpooledAsyncChannel implements AsyncChannel {
     }
 
     /**
-     * This class implements a {@link Future} over a {@link Reply} object specifically tailored for the {@link SpooledAsyncChannel} outer class.
-     * Access is thread-safe and the hosted reply is <b>stored once</b> and returned at each call of the {@link #get()} method.
+     * This class implements a {@link Promise} over a {@link Reply} object specifically tailored for the {@link SpooledAsyncChannel} outer class.
+     * Access is thread-safe and lock-free, and the hosted reply is <b>stored once</b> and returned at each call of the {@link #get()} method.
      * Calls to {@link #get()} and {@link #get(long, TimeUnit)} are <b>blocking</b> when the reply is yet to be received; subsequent calls return immediately.
-     * Cancellation is not supported.
+     * Continuations can be attached via {@link #thenApply(Function)} without blocking any thread.
+     * Cancellation releases waiters at once and frees the slot the command was taking in the reply table.
      *
-     * @see Future
+     * @see Promise
      */
-    public static class FutureReply implements Future<Reply> {
+    public static class FutureReply extends Promise<Reply> {
         private static final long GET_MAX_TIMEOUT_MS = 30000;
-        private final int id;
         @NonNull
-        private final Lock lock = new ReentrantLock();
+        private final ReplyTable table;
         @NonNull
-        private final Condition cond = lock.newCondition();
-        @Nullable
-        private Reply reply = null;
-        private boolean waiting;
+        private final CreditWindow window;
+        private volatile int id;
+        private final long issuedAt = System.currentTimeMillis();
+        private volatile int credit = -1;
+        private volatile int scope = 0;
+        private long writtenAt;
+        private volatile long deadline;
+        private volatile boolean armed = false;
 
-        private FutureReply(int id) {
-            this.id = id;
+        FutureReply(@NonNull ReplyTable table, @NonNull CreditWindow window) {
+            this.table = table;
+            this.window = window;
         }
 
-        private void setReply(@Nullable Reply r) {
-            lock.lock();
-            try {
-                reply = r;
-                cond.signalAll();
-            } finally {
-                lock.unlock();
-            }
+        int getScope() {
+            return scope;
         }
 
-        /**
-         * Attempt at cancelling the blocking wait performed by {@link #get(long, TimeUnit)} and {@link #get()}.
-         *
-         * @param b may interrupt.
-         * @return always false.
-         * @implNote Cancellation is not supported.
-         */
-        @Override
-        public boolean cancel(boolean b) {
-            return false;
+        void setId(int id) {
+            this.id = id;
         }
 
         /**
-         * Tests if wait has been cancelled
+         * Get the sequence number of the command this future reply is bound to.
          *
-         * @return always false.
-         * @implNote Cancellation is not supported.
+         * @return the 16-bit sequence number.
          */
-        @Override
-        public boolean isCancelled() {
-            return false;
+        public int getId() {
+            return id;
+        }
+
+        long getIssuedAt() {
+            return issuedAt;
+        }
+
+        // called by the reply table when arming the deadline, right before writing the command
+        void setWritten(long now, long timeout) {
+            writtenAt = now;
+            deadline = now + timeout;
+            armed = true;
+        }
+
+        boolean hasDeadline() {
+            return armed;
+        }
+
+        long getWrittenAt() {
+            return writtenAt;
+        }
+
+        long getDeadline() {
+            return deadline;
         }
 
-        /**
-         * Check whether the future hosts the internal reply.
-         *
-         * @return true when the reply has been stored.
-         */
         @Override
-        public boolean isDone() {
-            lock.lock();
-            try {
-                return reply != null;
-            } finally {
-                lock.unlock();
-            }
+        protected void done() {
+            table.release(this);
+            if (credit >= 0)
+                window.release(credit);
         }
 
         /**
-         * Get the reply with the default timeout (30 seconds).
+         * Get the reply.
          * This method is <b>blocking</b> when the reply is yet to be received; subsequent calls return immediately.
+         * There is no need for a timeout, as the channel fails the future with a {@link TimeoutException} once the deadline of the command, based on the round-trip time estimate, expires.
          *
-         * @return the {@link Reply} object.
+         * @return the {@link Reply} object, which the caller owns and should release once decoded, see {@link Reply#release()}.
          * @throws InterruptedException thrown when interrupted.
+         * @throws ExecutionException   thrown when the deadline expires or the command failed.
+         * @see RttEstimator
          */
         @Override
         @NonNull
         public Reply get() throws InterruptedException, ExecutionException {
-            try {
-                return get(GET_MAX_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-            } catch (TimeoutException e) {
-                throw new ExecutionException(e);
-            }
+            return Objects.requireNonNull(super.get());
         }
+    }
 
-        /**
-         * Get the reply with the given timeout.
-         * This method is <b>blocking</b> when the reply is yet to be received; subsequent calls return immediately.
-         *
-         * @param l        amount of time units to wait.
-         * @param timeUnit the time unit.
-         * @return the {@link Reply} object.
-         * @throws InterruptedException thrown when interrupted.
-         */
-        @NonNull
-        @Override
-        public Reply get(long l, @NonNull TimeUnit timeUnit) throws InterruptedException, TimeoutException {
-            lock.lock();
-            try {
-                if (reply == null)
-                    cond.await(l, timeUnit);
-                if (reply == null) throw new TimeoutException(String.format("FutureReply.get() timed out (%d %s)", l, timeUnit));
-                return reply;
-            } finally {
-                lock.unlock();
-            }
+    private void enqueue(@NonNull Outbound o) {
+        o.scope = o.reply != null ? o.reply.scope : scope;
+        lanes[laneOf(o.priority)].offer(o);
+        if (isCancelled(o.scope) && o.priority != Priority.SAFETY)  // the scope has been cancelled meanwhile
+            o.cancel();
+        ChannelFailedException e = failure;
+        if (e != null)  // the channel failed meanwhile and may have drained the lanes already
+            drainLanes(e);
+        else
+            wakeWriter(o.priority == Priority.SAFETY);
+    }
+
+    private void checkOpen() throws ChannelFailedException {
+        ChannelFailedException e = failure;
+        if (e != null)
+            throw e;
+    }
+
+    // globals are the positions of the global indices within the bytecode of the command, when known, which allows merging it into a batch;
+    // commands that cannot block are rejected when the window is full, as with Backpressure.REJECT
+    @NonNull
+    private FutureReply send(@NonNull Command cmd, @Nullable int[] globals, @NonNull Priority priority, boolean block) throws IOException {
+        FutureReply r = new FutureReply(table, window);
+        ChannelFailedException failed = failure;
+        if (failed != null) {
+            r.fail(failed);
+            return r;
+        }
+        r.scope = scope;
+        if (isCancelled(r.scope) && priority != Priority.SAFETY) {
+            r.cancel(true);
+            return r;
         }
+        if (priority == Priority.SAFETY) {
+            enqueue(new Outbound(cmd, r, globals, priority));
+            return r;
+        }
+        final int reservation = cmd.getGlobalReservation();
+        try {
+            if (!block || backpressure == Backpressure.REJECT) {
+                if (!window.tryAcquire(reservation))
+                    throw new RejectedExecutionException("in-flight window full");
+            } else
+                window.acquire(reservation, FutureReply.GET_MAX_TIMEOUT_MS);
+        } catch (RejectedExecutionException e) {
+            r.fail(e);
+            return r;
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting for in-flight window");
+        }
+        r.credit = reservation;
+        enqueue(new Outbound(cmd, r, globals, priority));
+        return r;
     }
 
+    /**
+     * Send a {@link Command} asynchronously: the command is queued and written by the writer thread.
+     *
+     * @param cmd the command to be sent.
+     * @return the future reply, which the caller owns and should release once decoded, see {@link Reply#release()}.
+     * @throws IOException thrown when interrupted while waiting for the in-flight window; communication errors are reported through the future.
+     */
     @Override
     @NonNull
     public FutureReply send(@NonNull Command cmd) throws IOException {
-        channel.send(cmd);
-        FutureReply r = new FutureReply(cmd.getCounter());
-        q.add(r);
-        return r;
+        return send(cmd, null, Priority.CONTROL, true);
     }
 
+    /**
+     * Send a command with reply asynchronously: the command is queued and written by the writer thread.
+     * Commands sent via this method can be merged with others when batching is enabled.
+     *
+     * @param reservation number of bytes for the global reservation on the GenEV3.
+     * @param bc          object of type Bytecode with the command.
+     * @return the future reply, which the caller owns and should release once decoded, see {@link Reply#release()}.
+     * @throws IOException thrown when interrupted while waiting for the in-flight window; communication errors are reported through the future.
+     * @see #setBatching(int, long)
+     */
     @NonNull
     @Override
     public FutureReply send(int reservation, @NonNull Bytecode bc) throws IOException {
-        return send(new Command(true, 0, reservation, bc.getBytes()));
+        return send(reservation, bc, Priority.CONTROL);
+    }
+
+    /**
+     * Send a command with reply asynchronously with the given priority: the command is queued into the lane of its priority class and written by the writer thread.
+     * Commands sent via this method can be merged with others when batching is enabled.
+     *
+     * @param reservation number of bytes for the global reservation on the GenEV3.
+     * @param bc          object of type Bytecode with the command.
+     * @param priority    the priority class of the command.
+     * @return the future reply, which the caller owns and should release once decoded, see {@link Reply#release()}.
+     * @throws IOException thrown when interrupted while waiting for the in-flight window; communication errors are reported through the future.
+     * @see #setBatching(int, long)
+     */
+    @NonNull
+    @Override
+    public FutureReply send(int reservation, @NonNull Bytecode bc, @NonNull Priority priority) throws IOException {
+        return send(reservation, bc, priority, true);
+    }
+
+    /**
+     * Send a command with reply asynchronously with the given priority, never blocking the caller regardless of the {@link Backpressure} policy:
+     * when the in-flight window is full, the future fails at once with a {@link RejectedExecutionException}.
+     *
+     * @param reservation number of bytes for the global reservation on the GenEV3.
+     * @param bc          object of type Bytecode with the command.
+     * @param priority    the priority class of the command.
+     * @return the future reply, which the caller owns and should release once decoded, see {@link Reply#release()}.
+     * @throws IOException never thrown, as communication errors are reported through the future.
+     */
+    @NonNull
+    @Override
+    public FutureReply trySend(int reservation, @NonNull Bytecode bc, @NonNull Priority priority) throws IOException {
+        return send(reservation, bc, priority, false);
     }
 
+    @NonNull
+    private FutureReply send(int reservation, @NonNull Bytecode bc, @NonNull Priority priority, boolean block) throws IOException {
+        final int locals = bc.getLocalReservation();
+        // commands with jumps or local variables are never merged
+        return send(new Command(true, locals, reservation, bc.getBytes()), bc.isRelocatable() && locals == 0 ? bc.getGlobalPositions() : null, priority, block);
+    }
+
+    /**
+     * Send a command with no reply asynchronously: the command is queued and written by the writer thread.
+     *
+     * @param bc the object of type Bytecode.
+     * @throws IOException thrown when interrupted while waiting for the in-flight window; communication errors are only logged, as there is no reply to report them through.
+     */
     @Override
     public void sendNoReply(@NonNull Bytecode bc) throws IOException {
-        channel.send(new Command(false, 0, 0, bc.getBytes()));
+        sendNoReply(bc, Priority.CONTROL);
+    }
+
+    /**
+     * Send a command with no reply asynchronously with the given priority: the command is queued into the lane of its priority class and written by the writer thread.
+     *
+     * @param bc       the object of type Bytecode.
+     * @param priority the priority class of the command.
+     * @throws IOException thrown when interrupted while waiting for the in-flight window; communication errors are only logged, as there is no reply to report them through.
+     */
+    @Override
+    public void sendNoReply(@NonNull Bytecode bc, @NonNull Priority priority) throws IOException {
+        awaitRoom(priority, true);
+        enqueue(new Outbound(new Command(false, bc.getLocalReservation(), 0, bc.getBytes()), null, null, priority));
+    }
+
+    /**
+     * Send a command with no reply asynchronously with the given priority, never blocking the caller regardless of the {@link Backpressure} policy.
+     *
+     * @param bc       the object of type Bytecode.
+     * @param priority the priority class of the command.
+     * @throws IOException                thrown when the channel has failed.
+     * @throws RejectedExecutionException thrown when the in-flight window is full.
+     */
+    @Override
+    public void trySendNoReply(@NonNull Bytecode bc, @NonNull Priority priority) throws IOException {
+        awaitRoom(priority, false);
+        enqueue(new Outbound(new Command(false, bc.getLocalReservation(), 0, bc.getBytes()), null, null, priority));
+    }
+
+    /**
+     * Send a command with no reply asynchronously, superseding any previous command sent with the same key that the writer thread has not written yet.
+     * The new command takes the place of the superseded one in its lane, hence commands sent in between are not overtaken by an older value nor overtake the new one:
+     * e.g. setting power to 50, starting and setting power to 60 writes power 60 then start. When the superseded command belongs to another priority class or scope,
+     * it is skipped and the new one is queued at the tail of the lane of its priority class instead.
+     * The given hook is run when the command is dropped for other reasons before being written, i.e. when its scope is cancelled or the channel fails.
+     *
+     * @param key       the conflation key: commands with the same key supersede each other.
+     * @param bc        the object of type Bytecode.
+     * @param priority  the priority class of the command.
+     * @param onDropped the hook, or null if none; it is run by the thread dropping the command, hence it must return quickly.
+     * @throws IOException thrown when interrupted while waiting for the in-flight window; communication errors are only logged, as there is no reply to report them through.
+     */
+    @Override
+    public void sendLatest(int key, @NonNull Bytecode bc, @NonNull Priority priority, @Nullable Runnable onDropped) throws IOException {
+        awaitRoom(priority, true);
+        final Command cmd = new Command(false, bc.getLocalReservation(), 0, bc.getBytes());
+        Outbound prev = latest.get(key);
+        if (prev != null && prev.replace(cmd, priority, scope, onDropped))
+            return;
+        Outbound o = new Outbound(cmd, null, null, priority);
+        o.key = key;
+        o.onDropped = onDropped;
+        o.scope = scope;
+        prev = latest.put(key, o);
+        if (prev != null)
+            prev.supersede();
+        enqueue(o);
+    }
+
+    // commands with no reply take no credits, though they are held back while the window is full
+    private void awaitRoom(@NonNull Priority priority, boolean block) throws IOException {
+        checkOpen();
+        if (isCancelled(scope) && priority != Priority.SAFETY)
+            throw new CancellationException("scope cancelled");
+        if (priority == Priority.SAFETY) {
+            // never held back by the window
+        } else if (!block || backpressure == Backpressure.REJECT) {
+            if (!window.hasRoom())
+                throw new RejectedExecutionException("in-flight window full");
+        } else {
+            try {
+                window.awaitRoom(FutureReply.GET_MAX_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while waiting for in-flight window");
+            }
+        }
     }
 
 }
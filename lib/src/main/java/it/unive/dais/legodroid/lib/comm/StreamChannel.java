@@ -0,0 +1,19 @@
+package it.unive.dais.legodroid.lib.comm;
+
+import java.nio.channels.SocketChannel;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Classes implementing this interface are channels carrying length-prefixed frames over a non-blocking socket.
+ * Besides being used synchronously as any other {@link Channel}, they can be served by an {@link IoReactor}, which reads and writes the socket directly.
+ */
+public interface StreamChannel extends Channel {
+    /**
+     * Get the underlying socket, which is in non-blocking mode.
+     *
+     * @return the socket channel.
+     */
+    @NonNull
+    SocketChannel getSocketChannel();
+}
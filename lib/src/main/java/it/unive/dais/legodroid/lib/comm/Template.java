@@ -0,0 +1,250 @@
+package it.unive.dais.legodroid.lib.comm;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import androidx.annotation.NonNull;
+import it.unive.dais.legodroid.lib.util.UnexpectedException;
+
+/**
+ * This class represents a precompiled direct command whose bytes are encoded once and never change, except for a few variable parameters called slots.
+ * Slots are encoded in a fixed-size form, hence their positions are known in advance: instantiating a template is a bulk copy of its bytes into a pooled
+ * {@link Bytecode} followed by a patch of the slots, instead of encoding every part from scratch.
+ * Instances of this class are immutable and thread-safe, therefore they are meant to be built once, e.g. one per port, and shared; use {@link Builder} to build them.
+ * <p>
+ * A typical use is:
+ * <pre>{@code
+ * Template t = new Template.Builder().addOpCode(Const.OUTPUT_POWER).addConstant(Const.LAYER_MASTER).addConstant(port.toBitmask()).addByteSlot().build();
+ * Bytecode bc = t.obtain(power);
+ * api.sendNoReply(bc);
+ * bc.recycle();
+ * }</pre>
+ */
+public final class Template {
+    @NonNull
+    private final byte[] bytes;
+    @NonNull
+    private final int[] globals;
+    @NonNull
+    private final int[] slots;
+    @NonNull
+    private final byte[] widths;
+
+    /**
+     * This class builds objects of type {@link Template}.
+     * Parts are appended in the same way as {@link Bytecode} does; constants are encoded in the shortest legal form.
+     */
+    public static class Builder {
+        @NonNull
+        private final Bytecode bc = new Bytecode();
+        @NonNull
+        private int[] slots = new int[2];
+        @NonNull
+        private byte[] widths = new byte[2];
+        private int nslots = 0;
+
+        /**
+         * Append the given op-code.
+         *
+         * @param opcode the op-code as a byte.
+         * @return this builder.
+         */
+        @NonNull
+        public Builder addOpCode(byte opcode) {
+            try {
+                bc.addOpCode(opcode);
+            } catch (IOException e) {
+                throw new UnexpectedException("encoding a template cannot fail", e);
+            }
+            return this;
+        }
+
+        /**
+         * Append the given constant in the shortest legal encoding.
+         *
+         * @param value the constant.
+         * @return this builder.
+         * @see Bytecode#addConstant(int)
+         */
+        @NonNull
+        public Builder addConstant(int value) {
+            try {
+                bc.addConstant(value);
+            } catch (IOException e) {
+                throw new UnexpectedException("encoding a template cannot fail", e);
+            }
+            return this;
+        }
+
+        /**
+         * Append the given global index in the shortest legal encoding.
+         *
+         * @param index the global index.
+         * @return this builder.
+         * @throws IllegalArgumentException thrown when the index is out of range.
+         * @see Bytecode#addGlobalIndex(int)
+         */
+        @NonNull
+        public Builder addGlobalIndex(int index) {
+            try {
+                bc.addGlobalIndex(index);
+            } catch (IOException e) {
+                throw new UnexpectedException("encoding a template cannot fail", e);
+            }
+            return this;
+        }
+
+        /**
+         * Append a variable parameter encoded as an 8-bit constant.
+         * The slot always takes 2 bytes, i.e. the LC1 prefix and the value: this is 1 byte more than the LC0 form {@link Bytecode#addConstant(int)} picks for values
+         * within [ -31 - 31 ], e.g. most power levels and port numbers, which is the price of slots having a fixed position. Parameters that never change should be added as constants.
+         *
+         * @return this builder.
+         */
+        @NonNull
+        public Builder addByteSlot() {
+            return addSlot(1);
+        }
+
+        /**
+         * Append a variable parameter encoded as a 16-bit constant.
+         * The slot always takes 3 bytes, i.e. the LC2 prefix and the value, see {@link #addByteSlot()}.
+         *
+         * @return this builder.
+         */
+        @NonNull
+        public Builder addShortSlot() {
+            return addSlot(2);
+        }
+
+        /**
+         * Append a variable parameter encoded as a 32-bit constant.
+         * The slot always takes 5 bytes, i.e. the LC4 prefix and the value, see {@link #addByteSlot()}.
+         *
+         * @return this builder.
+         */
+        @NonNull
+        public Builder addIntSlot() {
+            return addSlot(4);
+        }
+
+        @NonNull
+        private Builder addSlot(int width) {
+            if (nslots == slots.length) {
+                slots = Arrays.copyOf(slots, 2 * nslots);
+                widths = Arrays.copyOf(widths, 2 * nslots);
+            }
+            try {
+                switch (width) {
+                    case 1:
+                        bc.addParameter((byte) 0);
+                        break;
+                    case 2:
+                        bc.addParameter((short) 0);
+                        break;
+                    default:
+                        bc.addParameter(0);
+                }
+            } catch (IOException e) {
+                throw new UnexpectedException("encoding a template cannot fail", e);
+            }
+            // the value follows the 1-byte size prefix
+            slots[nslots] = bc.length() - width;
+            widths[nslots++] = (byte) width;
+            return this;
+        }
+
+        /**
+         * Build the template.
+         * The builder can be used further: parts appended afterwards do not affect the templates already built.
+         *
+         * @return a new object of type {@link Template}.
+         */
+        @NonNull
+        public Template build() {
+            return new Template(bc.getBytes(), bc.getGlobalPositions(), Arrays.copyOf(slots, nslots), Arrays.copyOf(widths, nslots));
+        }
+    }
+
+    private Template(@NonNull byte[] bytes, @NonNull int[] globals, @NonNull int[] slots, @NonNull byte[] widths) {
+        this.bytes = bytes;
+        this.globals = globals;
+        this.slots = slots;
+        this.widths = widths;
+    }
+
+    /**
+     * Get the number of slots of this template.
+     *
+     * @return the number of slots.
+     */
+    public int getSlotCount() {
+        return slots.length;
+    }
+
+    /**
+     * Get the length of the bytecode of this template.
+     *
+     * @return the length in bytes.
+     */
+    public int length() {
+        return bytes.length;
+    }
+
+    /**
+     * Instantiate the template into a pooled {@link Bytecode}, leaving all slots to 0.
+     * Call {@link Bytecode#recycle()} once the result has been sent.
+     *
+     * @return an object of type {@link Bytecode}.
+     */
+    @NonNull
+    public Bytecode obtain() {
+        Bytecode r = Bytecode.obtain();
+        r.load(bytes, globals);
+        return r;
+    }
+
+    /**
+     * Instantiate the template into a pooled {@link Bytecode}, setting the first slot.
+     *
+     * @param v0 the value of slot 0, truncated to the size of the slot.
+     * @return an object of type {@link Bytecode}.
+     * @throws IndexOutOfBoundsException thrown when the template has fewer slots.
+     * @see #obtain()
+     */
+    @NonNull
+    public Bytecode obtain(int v0) {
+        Bytecode r = obtain();
+        patch(r, 0, v0);
+        return r;
+    }
+
+    /**
+     * Instantiate the template into a pooled {@link Bytecode}, setting the first two slots.
+     *
+     * @param v0 the value of slot 0, truncated to the size of the slot.
+     * @param v1 the value of slot 1, truncated to the size of the slot.
+     * @return an object of type {@link Bytecode}.
+     * @throws IndexOutOfBoundsException thrown when the template has fewer slots.
+     * @see #obtain()
+     */
+    @NonNull
+    public Bytecode obtain(int v0, int v1) {
+        Bytecode r = obtain(v0);
+        patch(r, 1, v1);
+        return r;
+    }
+
+    /**
+     * Set the value of a slot of a bytecode instantiated from this template.
+     * Only bytecodes obtained from this very template and with nothing appended before it can be patched.
+     *
+     * @param bc    the bytecode obtained from this template.
+     * @param slot  the slot number.
+     * @param value the value, truncated to the size of the slot.
+     * @throws IndexOutOfBoundsException thrown when the slot does not exist.
+     */
+    public void patch(@NonNull Bytecode bc, int slot, int value) {
+        bc.patch(slots[slot], widths[slot], value);
+    }
+}
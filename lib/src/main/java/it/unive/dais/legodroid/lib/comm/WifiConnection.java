@@ -0,0 +1,311 @@
+package it.unive.dais.legodroid.lib.comm;
+
+import android.util.Log;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import it.unive.dais.legodroid.lib.util.Prelude;
+
+import static it.unive.dais.legodroid.lib.util.Prelude.ReTAG;
+
+/**
+ * This class implements a {@link Connection} between the Android device and the GenEV3 via TCP, i.e. over Wi-Fi.
+ * Instances of this class do not represent an active connection but rather a factory for creating the actual connection channel.
+ * The type of the channel is the inner class {@link TcpChannel}.
+ * The brick opens its TCP port {@link #DEFAULT_PORT} only after a UDP datagram has arrived on the port its beacon is broadcast from, and accepts commands only once it has been unlocked
+ * by a handshake carrying its serial number: this class performs both on connection, see {@link #connect()}.
+ * Afterwards commands and replies travel with the same length-prefixed framing as over Bluetooth.
+ * Objects created by {@link WifiDiscovery#connection(WifiDiscovery.Brick)} know the beacon port of the brick already.
+ */
+public class WifiConnection implements Connection<WifiConnection.TcpChannel> {
+    private static final String TAG = ReTAG("WifiConnection");
+
+    /**
+     * TCP port the brick listens on.
+     */
+    public static final int DEFAULT_PORT = 5555;
+    /**
+     * Default timeout in milliseconds for connecting and completing the handshake.
+     */
+    public static final int DEFAULT_TIMEOUT_MS = 5000;
+    /**
+     * Beacon port meaning that no wake-up datagram is sent, for bricks whose TCP port is known to be open already.
+     */
+    public static final int NO_BEACON_PORT = -1;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final String ACCEPT = "Accept:EV340";
+    private static final int MAX_HANDSHAKE_SIZE = 128;
+
+    @NonNull
+    private final InetSocketAddress address;
+    @NonNull
+    private final String serialNumber;
+    private final int timeout;
+    private final int beaconPort;
+
+    /**
+     * Create an object given the address of the brick, its serial number and the port its beacon is broadcast from.
+     *
+     * @param address      the address and port of the brick.
+     * @param serialNumber the serial number of the brick, as shown in the brick info menu or broadcast by its beacon.
+     * @param timeout      the timeout in milliseconds for connecting and completing the handshake.
+     * @param beaconPort   the UDP port the wake-up datagram is sent to, i.e. the source port of the beacon of the brick, or {@link #NO_BEACON_PORT} for sending none.
+     */
+    public WifiConnection(@NonNull InetSocketAddress address, @NonNull String serialNumber, int timeout, int beaconPort) {
+        this.address = address;
+        this.serialNumber = serialNumber;
+        this.timeout = timeout;
+        this.beaconPort = beaconPort;
+    }
+
+    /**
+     * Create an object given the address of the brick and its serial number, sending no wake-up datagram.
+     * This works only with bricks whose TCP port is open already; otherwise pass the beacon port via {@link #WifiConnection(InetSocketAddress, String, int, int)}.
+     *
+     * @param address      the address and port of the brick.
+     * @param serialNumber the serial number of the brick, as shown in the brick info menu or broadcast by its beacon.
+     * @param timeout      the timeout in milliseconds for connecting and completing the handshake.
+     */
+    public WifiConnection(@NonNull InetSocketAddress address, @NonNull String serialNumber, int timeout) {
+        this(address, serialNumber, timeout, NO_BEACON_PORT);
+    }
+
+    /**
+     * Create an object given the host name of the brick and its serial number, using the default port and timeout.
+     * The wake-up datagram is sent to {@link WifiDiscovery#BEACON_PORT}, which bricks broadcast their beacon from.
+     *
+     * @param host         the host name or IP address of the brick.
+     * @param serialNumber the serial number of the brick, as shown in the brick info menu or broadcast by its beacon.
+     */
+    public WifiConnection(@NonNull String host, @NonNull String serialNumber) {
+        this(new InetSocketAddress(host, DEFAULT_PORT), serialNumber, DEFAULT_TIMEOUT_MS, WifiDiscovery.BEACON_PORT);
+    }
+
+    /**
+     * Get the address of the brick.
+     *
+     * @return the socket address.
+     */
+    @NonNull
+    public InetSocketAddress getAddress() {
+        return address;
+    }
+
+    /**
+     * Create a channel for communication.
+     * Each call to this method sends the wake-up datagram, unless there is no beacon port, then opens a new TCP connection and performs the unlock handshake, hence produces a distinct channel.
+     *
+     * @return an object of type {@link TcpChannel}.
+     * @throws SocketTimeoutException thrown when the brick does not accept the connection or does not answer the handshake in time.
+     * @throws IOException            thrown when communication errors occur or the brick rejects the handshake.
+     */
+    @NonNull
+    @Override
+    public TcpChannel connect() throws IOException {
+        if (beaconPort != NO_BEACON_PORT)
+            wake();
+        SocketChannel sc = SocketChannel.open();
+        TcpChannel ch = null;
+        try {
+            sc.configureBlocking(false);
+            sc.socket().setTcpNoDelay(true);
+            if (!sc.connect(address))
+                finishConnect(sc);
+            ch = new TcpChannel(sc);
+            ch.handshake();
+            Log.v(TAG, String.format("tcp connected successfully to brick '%s' at %s", serialNumber, address));
+            return ch;
+        } catch (IOException e) {
+            if (ch != null)
+                ch.close();
+            else
+                Prelude.trap(sc::close);
+            throw e;
+        }
+    }
+
+    // bricks open their TCP port only after having been answered a datagram on the port their beacon comes from
+    private void wake() throws IOException {
+        if (address.isUnresolved())
+            throw new UnknownHostException(address.getHostString());
+        try (DatagramSocket s = new DatagramSocket()) {
+            s.send(new DatagramPacket(new byte[]{0}, 1, address.getAddress(), beaconPort));
+        }
+    }
+
+    private void finishConnect(@NonNull SocketChannel sc) throws IOException {
+        try (Selector sel = Selector.open()) {
+            sc.register(sel, SelectionKey.OP_CONNECT);
+            final long deadline = System.currentTimeMillis() + timeout;
+            while (!sc.finishConnect()) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0)
+                    throw new SocketTimeoutException(String.format("cannot connect to %s within %d ms", address, timeout));
+                sel.select(left);
+                sel.selectedKeys().clear();
+            }
+        }
+    }
+
+    /**
+     * This inner non-static class represents an active TCP channel through which the two connected devices communicate sending commands and receiving replies.
+     * The underlying socket is non-blocking: a blocked send or receive waits on a selector of its own, so that a thread sending and another receiving never contend for the socket.
+     *
+     * @see StreamChannel
+     */
+    public class TcpChannel implements StreamChannel {
+        private final String TAG = ReTAG(WifiConnection.TAG, ".TcpChannel");
+        @NonNull
+        private final SocketChannel socket;
+        @NonNull
+        private final Selector readSelector;
+        @NonNull
+        private final Selector writeSelector;
+        @NonNull
+        private final FrameWriter writer = new FrameWriter();
+        @NonNull
+        private final FrameReader reader;
+
+        private TcpChannel(@NonNull SocketChannel socket) throws IOException {
+            this.socket = socket;
+            this.readSelector = Selector.open();
+            this.writeSelector = Selector.open();
+            socket.register(readSelector, SelectionKey.OP_READ);
+            socket.register(writeSelector, SelectionKey.OP_WRITE);
+            this.reader = new FrameReader(new SelectingInputStream());
+        }
+
+        // unlock the brick and consume its answer, which is terminated by an empty line
+        private void handshake() throws IOException {
+            String req = String.format("GET /target?sn=%s VMTP1.0\r\nProtocol: EV3\r\n\r\n", serialNumber);
+            write(ByteBuffer.wrap(req.getBytes(ASCII)), timeout);
+            ByteBuffer ans = ByteBuffer.allocate(MAX_HANDSHAKE_SIZE);
+            final long deadline = System.currentTimeMillis() + timeout;
+            String s;
+            do {
+                if (!ans.hasRemaining())
+                    throw new IOException("handshake answer is too long");
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0 || read(ans, left) == 0)
+                    throw new SocketTimeoutException(String.format("brick did not answer the handshake within %d ms", timeout));
+                s = new String(ans.array(), 0, ans.position(), ASCII);
+            } while (!s.contains("\r\n\r\n"));
+            if (!s.startsWith(ACCEPT))
+                throw new IOException(String.format("brick rejected the handshake: %s", s.trim()));
+        }
+
+        // write the whole buffer, waiting for the socket to become writable whenever its send buffer is full
+        private void write(@NonNull ByteBuffer buf, long timeout) throws IOException {
+            while (buf.hasRemaining()) {
+                if (socket.write(buf) == 0 && !await(writeSelector, timeout))
+                    throw new SocketTimeoutException("socket is not writable");
+            }
+        }
+
+        // read at least one byte, waiting for the socket to become readable; returns 0 on timeout
+        private int read(@NonNull ByteBuffer buf, long timeout) throws IOException {
+            while (true) {
+                int n = socket.read(buf);
+                if (n < 0)
+                    throw new EOFException("connection closed by the brick");
+                if (n > 0)
+                    return n;
+                if (!await(readSelector, timeout))
+                    return 0;
+            }
+        }
+
+        // wait until the socket is ready or the timeout expires, where 0 means no timeout; closing the channel wakes up waiting threads
+        private boolean await(@NonNull Selector sel, long timeout) throws IOException {
+            try {
+                int n = sel.select(timeout);
+                sel.selectedKeys().clear();
+                return n > 0 || timeout == 0;
+            } catch (ClosedSelectorException e) {
+                throw new AsynchronousCloseException();
+            }
+        }
+
+        // adapts the non-blocking socket to the blocking stream a FrameReader expects
+        private class SelectingInputStream extends InputStream {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(@NonNull byte[] b, int off, int len) throws IOException {
+                if (len == 0)
+                    return 0;
+                try {
+                    return TcpChannel.this.read(ByteBuffer.wrap(b, off, len), 0);
+                } catch (EOFException e) {
+                    return -1;
+                }
+            }
+        }
+
+        @NonNull
+        @Override
+        public SocketChannel getSocketChannel() {
+            return socket;
+        }
+
+        @Override
+        public void send(@NonNull Command p) throws IOException {
+            write(writer.frame(p), 0);
+        }
+
+        /**
+         * Send all the given commands with a single write on the socket, as long as the socket send buffer has room for them.
+         * This is not thread-safe: callers must serialize calls, as {@link SpooledAsyncChannel} does with its writer thread.
+         *
+         * @param cmds the commands to be sent.
+         * @throws IOException thrown when communication errors occur.
+         */
+        @Override
+        public void send(@NonNull List<Command> cmds) throws IOException {
+            write(writer.frame(cmds), 0);
+        }
+
+        /**
+         * Receive the next reply: the socket is read in large chunks, hence replies arriving back to back are decoded from a single read.
+         * The reply is a view into a recycled buffer, see {@link FrameReader}.
+         *
+         * @return the object of type {@link Reply}, which the caller owns and should release once decoded, see {@link Reply#release()}.
+         * @throws IOException thrown when communication errors occur.
+         */
+        @NonNull
+        @Override
+        public Reply receive() throws IOException {
+            return reader.read();
+        }
+
+        @Override
+        public void close() {
+            Log.v(TAG, String.format("tcp disconnected from brick '%s'", serialNumber));
+            Prelude.trap(socket::close);
+            Prelude.trap(readSelector::close);
+            Prelude.trap(writeSelector::close);
+        }
+    }
+
+}
@@ -0,0 +1,373 @@
+package it.unive.dais.legodroid.lib.comm;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static it.unive.dais.legodroid.lib.util.Prelude.ReTAG;
+
+/**
+ * This class discovers EV3 bricks on the local network by listening for the UDP beacon they broadcast on port {@link #BEACON_PORT} when Wi-Fi is enabled.
+ * Discovered bricks are kept in a table indexed by serial number: each beacon refreshes its entry, and entries whose brick has not been heard of for a while expire.
+ * The table can be either queried at any time with no blocking, or followed through a {@link Listener} notified whenever a brick appears or disappears.
+ * Listening is performed by a dedicated thread started by {@link #start()} and stopped by {@link #close()}.
+ */
+public class WifiDiscovery implements AutoCloseable {
+    private static final String TAG = ReTAG("WifiDiscovery");
+
+    /**
+     * UDP port bricks broadcast their beacon to.
+     */
+    public static final int BEACON_PORT = 3015;
+    /**
+     * Default time in milliseconds after which a brick whose beacon has not been received is considered gone.
+     */
+    public static final long DEFAULT_EXPIRY_MS = 10000;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int MAX_BEACON_SIZE = 256;
+    private static final long MIN_SWEEP_MS = 250;
+
+    /**
+     * Instances of this class represent a brick as announced by its beacon. Objects are immutable: each beacon received produces a new one.
+     */
+    public static final class Brick {
+        @NonNull
+        private final String serialNumber;
+        @NonNull
+        private final String name;
+        @NonNull
+        private final InetAddress address;
+        private final int port;
+        private final int beaconPort;
+        private final long lastSeen;
+
+        private Brick(@NonNull String serialNumber, @NonNull String name, @NonNull InetAddress address, int port, int beaconPort, long lastSeen) {
+            this.serialNumber = serialNumber;
+            this.name = name;
+            this.address = address;
+            this.port = port;
+            this.beaconPort = beaconPort;
+            this.lastSeen = lastSeen;
+        }
+
+        /**
+         * Get the serial number of the brick, which is required for unlocking its TCP port.
+         *
+         * @return the serial number.
+         */
+        @NonNull
+        public String getSerialNumber() {
+            return serialNumber;
+        }
+
+        /**
+         * Get the name of the brick, as configured on the brick settings.
+         *
+         * @return the name.
+         */
+        @NonNull
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Get the IP address of the brick.
+         *
+         * @return the address.
+         */
+        @NonNull
+        public InetAddress getAddress() {
+            return address;
+        }
+
+        /**
+         * Get the TCP port the brick accepts connections on.
+         *
+         * @return the port.
+         */
+        public int getPort() {
+            return port;
+        }
+
+        /**
+         * Get the time elapsed since the last beacon of this brick was received.
+         *
+         * @param unit the time unit of the result.
+         * @return the age of the entry.
+         */
+        public long getAge(@NonNull TimeUnit unit) {
+            return unit.convert(now() - lastSeen, TimeUnit.MILLISECONDS);
+        }
+
+        // true when the announced identity differs, i.e. when a refresh is worth notifying
+        private boolean differs(@NonNull Brick b) {
+            return !name.equals(b.name) || !address.equals(b.address) || port != b.port || beaconPort != b.beaconPort;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return String.format("%s '%s' at %s:%d", serialNumber, name, address.getHostAddress(), port);
+        }
+    }
+
+    /**
+     * Classes implementing this interface are notified about changes in the table of discovered bricks.
+     * Methods are called by the discovery thread, hence they must return quickly and any operation on the UI must be delegated to runOnUiThread() invocations.
+     */
+    public interface Listener {
+        /**
+         * Called when a brick is discovered, or when a known brick announces a different name or address.
+         *
+         * @param brick the brick.
+         */
+        void onFound(@NonNull Brick brick);
+
+        /**
+         * Called when the entry of a brick expires. The default implementation does nothing.
+         *
+         * @param brick the last known state of the brick.
+         */
+        default void onLost(@NonNull Brick brick) {
+        }
+    }
+
+    private final int port;
+    private final long expiryMs;
+    @NonNull
+    private final Map<String, Brick> bricks = new ConcurrentHashMap<>();
+    @NonNull
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    @Nullable
+    private volatile DatagramSocket socket = null;
+
+    /**
+     * Create a discovery object listening on the given port.
+     *
+     * @param port     the UDP port to listen on.
+     * @param expiryMs time in milliseconds after which a brick whose beacon has not been received is removed from the table.
+     */
+    public WifiDiscovery(int port, long expiryMs) {
+        this.port = port;
+        this.expiryMs = expiryMs;
+    }
+
+    /**
+     * Create a discovery object listening on the standard beacon port, with the default expiry.
+     */
+    public WifiDiscovery() {
+        this(BEACON_PORT, DEFAULT_EXPIRY_MS);
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * Start listening for beacons on a dedicated thread. Calling this method more than once has no effect.
+     *
+     * @throws SocketException thrown when the port cannot be bound.
+     */
+    public synchronized void start() throws SocketException {
+        if (socket != null)
+            return;
+        DatagramSocket s = new DatagramSocket(null);
+        try {
+            s.setReuseAddress(true);
+            s.setBroadcast(true);
+            s.bind(new InetSocketAddress(port));
+            s.setSoTimeout((int) Math.max(MIN_SWEEP_MS, expiryMs / 4));
+        } catch (SocketException e) {
+            s.close();
+            throw e;
+        }
+        socket = s;
+        Thread t = new Thread(() -> listen(s), TAG);
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void listen(@NonNull DatagramSocket s) {
+        Log.v(TAG, String.format("listening for beacons on port %d", s.getLocalPort()));
+        DatagramPacket p = new DatagramPacket(new byte[MAX_BEACON_SIZE], MAX_BEACON_SIZE);
+        long nextSweep = now() + expiryMs;
+        while (!s.isClosed()) {
+            try {
+                p.setLength(MAX_BEACON_SIZE);
+                s.receive(p);
+                Brick b = parse(p);
+                if (b != null)
+                    update(b);
+            } catch (SocketTimeoutException ignored) {
+            } catch (IOException e) {
+                if (!s.isClosed())
+                    Log.e(TAG, String.format("cannot receive beacon: %s", e));
+                break;
+            }
+            long t = now();
+            if (t >= nextSweep) {
+                sweep(t);
+                nextSweep = t + Math.max(MIN_SWEEP_MS, expiryMs / 4);
+            }
+        }
+        Log.v(TAG, "stopped listening for beacons");
+    }
+
+    // beacons are lines of the form "Key: value", e.g. "Serial-Number: 0016533F0C1E\r\nPort: 5555\r\nName: EV3\r\nProtocol: EV3\r\n"
+    @Nullable
+    private static Brick parse(@NonNull DatagramPacket p) {
+        String sn = null, name = null, protocol = null;
+        int tcpPort = -1;
+        for (String line : new String(p.getData(), p.getOffset(), p.getLength(), ASCII).split("\r?\n")) {
+            int i = line.indexOf(':');
+            if (i < 0)
+                continue;
+            String k = line.substring(0, i).trim(), v = line.substring(i + 1).trim();
+            switch (k) {
+                case "Serial-Number":
+                    sn = v;
+                    break;
+                case "Name":
+                    name = v;
+                    break;
+                case "Protocol":
+                    protocol = v;
+                    break;
+                case "Port":
+                    try {
+                        tcpPort = Integer.parseInt(v);
+                    } catch (NumberFormatException ignored) {
+                    }
+                    break;
+            }
+        }
+        if (sn == null || sn.isEmpty() || tcpPort <= 0 || tcpPort > 0xFFFF || (protocol != null && !protocol.equals("EV3"))) {
+            Log.d(TAG, String.format("ignoring datagram from %s", p.getSocketAddress()));
+            return null;
+        }
+        return new Brick(sn, name != null ? name : sn, p.getAddress(), tcpPort, p.getPort(), now());
+    }
+
+    private void update(@NonNull Brick b) {
+        Brick old = bricks.put(b.serialNumber, b);
+        if (old == null || old.differs(b)) {
+            Log.v(TAG, String.format("found brick %s", b));
+            for (Listener l : listeners)
+                l.onFound(b);
+        }
+    }
+
+    private void sweep(long t) {
+        for (Brick b : bricks.values()) {
+            if (t - b.lastSeen > expiryMs && bricks.remove(b.serialNumber, b)) {
+                Log.v(TAG, String.format("lost brick %s", b));
+                for (Listener l : listeners)
+                    l.onLost(b);
+            }
+        }
+    }
+
+    /**
+     * Add a listener. Bricks already in the table are notified to the new listener at once, from the calling thread.
+     *
+     * @param l the listener.
+     */
+    public void addListener(@NonNull Listener l) {
+        listeners.add(l);
+        for (Brick b : getBricks())
+            l.onFound(b);
+    }
+
+    /**
+     * Remove a listener.
+     *
+     * @param l the listener.
+     */
+    public void removeListener(@NonNull Listener l) {
+        listeners.remove(l);
+    }
+
+    /**
+     * Get the bricks currently known. This does not block.
+     *
+     * @return a snapshot of the table, excluding expired entries.
+     */
+    @NonNull
+    public List<Brick> getBricks() {
+        final long t = now();
+        List<Brick> r = new ArrayList<>(bricks.size());
+        for (Brick b : bricks.values())
+            if (t - b.lastSeen <= expiryMs)
+                r.add(b);
+        return r;
+    }
+
+    /**
+     * Look up a brick by serial number. This does not block.
+     *
+     * @param serialNumber the serial number.
+     * @return the brick, or null if it has not been discovered or its entry has expired.
+     */
+    @Nullable
+    public Brick find(@NonNull String serialNumber) {
+        Brick b = bricks.get(serialNumber);
+        return b != null && now() - b.lastSeen <= expiryMs ? b : null;
+    }
+
+    /**
+     * Look up a brick by name. This does not block.
+     * Names are not guaranteed to be unique: when several bricks share the same name, the most recently heard of is returned.
+     *
+     * @param name the name of the brick, as configured on the brick settings.
+     * @return the brick, or null if no live entry has such name.
+     */
+    @Nullable
+    public Brick findByName(@NonNull String name) {
+        Brick r = null;
+        for (Brick b : getBricks())
+            if (b.name.equals(name) && (r == null || b.lastSeen > r.lastSeen))
+                r = b;
+        return r;
+    }
+
+    /**
+     * Create a connection to the given brick.
+     * Bricks open their TCP port only after having been answered a datagram on the port their beacon comes from: the returned object does so right before connecting.
+     *
+     * @param brick the brick.
+     * @return an object of type {@link WifiConnection}.
+     */
+    @NonNull
+    public WifiConnection connection(@NonNull Brick brick) {
+        return new WifiConnection(new InetSocketAddress(brick.address, brick.port), brick.serialNumber, WifiConnection.DEFAULT_TIMEOUT_MS, brick.beaconPort);
+    }
+
+    /**
+     * Stop listening. The table is left as is, though no entry is refreshed any longer.
+     */
+    @Override
+    public synchronized void close() {
+        DatagramSocket s = socket;
+        if (s != null) {
+            s.close();
+            socket = null;
+        }
+    }
+}
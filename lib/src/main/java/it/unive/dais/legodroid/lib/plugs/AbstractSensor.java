@@ -5,7 +5,10 @@ import java.util.concurrent.Future;
 
 import androidx.annotation.NonNull;
 import it.unive.dais.legodroid.lib.EV3;
+import it.unive.dais.legodroid.lib.util.FloatConsumer;
 import it.unive.dais.legodroid.lib.util.Function;
+import it.unive.dais.legodroid.lib.util.Promise;
+import it.unive.dais.legodroid.lib.util.ShortConsumer;
 
 /**
  * Abstract class for sensors.
@@ -41,8 +44,35 @@ public abstract class AbstractSensor extends Plug<EV3.InputPort> {
      */
     @NonNull
     protected <T> Future<T> getPercent(int mode, int nvalue, @NonNull Function<short[], T> f) throws IOException {
-        Future<short[]> r = api.getPercentValue(port.toByte(), type, mode, nvalue);
-        return api.execAsync(() -> f.apply(r.get()));
+        return api.getPercentValue(port.toByte(), type, mode, nvalue).thenApply(f);
+    }
+
+    /**
+     * Send a PCT command and decode the reply into the given array, with no boxing.
+     *
+     * @param mode mode constant as defined in {@link it.unive.dais.legodroid.lib.comm.Const}, e.g. {@link it.unive.dais.legodroid.lib.comm.Const#GYRO_ANGLE}.
+     * @param dst  the destination array, whose length is the number of values.
+     * @return a promise completed with the destination array once filled.
+     * @throws IOException thrown when communication errors occur.
+     * @see EV3.Api#getPercentValue(byte, int, int, short[])
+     */
+    @NonNull
+    protected Promise<short[]> getPercent(int mode, @NonNull short[] dst) throws IOException {
+        return api.getPercentValue(port.toByte(), type, mode, dst);
+    }
+
+    /**
+     * Send a PCT command with 1 nvalue and pass the resulting short to the given callback, with no boxing.
+     *
+     * @param mode mode constant as defined in {@link it.unive.dais.legodroid.lib.comm.Const}, e.g. {@link it.unive.dais.legodroid.lib.comm.Const#GYRO_ANGLE}.
+     * @param c    the callback receiving the value; it is run by the thread receiving the reply, therefore it must not block.
+     * @return a promise completed once the callback has returned.
+     * @throws IOException thrown when communication errors occur.
+     * @see EV3.Api#getPercentValue(byte, int, int, ShortConsumer)
+     */
+    @NonNull
+    protected Promise<Void> readPercent1(int mode, @NonNull ShortConsumer c) throws IOException {
+        return api.getPercentValue(port.toByte(), type, mode, c);
     }
 
     /**
@@ -85,8 +115,35 @@ public abstract class AbstractSensor extends Plug<EV3.InputPort> {
     @SuppressWarnings("SameParameterValue")
     @NonNull
     protected <T> Future<T> getSi(int mode, int nvalue, @NonNull Function<float[], T> f) throws IOException {
-        Future<float[]> r = api.getSiValue(port.toByte(), type, mode, nvalue);
-        return api.execAsync(() -> f.apply(r.get()));
+        return api.getSiValue(port.toByte(), type, mode, nvalue).thenApply(f);
+    }
+
+    /**
+     * Send a SI command and decode the reply into the given array, with no boxing.
+     *
+     * @param mode mode constant as defined in {@link it.unive.dais.legodroid.lib.comm.Const}, e.g. {@link it.unive.dais.legodroid.lib.comm.Const#GYRO_ANGLE}.
+     * @param dst  the destination array, whose length is the number of values.
+     * @return a promise completed with the destination array once filled.
+     * @throws IOException thrown when communication errors occur.
+     * @see EV3.Api#getSiValue(byte, int, int, float[])
+     */
+    @NonNull
+    protected Promise<float[]> getSi(int mode, @NonNull float[] dst) throws IOException {
+        return api.getSiValue(port.toByte(), type, mode, dst);
+    }
+
+    /**
+     * Send a SI command with 1 nvalue and pass the resulting float to the given callback, with no boxing.
+     *
+     * @param mode mode constant as defined in {@link it.unive.dais.legodroid.lib.comm.Const}, e.g. {@link it.unive.dais.legodroid.lib.comm.Const#GYRO_ANGLE}.
+     * @param c    the callback receiving the value; it is run by the thread receiving the reply, therefore it must not block.
+     * @return a promise completed once the callback has returned.
+     * @throws IOException thrown when communication errors occur.
+     * @see EV3.Api#getSiValue(byte, int, int, FloatConsumer)
+     */
+    @NonNull
+    protected Promise<Void> readSi1(int mode, @NonNull FloatConsumer c) throws IOException {
+        return api.getSiValue(port.toByte(), type, mode, c);
     }
 
     /**
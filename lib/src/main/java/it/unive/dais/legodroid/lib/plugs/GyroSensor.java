@@ -6,6 +6,8 @@ import java.util.concurrent.Future;
 import androidx.annotation.NonNull;
 import it.unive.dais.legodroid.lib.EV3;
 import it.unive.dais.legodroid.lib.comm.Const;
+import it.unive.dais.legodroid.lib.util.FloatConsumer;
+import it.unive.dais.legodroid.lib.util.Promise;
 
 /**
  * Instances of this class allow operations on the gyroscope sensor (accelerometer) connected to GenEV3 via an input port.
@@ -26,6 +28,19 @@ public class GyroSensor extends AbstractSensor {
         return getSi1(Const.GYRO_ANGLE);
     }
 
+    /**
+     * Get the angle from the sensor in degrees.
+     * The value is passed to the given callback with no boxing: this is meant for control loops reading the sensor at a high rate.
+     *
+     * @param c the callback receiving the value; it is run by the thread receiving the reply, therefore it must not block.
+     * @return a {@link Promise} object completed once the callback has returned.
+     * @throws IOException thrown when communication errors occur.
+     */
+    @NonNull
+    public Promise<Void> getAngle(@NonNull FloatConsumer c) throws IOException {
+        return readSi1(Const.GYRO_ANGLE, c);
+    }
+
     /**
      * Get the rate (or rotational speed) from the sensor in degrees per second.
      *
@@ -36,4 +51,17 @@ public class GyroSensor extends AbstractSensor {
     public Future<Float> getRate() throws IOException {
         return getSi1(Const.GYRO_RATE);
     }
+
+    /**
+     * Get the rate (or rotational speed) from the sensor in degrees per second.
+     * The value is passed to the given callback with no boxing: this is meant for control loops reading the sensor at a high rate.
+     *
+     * @param c the callback receiving the value; it is run by the thread receiving the reply, therefore it must not block.
+     * @return a {@link Promise} object completed once the callback has returned.
+     * @throws IOException thrown when communication errors occur.
+     */
+    @NonNull
+    public Promise<Void> getRate(@NonNull FloatConsumer c) throws IOException {
+        return readSi1(Const.GYRO_RATE, c);
+    }
 }
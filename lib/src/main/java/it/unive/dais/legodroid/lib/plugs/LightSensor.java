@@ -6,6 +6,8 @@ import java.util.concurrent.Future;
 import androidx.annotation.NonNull;
 import it.unive.dais.legodroid.lib.EV3;
 import it.unive.dais.legodroid.lib.comm.Const;
+import it.unive.dais.legodroid.lib.util.Promise;
+import it.unive.dais.legodroid.lib.util.ShortConsumer;
 
 /**
  * Instances of this class allow operations on the light sensor connected to GenEV3 via an input port.
@@ -27,6 +29,19 @@ public class LightSensor extends AbstractSensor {
         return getPercent1(Const.COL_REFLECT);
     }
 
+    /**
+     * Get the reflected light from the sensor (device mode GenEV3-Color-Reflected).
+     * The value is passed to the given callback with no boxing: this is meant for control loops reading the sensor at a high rate.
+     *
+     * @param c the callback receiving the value; it is run by the thread receiving the reply, therefore it must not block.
+     * @return a {@link Promise} object completed once the callback has returned.
+     * @throws IOException thrown when communication errors occur.
+     */
+    @NonNull
+    public Promise<Void> getReflected(@NonNull ShortConsumer c) throws IOException {
+        return readPercent1(Const.COL_REFLECT, c);
+    }
+
     /**
      * Get the ambient light from the sensor (device mode GenEV3-Color-Ambient).
      * Sets the sensor LED color to blue (dimly lit).
@@ -39,6 +54,19 @@ public class LightSensor extends AbstractSensor {
         return getPercent1(Const.COL_AMBIENT);
     }
 
+    /**
+     * Get the ambient light from the sensor (device mode GenEV3-Color-Ambient).
+     * The value is passed to the given callback with no boxing: this is meant for control loops reading the sensor at a high rate.
+     *
+     * @param c the callback receiving the value; it is run by the thread receiving the reply, therefore it must not block.
+     * @return a {@link Promise} object completed once the callback has returned.
+     * @throws IOException thrown when communication errors occur.
+     */
+    @NonNull
+    public Promise<Void> getAmbient(@NonNull ShortConsumer c) throws IOException {
+        return readPercent1(Const.COL_AMBIENT, c);
+    }
+
     /**
      * Get the color value from the sensor (device mode GenEV3-Color-Color).
      * Sets the sensor LED color to white (all LEDs rapidly cycling).
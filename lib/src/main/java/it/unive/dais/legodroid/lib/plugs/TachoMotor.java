@@ -8,10 +8,15 @@ import java.util.concurrent.Future;
 
 import androidx.annotation.NonNull;
 import it.unive.dais.legodroid.lib.EV3;
+import it.unive.dais.legodroid.lib.comm.AsyncChannel;
 import it.unive.dais.legodroid.lib.comm.Bytecode;
 import it.unive.dais.legodroid.lib.comm.Const;
 import it.unive.dais.legodroid.lib.comm.Reply;
+import it.unive.dais.legodroid.lib.comm.Template;
+import it.unive.dais.legodroid.lib.util.FloatConsumer;
+import it.unive.dais.legodroid.lib.util.Function;
 import it.unive.dais.legodroid.lib.util.Prelude;
+import it.unive.dais.legodroid.lib.util.Promise;
 import it.unive.dais.legodroid.lib.util.UnexpectedException;
 
 // TODO: write more details in the javadoc of these methods
@@ -24,6 +29,30 @@ import it.unive.dais.legodroid.lib.util.UnexpectedException;
 public class TachoMotor extends Plug<EV3.OutputPort> implements AutoCloseable {
     private static final String TAG = Prelude.ReTAG("TachoMotor");
 
+    // precompiled commands, one per port: the power or speed is the only slot
+    private static final Template[] SET_POWER = perPort(p -> motor(Const.OUTPUT_POWER, p).addByteSlot().build());
+    private static final Template[] SET_SPEED = perPort(p -> motor(Const.OUTPUT_SPEED, p).addByteSlot().build());
+    private static final Template[] START = perPort(p -> motor(Const.OUTPUT_START, p).build());
+    private static final Template[] STOP = perPort(p -> motor(Const.OUTPUT_STOP, p).addConstant(Const.COAST).build());
+    private static final Template[] BRAKE = perPort(p -> motor(Const.OUTPUT_STOP, p).addConstant(Const.BRAKE).build());
+    private static final Template[] TEST = perPort(p -> motor(Const.OUTPUT_TEST, p).build());
+    private static final Template[] READY = perPort(p -> motor(Const.OUTPUT_READY, p).build());
+    private static final Template[] RESET = perPort(p -> motor(Const.OUTPUT_RESET, p).build());
+
+    @NonNull
+    private static Template.Builder motor(byte opcode, @NonNull EV3.OutputPort port) {
+        return new Template.Builder().addOpCode(opcode).addConstant(Const.LAYER_MASTER).addConstant(port.toBitmask());
+    }
+
+    @NonNull
+    private static Template[] perPort(@NonNull Function<EV3.OutputPort, Template> f) {
+        EV3.OutputPort[] ports = EV3.OutputPort.values();
+        Template[] r = new Template[ports.length];
+        for (EV3.OutputPort p : ports)
+            r[p.ordinal()] = f.apply(p);
+        return r;
+    }
+
     /**
      * Constructor.
      *
@@ -46,8 +75,19 @@ public class TachoMotor extends Plug<EV3.OutputPort> implements AutoCloseable {
      * @throws IOException thrown when communication errors occur.
      */
     public Future<Float> getPosition() throws IOException {
-        Future<float[]> r = api.getSiValue(port.toByteAsRead(), Const.L_MOTOR, Const.L_MOTOR_DEGREE, 1);
-        return api.execAsync(() -> r.get()[0]);
+        return api.getSiValue(port.toByteAsRead(), Const.L_MOTOR, Const.L_MOTOR_DEGREE, 1).thenApply(a -> a[0]);
+    }
+
+    /**
+     * Get the current position of the motor in tacho ticks, passing it to the given callback with no boxing.
+     *
+     * @param c the callback receiving the position; it is run by the thread receiving the reply, therefore it must not block.
+     * @return a {@link Promise} object completed once the callback has returned.
+     * @throws IOException thrown when communication errors occur.
+     */
+    @NonNull
+    public Promise<Void> getPosition(@NonNull FloatConsumer c) throws IOException {
+        return api.getSiValue(port.toByteAsRead(), Const.L_MOTOR, Const.L_MOTOR_DEGREE, c);
     }
 
     /**
@@ -59,8 +99,19 @@ public class TachoMotor extends Plug<EV3.OutputPort> implements AutoCloseable {
      * @throws IOException thrown when communication errors occur.
      */
     public Future<Float> getSpeed() throws IOException {
-        Future<float[]> r = api.getSiValue(port.toByteAsRead(), Const.L_MOTOR, Const.L_MOTOR_SPEED, 1);
-        return api.execAsync(() -> r.get()[0]);
+        return api.getSiValue(port.toByteAsRead(), Const.L_MOTOR, Const.L_MOTOR_SPEED, 1).thenApply(a -> a[0]);
+    }
+
+    /**
+     * Get the current speed of the motor in tacho counts per second, passing it to the given callback with no boxing.
+     *
+     * @param c the callback receiving the speed; it is run by the thread receiving the reply, therefore it must not block.
+     * @return a {@link Promise} object completed once the callback has returned.
+     * @throws IOException thrown when communication errors occur.
+     */
+    @NonNull
+    public Promise<Void> getSpeed(@NonNull FloatConsumer c) throws IOException {
+        return api.getSiValue(port.toByteAsRead(), Const.L_MOTOR, Const.L_MOTOR_SPEED, c);
     }
 
     /**
@@ -71,11 +122,12 @@ public class TachoMotor extends Plug<EV3.OutputPort> implements AutoCloseable {
      */
     @Deprecated
     public void clearCount() throws IOException {
-        Bytecode bc = new Bytecode();
+        Bytecode bc = Bytecode.obtain();
         bc.addOpCode(Const.OUTPUT_CLR_COUNT);
-        bc.addParameter(Const.LAYER_MASTER);
-        bc.addParameter(port.toBitmask());
+        bc.addConstant(Const.LAYER_MASTER);
+        bc.addConstant(port.toBitmask());
         api.sendNoReply(bc);
+        bc.recycle();
         Log.d(TAG, "motor clear count");
     }
 
@@ -85,13 +137,17 @@ public class TachoMotor extends Plug<EV3.OutputPort> implements AutoCloseable {
      * @throws IOException thrown when communication errors occur.
      */
     public Future<Boolean> isBusy() throws IOException {
-        Bytecode bc = new Bytecode();
-        bc.addOpCode(Const.OUTPUT_TEST);
-        bc.addParameter(Const.LAYER_MASTER);
-        bc.addParameter(port.toBitmask());
-        Future<Reply> r = api.send(1, bc);
+        Bytecode bc = TEST[port.ordinal()].obtain();
+        Promise<Reply> r = api.send(1, bc);
+        bc.recycle();
         Log.d(TAG, "motor is busy");
-        return api.execAsync(() -> r.get().getData()[0] != 0);
+        return r.thenApply(reply -> {
+            try {
+                return reply.getByte(0) != 0;
+            } finally {
+                reply.release();
+            }
+        });
     }
 
     /**
@@ -118,11 +174,9 @@ public class TachoMotor extends Plug<EV3.OutputPort> implements AutoCloseable {
      * @throws IOException thrown when communication errors occur.
      */
     public void waitCompletion() throws IOException {
-        Bytecode bc = new Bytecode();
-        bc.addOpCode(Const.OUTPUT_READY);
-        bc.addParameter(Const.LAYER_MASTER);
-        bc.addParameter(port.toBitmask());
+        Bytecode bc = READY[port.ordinal()].obtain();
         api.sendNoReply(bc);
+        bc.recycle();
         Log.d(TAG, "motor wait until ready");
     }
 
@@ -132,11 +186,9 @@ public class TachoMotor extends Plug<EV3.OutputPort> implements AutoCloseable {
      * @throws IOException thrown when communication errors occur.
      */
     public void resetPosition() throws IOException {
-        Bytecode bc = new Bytecode();
-        bc.addOpCode(Const.OUTPUT_RESET);
-        bc.addParameter(Const.LAYER_MASTER);
-        bc.addParameter(port.toBitmask());
+        Bytecode bc = RESET[port.ordinal()].obtain();
         api.sendNoReply(bc);
+        bc.recycle();
         Log.d(TAG, "motor reset position");
     }
 
@@ -148,12 +200,9 @@ public class TachoMotor extends Plug<EV3.OutputPort> implements AutoCloseable {
      * @throws IOException thrown when communication errors occur.
      */
     public void setSpeed(int speed) throws IOException {
-        Bytecode bc = new Bytecode();
-        bc.addOpCode(Const.OUTPUT_SPEED);
-        bc.addParameter(Const.LAYER_MASTER);
-        bc.addParameter(port.toBitmask());
-        bc.addParameter((byte) speed);
-        api.sendNoReply(bc);
+        Bytecode bc = SET_SPEED[port.ordinal()].obtain(speed);
+        api.sendSetpoint(port, EV3.Api.OutputSetting.DRIVE, ((Const.OUTPUT_SPEED & 0xFF) << 8) | (speed & 0xFF), bc);
+        bc.recycle();
         Log.d(TAG, String.format("motor speed set: %d", speed));
     }
 
@@ -164,12 +213,9 @@ public class TachoMotor extends Plug<EV3.OutputPort> implements AutoCloseable {
      * @throws IOException thrown when communication errors occur.
      */
     public void setPower(int power) throws IOException {
-        Bytecode bc = new Bytecode();
-        bc.addOpCode(Const.OUTPUT_POWER);
-        bc.addParameter(Const.LAYER_MASTER);
-        bc.addParameter(port.toBitmask());
-        bc.addParameter((byte) power);
-        api.sendNoReply(bc);
+        Bytecode bc = SET_POWER[port.ordinal()].obtain(power);
+        api.sendSetpoint(port, EV3.Api.OutputSetting.DRIVE, ((Const.OUTPUT_POWER & 0xFF) << 8) | (power & 0xFF), bc);
+        bc.recycle();
         Log.d(TAG, String.format("motor power set: %d", power));
     }
 
@@ -179,11 +225,9 @@ public class TachoMotor extends Plug<EV3.OutputPort> implements AutoCloseable {
      * @throws IOException thrown when communication errors occur.
      */
     public void start() throws IOException {
-        Bytecode bc = new Bytecode();
-        bc.addOpCode(Const.OUTPUT_START);
-        bc.addParameter(Const.LAYER_MASTER);
-        bc.addParameter(port.toBitmask());
+        Bytecode bc = START[port.ordinal()].obtain();
         api.sendNoReply(bc);
+        bc.recycle();
         Log.d(TAG, "motor started");
     }
 
@@ -193,12 +237,10 @@ public class TachoMotor extends Plug<EV3.OutputPort> implements AutoCloseable {
      * @throws IOException thrown when communication errors occur.
      */
     public void brake() throws IOException {
-        Bytecode bc = new Bytecode();
-        bc.addOpCode(Const.OUTPUT_STOP);
-        bc.addParameter(Const.LAYER_MASTER);
-        bc.addParameter(port.toBitmask());
-        bc.addParameter(Const.BRAKE);
-        api.sendNoReply(bc);
+        Bytecode bc = BRAKE[port.ordinal()].obtain();
+        api.clearSetpoint(port, EV3.Api.OutputSetting.DRIVE);
+        api.sendNoReply(bc, AsyncChannel.Priority.SAFETY);
+        bc.recycle();
         Log.d(TAG, "motor brake");
     }
 
@@ -208,12 +250,10 @@ public class TachoMotor extends Plug<EV3.OutputPort> implements AutoCloseable {
      * @throws IOException thrown when communication errors occur.
      */
     public void stop() throws IOException {
-        Bytecode bc = new Bytecode();
-        bc.addOpCode(Const.OUTPUT_STOP);
-        bc.addParameter(Const.LAYER_MASTER);
-        bc.addParameter(port.toBitmask());
-        bc.addParameter(Const.COAST);
-        api.sendNoReply(bc);
+        Bytecode bc = STOP[port.ordinal()].obtain();
+        api.clearSetpoint(port, EV3.Api.OutputSetting.DRIVE);
+        api.sendNoReply(bc, AsyncChannel.Priority.SAFETY);
+        bc.recycle();
         Log.d(TAG, "motor stop");
     }
 
@@ -256,12 +296,13 @@ public class TachoMotor extends Plug<EV3.OutputPort> implements AutoCloseable {
      * @see Type
      */
     public void setType(Type mt) throws IOException {
-        Bytecode bc = new Bytecode();
+        Bytecode bc = Bytecode.obtain();
         bc.addOpCode(Const.OUTPUT_SET_TYPE);
-        bc.addParameter(Const.LAYER_MASTER);
-        bc.addParameter(port.toByte());
-        bc.addParameter(mt.toByte());
-        api.sendNoReply(bc);
+        bc.addConstant(Const.LAYER_MASTER);
+        bc.addConstant(port.toByte());
+        bc.addConstant(mt.toByte());
+        api.sendSetpoint(port, EV3.Api.OutputSetting.TYPE, mt.toByte(), bc);
+        bc.recycle();
         Log.d(TAG, String.format("motor type set: %s", mt));
     }
 
@@ -307,12 +348,13 @@ public class TachoMotor extends Plug<EV3.OutputPort> implements AutoCloseable {
      * @see Polarity
      */
     public void setPolarity(Polarity pol) throws IOException {
-        Bytecode bc = new Bytecode();
+        Bytecode bc = Bytecode.obtain();
         bc.addOpCode(Const.OUTPUT_POLARITY);
-        bc.addParameter(Const.LAYER_MASTER);
-        bc.addParameter(port.toBitmask());
-        bc.addParameter(pol.toByte());
-        api.sendNoReply(bc);
+        bc.addConstant(Const.LAYER_MASTER);
+        bc.addConstant(port.toBitmask());
+        bc.addConstant(pol.toByte());
+        api.sendSetpoint(port, EV3.Api.OutputSetting.POLARITY, pol.toByte(), bc);
+        bc.recycle();
         Log.d(TAG, String.format("motor polarity set: %s", pol));
     }
 
@@ -328,16 +370,18 @@ public class TachoMotor extends Plug<EV3.OutputPort> implements AutoCloseable {
      * @throws IOException thrown when communication errors occur.
      */
     public void setStepPower(int power, int step1, int step2, int step3, boolean brake) throws IOException {
-        Bytecode bc = new Bytecode();
+        Bytecode bc = Bytecode.obtain();
         bc.addOpCode(Const.OUTPUT_STEP_POWER);
-        bc.addParameter(Const.LAYER_MASTER);
-        bc.addParameter(port.toBitmask());
-        bc.addParameter((byte) power);
-        bc.addParameter(step1);
-        bc.addParameter(step2);
-        bc.addParameter(step3);
-        bc.addParameter(brake ? Const.BRAKE : Const.COAST);
+        bc.addConstant(Const.LAYER_MASTER);
+        bc.addConstant(port.toBitmask());
+        bc.addConstant((byte) power);
+        bc.addConstant(step1);
+        bc.addConstant(step2);
+        bc.addConstant(step3);
+        bc.addConstant(brake ? Const.BRAKE : Const.COAST);
+        api.clearSetpoint(port, EV3.Api.OutputSetting.DRIVE);
         api.sendNoReply(bc);
+        bc.recycle();
         Log.d(TAG, String.format("motor step power: power=%d, step1=%d, step2=%d, step3=%d, brake=%s", power, step1, step2, step3, brake));
     }
 
@@ -353,16 +397,18 @@ public class TachoMotor extends Plug<EV3.OutputPort> implements AutoCloseable {
      * @throws IOException thrown when communication errors occur.
      */
     public void setTimePower(int power, int step1, int step2, int step3, boolean brake) throws IOException {
-        Bytecode bc = new Bytecode();
+        Bytecode bc = Bytecode.obtain();
         bc.addOpCode(Const.OUTPUT_TIME_POWER);
-        bc.addParameter(Const.LAYER_MASTER);
-        bc.addParameter(port.toBitmask());
-        bc.addParameter((byte) power);
-        bc.addParameter(step1);
-        bc.addParameter(step2);
-        bc.addParameter(step3);
-        bc.addParameter(brake ? Const.BRAKE : Const.COAST);
+        bc.addConstant(Const.LAYER_MASTER);
+        bc.addConstant(port.toBitmask());
+        bc.addConstant((byte) power);
+        bc.addConstant(step1);
+        bc.addConstant(step2);
+        bc.addConstant(step3);
+        bc.addConstant(brake ? Const.BRAKE : Const.COAST);
+        api.clearSetpoint(port, EV3.Api.OutputSetting.DRIVE);
         api.sendNoReply(bc);
+        bc.recycle();
         Log.d(TAG, String.format("motor time power: power=%d, step1=%d, step2=%d, step3=%d", power, step1, step2, step3));
     }
 
@@ -379,16 +425,18 @@ public class TachoMotor extends Plug<EV3.OutputPort> implements AutoCloseable {
      * @throws IOException thrown when communication errors occur.
      */
     public void setStepSpeed(int speed, int step1, int step2, int step3, boolean brake) throws IOException {
-        Bytecode bc = new Bytecode();
+        Bytecode bc = Bytecode.obtain();
         bc.addOpCode(Const.OUTPUT_STEP_SPEED);
-        bc.addParameter(Const.LAYER_MASTER);
-        bc.addParameter(port.toBitmask());
-        bc.addParameter((byte) speed);
-        bc.addParameter(step1);
-        bc.addParameter(step2);
-        bc.addParameter(step3);
-        bc.addParameter(brake ? Const.BRAKE : Const.COAST);
+        bc.addConstant(Const.LAYER_MASTER);
+        bc.addConstant(port.toBitmask());
+        bc.addConstant((byte) speed);
+        bc.addConstant(step1);
+        bc.addConstant(step2);
+        bc.addConstant(step3);
+        bc.addConstant(brake ? Const.BRAKE : Const.COAST);
+        api.clearSetpoint(port, EV3.Api.OutputSetting.DRIVE);
         api.sendNoReply(bc);
+        bc.recycle();
         Log.d(TAG, String.format("motor step speed: speed=%d, step1=%d, step2=%d, step3=%d", speed, step1, step2, step3));
     }
 
@@ -405,16 +453,18 @@ public class TachoMotor extends Plug<EV3.OutputPort> implements AutoCloseable {
      * @throws IOException thrown when communication errors occur.
      */
     public void setTimeSpeed(int speed, int step1, int step2, int step3, boolean brake) throws IOException {
-        Bytecode bc = new Bytecode();
+        Bytecode bc = Bytecode.obtain();
         bc.addOpCode(Const.OUTPUT_TIME_SPEED);
-        bc.addParameter(Const.LAYER_MASTER);
-        bc.addParameter(port.toBitmask());
-        bc.addParameter((byte) speed);
-        bc.addParameter(step1);
-        bc.addParameter(step2);
-        bc.addParameter(step3);
-        bc.addParameter(brake ? Const.BRAKE : Const.COAST);
+        bc.addConstant(Const.LAYER_MASTER);
+        bc.addConstant(port.toBitmask());
+        bc.addConstant((byte) speed);
+        bc.addConstant(step1);
+        bc.addConstant(step2);
+        bc.addConstant(step3);
+        bc.addConstant(brake ? Const.BRAKE : Const.COAST);
+        api.clearSetpoint(port, EV3.Api.OutputSetting.DRIVE);
         api.sendNoReply(bc);
+        bc.recycle();
         Log.d(TAG, String.format("motor time speed: speed=%d, step1=%d, step2=%d, step3=%d", speed, step1, step2, step3));
     }
 
@@ -434,15 +484,17 @@ public class TachoMotor extends Plug<EV3.OutputPort> implements AutoCloseable {
      * @throws IOException thrown when communication errors occur.
      */
     public void setStepSync(int power, int turnRatio, int step, boolean brake) throws IOException {
-        Bytecode bc = new Bytecode();
+        Bytecode bc = Bytecode.obtain();
         bc.addOpCode(Const.OUTPUT_STEP_SYNC);
-        bc.addParameter(Const.LAYER_MASTER);
-        bc.addParameter(port.toBitmask());
-        bc.addParameter((byte) power);
-        bc.addParameter((short) turnRatio);
-        bc.addParameter(step);
-        bc.addParameter(brake ? Const.BRAKE : Const.COAST);
+        bc.addConstant(Const.LAYER_MASTER);
+        bc.addConstant(port.toBitmask());
+        bc.addConstant((byte) power);
+        bc.addConstant((short) turnRatio);
+        bc.addConstant(step);
+        bc.addConstant(brake ? Const.BRAKE : Const.COAST);
+        api.clearSetpoint(port, EV3.Api.OutputSetting.DRIVE);
         api.sendNoReply(bc);
+        bc.recycle();
         Log.d(TAG, String.format("motor step sync: power=%d, turn=%d, step=%d, brake=%s", power, turnRatio, step, brake));
     }
 
@@ -462,15 +514,17 @@ public class TachoMotor extends Plug<EV3.OutputPort> implements AutoCloseable {
      * @throws IOException thrown when communication errors occur.
      */
     public void setTimeSync(int power, int turnRatio, int time, boolean brake) throws IOException {
-        Bytecode bc = new Bytecode();
+        Bytecode bc = Bytecode.obtain();
         bc.addOpCode(Const.OUTPUT_TIME_SYNC);
-        bc.addParameter(Const.LAYER_MASTER);
-        bc.addParameter(port.toBitmask());
-        bc.addParameter((byte) power);
-        bc.addParameter((short) turnRatio);
-        bc.addParameter(time);
-        bc.addParameter(brake ? Const.BRAKE : Const.COAST);
+        bc.addConstant(Const.LAYER_MASTER);
+        bc.addConstant(port.toBitmask());
+        bc.addConstant((byte) power);
+        bc.addConstant((short) turnRatio);
+        bc.addConstant(time);
+        bc.addConstant(brake ? Const.BRAKE : Const.COAST);
+        api.clearSetpoint(port, EV3.Api.OutputSetting.DRIVE);
         api.sendNoReply(bc);
+        bc.recycle();
         Log.d(TAG, String.format("motor time sync: power=%d, turn=%d, time=%d, brake=%s", power, turnRatio, time, brake));
     }
 
@@ -6,6 +6,8 @@ import java.util.concurrent.Future;
 import androidx.annotation.NonNull;
 import it.unive.dais.legodroid.lib.EV3;
 import it.unive.dais.legodroid.lib.comm.Const;
+import it.unive.dais.legodroid.lib.util.FloatConsumer;
+import it.unive.dais.legodroid.lib.util.Promise;
 
 /**
  * Instances of this class allow operations on the ultrasonic sensor connected to GenEV3 via an input port.
@@ -25,4 +27,17 @@ public class UltrasonicSensor extends AbstractSensor {
     public Future<Float> getDistance() throws IOException {
         return getSi1(Const.US_CM);
     }
+
+    /**
+     * Get the distance from the sensor in centimeters.
+     * The value is passed to the given callback with no boxing: this is meant for control loops reading the sensor at a high rate.
+     *
+     * @param c the callback receiving the value; it is run by the thread receiving the reply, therefore it must not block.
+     * @return a {@link Promise} object completed once the callback has returned.
+     * @throws IOException thrown when communication errors occur.
+     */
+    @NonNull
+    public Promise<Void> getDistance(@NonNull FloatConsumer c) throws IOException {
+        return readSi1(Const.US_CM, c);
+    }
 }
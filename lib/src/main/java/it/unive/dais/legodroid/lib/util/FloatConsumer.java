@@ -0,0 +1,14 @@
+package it.unive.dais.legodroid.lib.util;
+
+/**
+ * Functional interface that represents a function with a parameter of primitive type {@code float} and no result type.
+ * Unlike {@link Consumer}, the parameter is never boxed, hence calling it allocates nothing.
+ */
+@FunctionalInterface
+public interface FloatConsumer {
+    /**
+     * Call the function.
+     * @param data the parameter.
+     */
+    void call(float data);
+}
@@ -0,0 +1,340 @@
+package it.unive.dais.legodroid.lib.util;
+
+import android.util.Log;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * This class implements a lock-free {@link Future} that can be completed explicitly, in a similar fashion to {@code java.util.concurrent.CompletableFuture}
+ * which is not available on all the Android API levels supported by this library.
+ * Completion, failure and cancellation are performed by a single compare-and-swap on the outcome; continuations and blocked waiters are kept in a lock-free stack
+ * and are run by the completing thread.
+ *
+ * @param <T> the type of the result.
+ */
+public class Promise<T> implements Future<T> {
+    private static final String TAG = Prelude.ReTAG("Promise");
+
+    private static final Object NIL = new Object();
+    private static final Node CLOSED = new Node(null);
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Promise, Object> OUTCOME = AtomicReferenceFieldUpdater.newUpdater(Promise.class, Object.class, "outcome");
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<Promise, Node> STACK = AtomicReferenceFieldUpdater.newUpdater(Promise.class, Node.class, "stack");
+
+    @Nullable
+    private volatile Object outcome = null;
+    @Nullable
+    private volatile Node stack = null;
+
+    private static final class Node {
+        @Nullable
+        final Runnable action;
+        @Nullable
+        Node next;
+
+        Node(@Nullable Runnable action) {
+            this.action = action;
+        }
+    }
+
+    private static final class Failure {
+        @NonNull
+        final Throwable cause;
+
+        Failure(@NonNull Throwable cause) {
+            this.cause = cause;
+        }
+    }
+
+    /**
+     * Create a pending promise.
+     */
+    public Promise() {
+    }
+
+    /**
+     * Create a promise already completed with the given value.
+     *
+     * @param x   the value.
+     * @param <T> the type of the result.
+     * @return a completed promise.
+     */
+    @NonNull
+    public static <T> Promise<T> completed(@Nullable T x) {
+        Promise<T> r = new Promise<>();
+        r.complete(x);
+        return r;
+    }
+
+    /**
+     * Create a promise already failed with the given exception.
+     *
+     * @param e   the cause of the failure.
+     * @param <T> the type of the result.
+     * @return a failed promise.
+     */
+    @NonNull
+    public static <T> Promise<T> failed(@NonNull Throwable e) {
+        Promise<T> r = new Promise<>();
+        r.fail(e);
+        return r;
+    }
+
+    /**
+     * Complete the promise with the given value.
+     * Only the first completion, failure or cancellation takes effect.
+     *
+     * @param x the value.
+     * @return true if this call completed the promise; false if it was already done.
+     */
+    public boolean complete(@Nullable T x) {
+        return settle(x == null ? NIL : x);
+    }
+
+    /**
+     * Complete the promise exceptionally.
+     * Only the first completion, failure or cancellation takes effect.
+     *
+     * @param e the cause of the failure.
+     * @return true if this call completed the promise; false if it was already done.
+     */
+    public boolean fail(@NonNull Throwable e) {
+        return settle(new Failure(e));
+    }
+
+    /**
+     * Cancel the promise: waiters are released at once and get a {@link CancellationException}.
+     *
+     * @param mayInterrupt ignored, as no thread is bound to the computation of the result.
+     * @return true if this call cancelled the promise; false if it was already done.
+     */
+    @Override
+    public boolean cancel(boolean mayInterrupt) {
+        return settle(new Failure(new CancellationException("promise cancelled")));
+    }
+
+    private boolean settle(@NonNull Object o) {
+        if (!OUTCOME.compareAndSet(this, null, o))
+            return false;
+        done();
+        Node n = STACK.getAndSet(this, CLOSED);
+        // run in registration order
+        Node rev = null;
+        while (n != null && n != CLOSED) {
+            Node next = n.next;
+            n.next = rev;
+            rev = n;
+            n = next;
+        }
+        for (; rev != null; rev = rev.next)
+            run(rev.action);
+        return true;
+    }
+
+    private static void run(@Nullable Runnable r) {
+        if (r == null) return;
+        try {
+            r.run();
+        } catch (Throwable e) {
+            Log.e(TAG, String.format("exception in continuation: %s", e));
+        }
+    }
+
+    private void push(@NonNull Runnable r) {
+        Node n = new Node(r);
+        while (true) {
+            Node top = stack;
+            if (top == CLOSED) {
+                run(r);
+                return;
+            }
+            n.next = top;
+            if (STACK.compareAndSet(this, top, n))
+                return;
+        }
+    }
+
+    /**
+     * Hook called exactly once by the completing thread, right after the outcome has been set and before continuations are run.
+     * Subclasses can override this for releasing resources bound to the pending state.
+     */
+    protected void done() {
+    }
+
+    @Override
+    public boolean isCancelled() {
+        Object o = outcome;
+        return o instanceof Failure && ((Failure) o).cause instanceof CancellationException;
+    }
+
+    @Override
+    public boolean isDone() {
+        return outcome != null;
+    }
+
+    /**
+     * Check whether the promise completed exceptionally, including cancellation.
+     *
+     * @return true when the promise failed; false if it is pending or completed normally.
+     */
+    public boolean isFailed() {
+        return outcome instanceof Failure;
+    }
+
+    /**
+     * Get the cause of the failure.
+     *
+     * @return the exception the promise failed with, or null when it is pending or completed normally.
+     */
+    @Nullable
+    public Throwable getFailure() {
+        Object o = outcome;
+        return o instanceof Failure ? ((Failure) o).cause : null;
+    }
+
+    /**
+     * Get the result if available, without blocking.
+     *
+     * @param otherwise value returned when the promise is pending or failed.
+     * @return the result or the given default value.
+     */
+    @Nullable
+    public T getNow(@Nullable T otherwise) {
+        Object o = outcome;
+        return o == null || o instanceof Failure ? otherwise : unwrap(o);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Nullable
+    private T unwrap(@NonNull Object o) {
+        return o == NIL ? null : (T) o;
+    }
+
+    @Nullable
+    private T report(@NonNull Object o) throws ExecutionException {
+        if (o instanceof Failure) {
+            Throwable e = ((Failure) o).cause;
+            if (e instanceof CancellationException)
+                throw (CancellationException) e;
+            throw new ExecutionException(e);
+        }
+        return unwrap(o);
+    }
+
+    @Nullable
+    private Object await(boolean timed, long nanos) throws InterruptedException {
+        Object o = outcome;
+        if (o != null)
+            return o;
+        final Thread t = Thread.currentThread();
+        push(() -> LockSupport.unpark(t));
+        final long deadline = timed ? System.nanoTime() + nanos : 0L;
+        while ((o = outcome) == null) {
+            if (Thread.interrupted())
+                throw new InterruptedException();
+            if (timed) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0L)
+                    return null;
+                LockSupport.parkNanos(this, left);
+            } else
+                LockSupport.park(this);
+        }
+        return o;
+    }
+
+    /**
+     * Wait for the result with no timeout.
+     *
+     * @return the result.
+     * @throws InterruptedException  thrown when interrupted.
+     * @throws ExecutionException    thrown when the promise failed, wrapping the cause.
+     * @throws CancellationException thrown when the promise has been cancelled.
+     */
+    @Override
+    @Nullable
+    public T get() throws InterruptedException, ExecutionException {
+        return report(await(false, 0L));
+    }
+
+    /**
+     * Wait for the result with the given timeout.
+     *
+     * @param l        amount of time units to wait.
+     * @param timeUnit the time unit.
+     * @return the result.
+     * @throws InterruptedException  thrown when interrupted.
+     * @throws ExecutionException    thrown when the promise failed, wrapping the cause.
+     * @throws TimeoutException      thrown when the timeout expires.
+     * @throws CancellationException thrown when the promise has been cancelled.
+     */
+    @Override
+    @Nullable
+    public T get(long l, @NonNull TimeUnit timeUnit) throws InterruptedException, ExecutionException, TimeoutException {
+        Object o = await(true, timeUnit.toNanos(l));
+        if (o == null)
+            throw new TimeoutException(String.format("Promise.get() timed out (%d %s)", l, timeUnit));
+        return report(o);
+    }
+
+    /**
+     * Register a callback that is run once the promise is done, either normally or exceptionally.
+     * The callback is run by the completing thread, or immediately by the caller when the promise is already done.
+     *
+     * @param c function object taking this promise as argument.
+     * @return this promise.
+     */
+    @NonNull
+    public Promise<T> onComplete(@NonNull Consumer<? super Promise<T>> c) {
+        push(() -> c.call(this));
+        return this;
+    }
+
+    /**
+     * Create a new promise that is completed with the result of applying the given function to the result of this promise.
+     * Failures and cancellation are propagated to the new promise, and so are exceptions thrown by the function.
+     * Cancellation is propagated backwards too: cancelling the new promise cancels this one, e.g. freeing the slot of a pending reply.
+     * Hence a promise shared by several consumers must not be handed out through this method, as any of them could cancel it for all the others.
+     * The function is run by the thread completing this promise and therefore must not block.
+     *
+     * @param f   function object converting the result.
+     * @param <R> the type of the result of the new promise.
+     * @return a new promise.
+     */
+    @NonNull
+    public <R> Promise<R> thenApply(@NonNull Function<? super T, ? extends R> f) {
+        Promise<R> r = new Promise<R>() {
+            @Override
+            public boolean cancel(boolean mayInterrupt) {
+                if (!super.cancel(mayInterrupt))
+                    return false;
+                Promise.this.cancel(mayInterrupt);
+                return true;
+            }
+        };
+        push(() -> {
+            Object o = outcome;
+            if (o instanceof Failure)
+                r.settle(o);
+            else {
+                try {
+                    r.complete(f.apply(unwrap(o)));
+                } catch (Throwable e) {
+                    r.fail(e);
+                }
+            }
+        });
+        return r;
+    }
+}
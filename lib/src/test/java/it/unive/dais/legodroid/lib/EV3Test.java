@@ -0,0 +1,121 @@
+package it.unive.dais.legodroid.lib;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import it.unive.dais.legodroid.lib.comm.Bytecode;
+import it.unive.dais.legodroid.lib.comm.Const;
+import it.unive.dais.legodroid.lib.comm.Reply;
+import it.unive.dais.legodroid.lib.util.Promise;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class EV3Test {
+    private static final byte PORT = 0;
+
+    private FakeAsyncChannel channel;
+    private EV3.Api api;
+
+    @Before
+    public void setUp() {
+        channel = new FakeAsyncChannel();
+        api = new EV3.Api(new EV3(channel));
+    }
+
+    private Promise<float[]> read() throws Exception {
+        return api.getSiValue(PORT, Const.EV3_GYRO, Const.GYRO_ANGLE, 1);
+    }
+
+    private static Reply reply(float x) {
+        ByteBuffer b = ByteBuffer.allocate(7).order(ByteOrder.LITTLE_ENDIAN);
+        b.putShort((short) 0).put(Const.DIRECT_COMMAND_SUCCESS).putFloat(x);
+        return new Reply(b.array());
+    }
+
+    @Test
+    public void concurrentReadsShareTheReply() throws Exception {
+        Promise<float[]> a = read(), b = read();
+        assertEquals(1, channel.getReplies().size());
+        Reply r = reply(42f);
+        channel.getReplies().get(0).complete(r);
+        assertArrayEquals(new float[]{42f}, a.getNow(null), 0f);
+        assertArrayEquals(new float[]{42f}, b.getNow(null), 0f);
+        // released once decoded by both
+        try {
+            r.getFloat(0);
+            fail("reply not released");
+        } catch (IllegalStateException ignored) {
+        }
+        // a read after the reply has arrived is sent anew
+        read();
+        assertEquals(2, channel.getReplies().size());
+    }
+
+    @Test
+    public void sharedReadIsCancelledByItsLastUser() throws Exception {
+        Promise<float[]> a = read(), b = read();
+        Promise<Reply> sent = channel.getReplies().get(0);
+        assertTrue(a.cancel(true));
+        assertFalse(sent.isDone());
+        assertFalse(b.isDone());
+        assertTrue(b.cancel(true));
+        assertTrue(sent.isCancelled());
+    }
+
+    @Test
+    public void cancellingADerivedPromiseCancelsTheRead() throws Exception {
+        Promise<Float> angle = read().thenApply(xs -> xs[0]);
+        assertTrue(angle.cancel(true));
+        assertTrue(channel.getReplies().get(0).isCancelled());
+    }
+
+    @Test
+    public void failedReadFailsAllUsers() throws Exception {
+        Promise<float[]> a = read(), b = read();
+        final IllegalStateException e = new IllegalStateException();
+        channel.getReplies().get(0).fail(e);
+        assertEquals(e, a.getFailure());
+        assertEquals(e, b.getFailure());
+    }
+
+    @Test
+    public void unchangedSetpointIsSkipped() throws Exception {
+        Bytecode bc = new Bytecode();
+        bc.addOpCode(Const.OUTPUT_POWER);
+        assertTrue(api.sendSetpoint(EV3.OutputPort.A, EV3.Api.OutputSetting.DRIVE, 1000, bc));
+        assertFalse(api.sendSetpoint(EV3.OutputPort.A, EV3.Api.OutputSetting.DRIVE, 1000, bc));
+        assertTrue(api.sendSetpoint(EV3.OutputPort.B, EV3.Api.OutputSetting.DRIVE, 1000, bc));
+        api.clearSetpoint(EV3.OutputPort.A, EV3.Api.OutputSetting.DRIVE);
+        assertTrue(api.sendSetpoint(EV3.OutputPort.A, EV3.Api.OutputSetting.DRIVE, 1000, bc));
+        assertEquals(3, channel.getSent().size());
+    }
+
+    @Test
+    public void skippingASetpointAllocatesNothing() throws Exception {
+        Object bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(mx.isThreadAllocatedMemorySupported());
+        mx.setThreadAllocatedMemoryEnabled(true);
+        Bytecode bc = new Bytecode();
+        bc.addOpCode(Const.OUTPUT_POWER);
+        // values out of the range of cached boxes
+        api.sendSetpoint(EV3.OutputPort.A, EV3.Api.OutputSetting.DRIVE, 100_000, bc);
+        for (int i = 0; i < 10_000; ++i)
+            api.sendSetpoint(EV3.OutputPort.A, EV3.Api.OutputSetting.DRIVE, 100_000, bc);
+        final long tid = Thread.currentThread().getId(), before = mx.getThreadAllocatedBytes(tid);
+        for (int i = 0; i < 10_000; ++i)
+            api.sendSetpoint(EV3.OutputPort.A, EV3.Api.OutputSetting.DRIVE, 100_000, bc);
+        final long bytes = mx.getThreadAllocatedBytes(tid) - before;
+        assertTrue(bytes + " bytes allocated", bytes < 1024);
+    }
+}
@@ -0,0 +1,72 @@
+package it.unive.dais.legodroid.lib;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import androidx.annotation.NonNull;
+import it.unive.dais.legodroid.lib.comm.AsyncChannel;
+import it.unive.dais.legodroid.lib.comm.Bytecode;
+import it.unive.dais.legodroid.lib.comm.Command;
+import it.unive.dais.legodroid.lib.comm.Reply;
+import it.unive.dais.legodroid.lib.util.Promise;
+
+/**
+ * An asynchronous channel recording the bytecode of each command sent, with or without reply, and leaving replies to the test:
+ * each command with reply gets a pending promise of its own, see {@link #getReplies()}.
+ */
+final class FakeAsyncChannel implements AsyncChannel {
+    private final List<byte[]> sent = new CopyOnWriteArrayList<>();
+    private final List<Promise<Reply>> replies = new CopyOnWriteArrayList<>();
+
+    /**
+     * Get the bytecode of the commands sent so far, in order.
+     */
+    List<byte[]> getSent() {
+        return sent;
+    }
+
+    /**
+     * Get the promises returned for the commands with reply sent so far, in order.
+     */
+    List<Promise<Reply>> getReplies() {
+        return replies;
+    }
+
+    @NonNull
+    @Override
+    public State getState() {
+        return State.OPEN;
+    }
+
+    @Override
+    public void addStateListener(@NonNull StateListener l) {
+    }
+
+    @Override
+    public void removeStateListener(@NonNull StateListener l) {
+    }
+
+    @NonNull
+    @Override
+    public Promise<Reply> send(@NonNull Command cmd) {
+        sent.add(cmd.getData());
+        Promise<Reply> r = new Promise<>();
+        replies.add(r);
+        return r;
+    }
+
+    @NonNull
+    @Override
+    public Promise<Reply> send(int reservation, @NonNull Bytecode bc) {
+        return send(new Command(true, 0, reservation, bc.getBytes()));
+    }
+
+    @Override
+    public void sendNoReply(@NonNull Bytecode bc) {
+        sent.add(bc.getBytes());
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,124 @@
+package it.unive.dais.legodroid.lib;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import it.unive.dais.legodroid.lib.comm.AsyncChannel;
+import it.unive.dais.legodroid.lib.comm.Bytecode;
+import it.unive.dais.legodroid.lib.comm.Channel;
+import it.unive.dais.legodroid.lib.comm.Command;
+import it.unive.dais.legodroid.lib.comm.Const;
+import it.unive.dais.legodroid.lib.comm.Reply;
+import it.unive.dais.legodroid.lib.comm.SpooledAsyncChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FleetTest {
+
+    /**
+     * A brick replying at once to every command with a zero-filled global buffer, unless it is mute.
+     */
+    private static final class EchoChannel implements Channel {
+        private final BlockingQueue<byte[]> replies = new LinkedBlockingQueue<>();
+        private final boolean mute;
+
+        EchoChannel(boolean mute) {
+            this.mute = mute;
+        }
+
+        @Override
+        public void send(Command cmd) {
+            if (!cmd.hasReply() || mute)
+                return;
+            byte[] r = new byte[3 + cmd.getGlobalReservation()];
+            r[0] = (byte) cmd.getCounter();
+            r[1] = (byte) (cmd.getCounter() >> 8);
+            r[2] = Const.DIRECT_COMMAND_SUCCESS;
+            replies.add(r);
+        }
+
+        @Override
+        public Reply receive() throws IOException {
+            try {
+                return new Reply(replies.take());
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final List<SpooledAsyncChannel> channels = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (SpooledAsyncChannel ch : channels)
+            ch.close();
+    }
+
+    private SpooledAsyncChannel open(boolean mute, int maxInFlight) {
+        SpooledAsyncChannel ch = new SpooledAsyncChannel(new EchoChannel(mute), maxInFlight, SpooledAsyncChannel.DEFAULT_MAX_RESERVATION, SpooledAsyncChannel.Backpressure.BLOCK);
+        channels.add(ch);
+        return ch;
+    }
+
+    private static Bytecode read() throws IOException {
+        Bytecode bc = new Bytecode();
+        bc.addOpCode(Const.INPUT_DEVICE);
+        bc.addConstant(Const.READY_SI);
+        bc.addConstant(0);
+        bc.addConstant(0);
+        bc.addConstant(0);
+        bc.addConstant(1);
+        bc.addGlobalIndex(0);
+        return bc;
+    }
+
+    @Test
+    public void fullWindowDoesNotHoldBackOtherBricks() throws Exception {
+        SpooledAsyncChannel congested = open(true, 1);
+        SpooledAsyncChannel healthy = open(false, SpooledAsyncChannel.DEFAULT_MAX_IN_FLIGHT);
+        // the only credit of the congested brick is taken by a command that is never replied to
+        congested.send(4, read());
+        try (Fleet fleet = new Fleet(channels)) {
+            final long t0 = System.nanoTime();
+            Fleet.Result r = fleet.broadcast(4, read(), AsyncChannel.Priority.CONTROL, 1, TimeUnit.SECONDS).get();
+            final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - t0);
+            assertTrue(elapsed + " ms", elapsed < 1000);
+            assertEquals(1, r.getSuccessCount());
+            assertTrue(r.getOutcomes().get(0).getFailure() instanceof RejectedExecutionException);
+            assertTrue(r.getOutcomes().get(1).isSuccessful());
+            r.release();
+            assertEquals(1, fleet.broadcastNoReply(read(), AsyncChannel.Priority.CONTROL));
+            // safety commands are never held back by the window
+            assertEquals(2, fleet.broadcastNoReply(read(), AsyncChannel.Priority.SAFETY));
+        }
+    }
+
+    @Test
+    public void silentBrickTimesOutAlone() throws Exception {
+        open(true, SpooledAsyncChannel.DEFAULT_MAX_IN_FLIGHT);
+        open(false, SpooledAsyncChannel.DEFAULT_MAX_IN_FLIGHT);
+        try (Fleet fleet = new Fleet(channels)) {
+            Fleet.Result r = fleet.broadcast(4, read(), AsyncChannel.Priority.TELEMETRY, 100, TimeUnit.MILLISECONDS).get();
+            assertTrue(r.getOutcomes().get(0).getFailure() instanceof TimeoutException);
+            assertTrue(r.getOutcomes().get(1).isSuccessful());
+            assertEquals(4, r.getOutcomes().get(1).getReply().length());
+            r.release();
+        }
+    }
+}
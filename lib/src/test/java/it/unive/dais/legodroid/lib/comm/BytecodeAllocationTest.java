@@ -0,0 +1,84 @@
+package it.unive.dais.legodroid.lib.comm;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks that encoding into pooled {@link Bytecode} objects allocates nothing once the pool is warm.
+ * Only encoding is checked: sending snapshots the bytes and queues a command, which does allocate.
+ * Skipped on JVMs that cannot measure the bytes allocated by a thread.
+ */
+public class BytecodeAllocationTest {
+    private static final int ROUNDS = 10_000;
+    // measuring itself may allocate a few bytes, far less than one byte per round
+    private static final long SLACK = 1024;
+
+    private static final Template TEMPLATE = new Template.Builder()
+            .addOpCode(Const.OUTPUT_POWER)
+            .addConstant(Const.LAYER_MASTER)
+            .addConstant(1)
+            .addByteSlot()
+            .addShortSlot()
+            .build();
+
+    private com.sun.management.ThreadMXBean mx;
+
+    @Before
+    public void setUp() {
+        Object bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        mx = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(mx.isThreadAllocatedMemorySupported());
+        mx.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    private long allocated() {
+        return mx.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void encode(int i) throws IOException {
+        Bytecode bc = Bytecode.obtain();
+        bc.addOpCode(Const.INPUT_DEVICE);
+        bc.addConstant(Const.READY_SI);
+        bc.addConstant(0);
+        bc.addConstant(i & 3);
+        bc.addConstant(i);
+        bc.addParameter((short) i);
+        bc.addGlobalIndex(i & 0x3F);
+        bc.recycle();
+    }
+
+    private static void instantiate(int i) {
+        Bytecode bc = TEMPLATE.obtain(i, -i);
+        TEMPLATE.patch(bc, 0, i + 1);
+        bc.recycle();
+    }
+
+    @Test
+    public void encodingAllocatesNothing() throws IOException {
+        for (int i = 0; i < ROUNDS; ++i)
+            encode(i);
+        long before = allocated();
+        for (int i = 0; i < ROUNDS; ++i)
+            encode(i);
+        long bytes = allocated() - before;
+        assertTrue(bytes + " bytes allocated in " + ROUNDS + " rounds", bytes < SLACK);
+    }
+
+    @Test
+    public void templateAllocatesNothing() {
+        for (int i = 0; i < ROUNDS; ++i)
+            instantiate(i);
+        long before = allocated();
+        for (int i = 0; i < ROUNDS; ++i)
+            instantiate(i);
+        long bytes = allocated() - before;
+        assertTrue(bytes + " bytes allocated in " + ROUNDS + " rounds", bytes < SLACK);
+    }
+}
@@ -0,0 +1,235 @@
+package it.unive.dais.legodroid.lib.comm;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BytecodeTest {
+
+    private static byte[] bytes(int... xs) {
+        byte[] r = new byte[xs.length];
+        for (int i = 0; i < xs.length; ++i)
+            r[i] = (byte) xs[i];
+        return r;
+    }
+
+    private static byte[] constant(int value) throws IOException {
+        Bytecode bc = new Bytecode();
+        bc.addConstant(value);
+        return bc.getBytes();
+    }
+
+    private static byte[] globalIndex(int index) throws IOException {
+        Bytecode bc = new Bytecode();
+        bc.addGlobalIndex(index);
+        return bc.getBytes();
+    }
+
+    private static byte[] localIndex(int index) throws IOException {
+        Bytecode bc = new Bytecode();
+        bc.addLocalIndex(index);
+        return bc.getBytes();
+    }
+
+    @Test
+    public void constantsUseTheShortestForm() throws IOException {
+        assertArrayEquals(bytes(0x00), constant(0));
+        assertArrayEquals(bytes(0x1F), constant(31));
+        assertArrayEquals(bytes(0x3F), constant(-1));
+        assertArrayEquals(bytes(0x21), constant(-31));
+        assertArrayEquals(bytes(0x81, 0x20), constant(32));
+        assertArrayEquals(bytes(0x81, 0xE0), constant(-32));
+        assertArrayEquals(bytes(0x81, 0x7F), constant(127));
+        assertArrayEquals(bytes(0x81, 0x80), constant(-128));
+        assertArrayEquals(bytes(0x82, 0x80, 0x00), constant(128));
+        assertArrayEquals(bytes(0x82, 0x7F, 0xFF), constant(-129));
+        assertArrayEquals(bytes(0x82, 0xFF, 0x7F), constant(Short.MAX_VALUE));
+        assertArrayEquals(bytes(0x83, 0x00, 0x80, 0x00, 0x00), constant(Short.MAX_VALUE + 1));
+        assertArrayEquals(bytes(0x83, 0xFF, 0x7F, 0xFF, 0xFF), constant(Short.MIN_VALUE - 1));
+        assertArrayEquals(bytes(0x83, 0x00, 0x00, 0x00, 0x80), constant(Integer.MIN_VALUE));
+    }
+
+    @Test
+    public void parametersKeepTheirSize() throws IOException {
+        Bytecode bc = new Bytecode();
+        bc.addParameter((byte) 1);
+        bc.addParameter((short) 1);
+        bc.addParameter(1);
+        assertArrayEquals(bytes(0x81, 0x01, 0x82, 0x01, 0x00, 0x83, 0x01, 0x00, 0x00, 0x00), bc.getBytes());
+    }
+
+    @Test
+    public void globalIndicesUseTheShortestForm() throws IOException {
+        assertArrayEquals(bytes(0x60), globalIndex(0));
+        assertArrayEquals(bytes(0x7F), globalIndex(31));
+        assertArrayEquals(bytes(0xE1, 0x20), globalIndex(32));
+        assertArrayEquals(bytes(0xE1, 0xFF), globalIndex(255));
+        assertArrayEquals(bytes(0xE2, 0x00, 0x01), globalIndex(256));
+        assertArrayEquals(bytes(0xE2, 0xFF, 0x03), globalIndex(Bytecode.MAX_GLOBAL_INDEX));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void globalIndexOutOfRangeIsRejected() throws IOException {
+        globalIndex(Bytecode.MAX_GLOBAL_INDEX + 1);
+    }
+
+    @Test
+    public void localIndicesUseTheShortestForm() throws IOException {
+        assertArrayEquals(bytes(0x40), localIndex(0));
+        assertArrayEquals(bytes(0x5F), localIndex(31));
+        assertArrayEquals(bytes(0xC1, 0x20), localIndex(32));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void localIndexOutOfRangeIsRejected() throws IOException {
+        localIndex(Bytecode.MAX_LOCAL_RESERVATION);
+    }
+
+    @Test
+    public void backwardJumpIsRelativeToItsEnd() throws IOException {
+        Bytecode bc = new Bytecode();
+        Bytecode.Label loop = bc.newLabel();
+        bc.addOpCode(Const.NOP);
+        bc.bind(loop);
+        bc.addOpCode(Const.NOP);
+        bc.addOpCode(Const.JR);
+        bc.addOffset(loop);
+        // the jump ends at 6 and the label is at 1
+        assertArrayEquals(bytes(0x01, 0x01, 0x40, 0x82, 0xFB, 0xFF), bc.getBytes());
+    }
+
+    @Test
+    public void forwardJumpIsResolvedWhenBound() throws IOException {
+        Bytecode bc = new Bytecode();
+        Bytecode.Label end = bc.newLabel();
+        bc.addOpCode(Const.JR);
+        bc.addOffset(end);
+        bc.addOpCode(Const.NOP);
+        bc.addOpCode(Const.NOP);
+        bc.bind(end);
+        bc.addOpCode(Const.NOP);
+        assertArrayEquals(bytes(0x40, 0x82, 0x02, 0x00, 0x01, 0x01, 0x01), bc.getBytes());
+    }
+
+    @Test
+    public void jumpToNextInstructionHasZeroOffset() throws IOException {
+        Bytecode bc = new Bytecode();
+        Bytecode.Label next = bc.newLabel();
+        bc.addOpCode(Const.JR);
+        bc.addOffset(next);
+        bc.bind(next);
+        assertArrayEquals(bytes(0x40, 0x82, 0x00, 0x00), bc.getBytes());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unboundLabelIsRejected() throws IOException {
+        Bytecode bc = new Bytecode();
+        bc.addOpCode(Const.JR);
+        bc.addOffset(bc.newLabel());
+        bc.getBytes();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void foreignLabelIsRejected() throws IOException {
+        Bytecode bc = new Bytecode();
+        bc.addOpCode(Const.JR);
+        bc.addOffset(new Bytecode().newLabel());
+    }
+
+    @Test
+    public void appendRelocatesGlobalIndices() throws IOException {
+        Bytecode src = new Bytecode();
+        src.addOpCode(Const.NOP);
+        src.addGlobalIndex(30);
+        src.addGlobalIndex(2);
+        src.addOpCode(Const.NOP);
+        Bytecode dst = new Bytecode();
+        dst.addOpCode(Const.NOP);
+        dst.append(src, 4);
+        // 30 + 4 crosses the GV0 limit and grows to GV1, 2 + 4 stays GV0
+        assertArrayEquals(bytes(0x01, 0x01, 0xE1, 0x22, 0x66, 0x01), dst.getBytes());
+        assertArrayEquals(new int[]{2, 4}, dst.getGlobalPositions());
+        assertEquals(34, dst.getMaxGlobalIndex());
+        // the source is left alone
+        assertArrayEquals(bytes(0x01, 0x7E, 0x62, 0x01), src.getBytes());
+    }
+
+    @Test
+    public void appendRelocatesAcrossGv1Limit() throws IOException {
+        Bytecode src = new Bytecode();
+        src.addGlobalIndex(250);
+        Bytecode dst = new Bytecode();
+        dst.append(src, 10);
+        assertArrayEquals(bytes(0xE2, 0x04, 0x01), dst.getBytes());
+    }
+
+    @Test
+    public void appendWithNoOffsetCopiesVerbatim() throws IOException {
+        Bytecode src = new Bytecode();
+        src.addGlobalIndex(31);
+        Bytecode dst = new Bytecode();
+        dst.addOpCode(Const.NOP);
+        dst.append(src);
+        assertArrayEquals(bytes(0x01, 0x7F), dst.getBytes());
+        assertArrayEquals(new int[]{1}, dst.getGlobalPositions());
+    }
+
+    @Test
+    public void failedRelocationLeavesTargetUnchanged() throws IOException {
+        Bytecode src = new Bytecode();
+        src.addGlobalIndex(0);
+        src.addGlobalIndex(Bytecode.MAX_GLOBAL_INDEX);
+        Bytecode dst = new Bytecode();
+        dst.addGlobalIndex(5);
+        try {
+            dst.append(src, 1);
+            fail("relocation beyond the global buffer accepted");
+        } catch (IllegalArgumentException ignored) {
+        }
+        assertArrayEquals(bytes(0x65), dst.getBytes());
+        assertArrayEquals(new int[]{0}, dst.getGlobalPositions());
+    }
+
+    @Test
+    public void bytecodeWithJumpsIsNotRelocatable() throws IOException {
+        Bytecode src = new Bytecode();
+        Bytecode.Label loop = src.newLabel();
+        src.bind(loop);
+        src.addGlobalIndex(0);
+        src.addOpCode(Const.JR);
+        src.addOffset(loop);
+        assertFalse(src.isRelocatable());
+        Bytecode dst = new Bytecode();
+        dst.addOpCode(Const.NOP);
+        assertTrue(dst.isRelocatable());
+        try {
+            dst.append(src, 4);
+            fail("bytecode with jumps relocated");
+        } catch (IllegalArgumentException ignored) {
+        }
+        assertArrayEquals(bytes(0x01), dst.getBytes());
+        // appending with no shift is fine, and the target is no longer relocatable
+        dst.append(src, 0);
+        assertArrayEquals(bytes(0x01, 0x60, 0x40, 0x82, 0xFB, 0xFF), dst.getBytes());
+        assertFalse(dst.isRelocatable());
+    }
+
+    @Test
+    public void recycledBytecodeIsEmpty() throws IOException {
+        Bytecode bc = Bytecode.obtain();
+        bc.allocGlobal("x", 4);
+        bc.addGlobal("x");
+        bc.recycle();
+        Bytecode again = Bytecode.obtain();
+        assertEquals(0, again.length());
+        assertEquals(0, again.getGlobalReservation());
+        assertEquals(-1, again.getMaxGlobalIndex());
+        again.recycle();
+    }
+}
@@ -0,0 +1,101 @@
+package it.unive.dais.legodroid.lib.comm;
+
+import org.junit.Test;
+
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CreditWindowTest {
+
+    @Test
+    public void countIsLimited() {
+        CreditWindow w = new CreditWindow(2, 1024);
+        assertTrue(w.tryAcquire(0));
+        assertTrue(w.tryAcquire(0));
+        assertFalse(w.tryAcquire(0));
+        assertFalse(w.hasRoom());
+        w.release(0);
+        assertTrue(w.hasRoom());
+        assertTrue(w.tryAcquire(0));
+    }
+
+    @Test
+    public void bytesAreLimited() {
+        CreditWindow w = new CreditWindow(8, 10);
+        assertTrue(w.tryAcquire(6));
+        assertFalse(w.tryAcquire(6));
+        assertTrue(w.tryAcquire(4));
+        assertFalse(w.tryAcquire(1));
+        // commands with no reservation are limited by count only
+        assertTrue(w.tryAcquire(0));
+        w.release(6);
+        assertTrue(w.tryAcquire(6));
+    }
+
+    @Test
+    public void oversizedReservationIsAdmittedWhenEmpty() {
+        CreditWindow w = new CreditWindow(8, 10);
+        assertTrue(w.tryAcquire(20));
+        assertFalse(w.tryAcquire(20));
+        assertFalse(w.tryAcquire(1));
+        w.release(20);
+        assertTrue(w.tryAcquire(1));
+        assertFalse(w.tryAcquire(20));
+    }
+
+    @Test
+    public void awaitRoomTakesNoCredits() throws InterruptedException {
+        CreditWindow w = new CreditWindow(1, 0);
+        w.awaitRoom(0);
+        w.awaitRoom(0);
+        assertTrue(w.tryAcquire(0));
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void acquireTimesOut() throws InterruptedException {
+        CreditWindow w = new CreditWindow(1, 0);
+        w.acquire(0, 0);
+        w.acquire(0, 20);
+    }
+
+    @Test(expected = RejectedExecutionException.class)
+    public void awaitRoomTimesOut() throws InterruptedException {
+        CreditWindow w = new CreditWindow(1, 0);
+        w.acquire(0, 0);
+        w.awaitRoom(20);
+    }
+
+    @Test
+    public void releaseWakesBlockedAcquire() throws Exception {
+        final CreditWindow w = new CreditWindow(1, 0);
+        w.acquire(0, 0);
+        Thread t = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            w.release(0);
+        });
+        t.start();
+        w.acquire(0, 10000);
+        t.join();
+        assertFalse(w.hasRoom());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void emptyWindowIsRejected() {
+        new CreditWindow(0, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void windowLargerThanReplyTableIsRejected() {
+        new CreditWindow(ReplyTable.SLOTS + 1, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeBytesAreRejected() {
+        new CreditWindow(1, -1);
+    }
+}
@@ -0,0 +1,121 @@
+package it.unive.dais.legodroid.lib.comm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A stand-in for an EV3 brick reachable over Wi-Fi, listening on the loopback interface.
+ * As a real brick does, it accepts a TCP connection only after a datagram has arrived on its beacon port, and answers commands only once unlocked by a handshake
+ * carrying its serial number. Each command with reply is answered with a global buffer holding the bytecode of the command, truncated or zero-padded to the reservation.
+ */
+final class FakeBrick implements Closeable {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final String serialNumber;
+    private final DatagramSocket beacon;
+    private final ServerSocket server;
+    private final Thread thread;
+    private final List<byte[]> commands = new CopyOnWriteArrayList<>();
+    private volatile Socket client;
+
+    FakeBrick(String serialNumber) throws IOException {
+        this.serialNumber = serialNumber;
+        this.beacon = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        this.server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        this.thread = new Thread(this::run, "FakeBrick");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() {
+        return server.getLocalPort();
+    }
+
+    int getBeaconPort() {
+        return beacon.getLocalPort();
+    }
+
+    /**
+     * Get the commands received so far, serialized with no length prefix as {@link Command#marshal()} does.
+     */
+    List<byte[]> getCommands() {
+        return commands;
+    }
+
+    private void run() {
+        try {
+            beacon.receive(new DatagramPacket(new byte[16], 16));
+            try (Socket s = server.accept()) {
+                client = s;
+                s.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(s.getInputStream());
+                OutputStream out = s.getOutputStream();
+                if (!handshake(in, out))
+                    return;
+                while (true)
+                    serve(in, out);
+            }
+        } catch (IOException ignored) {
+            // closed
+        }
+    }
+
+    private boolean handshake(InputStream in, OutputStream out) throws IOException {
+        ByteArrayOutputStream req = new ByteArrayOutputStream();
+        while (!new String(req.toByteArray(), ASCII).endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0)
+                return false;
+            req.write(b);
+        }
+        final boolean ok = new String(req.toByteArray(), ASCII).startsWith(String.format("GET /target?sn=%s ", serialNumber));
+        out.write((ok ? "Accept:EV340\r\n\r\n" : "Reject\r\n\r\n").getBytes(ASCII));
+        out.flush();
+        return ok;
+    }
+
+    private void serve(DataInputStream in, OutputStream out) throws IOException {
+        final int len = in.readUnsignedByte() | (in.readUnsignedByte() << 8);
+        byte[] cmd = new byte[len];
+        in.readFully(cmd);
+        commands.add(cmd);
+        if (cmd[2] != Const.DIRECT_COMMAND_REPLY)
+            return;
+        final int globals = (cmd[3] & 0xFF) | ((cmd[4] & 0x03) << 8);
+        byte[] reply = new byte[5 + globals];
+        reply[0] = (byte) (3 + globals);
+        reply[1] = (byte) ((3 + globals) >> 8);
+        reply[2] = cmd[0];
+        reply[3] = cmd[1];
+        reply[4] = Const.DIRECT_COMMAND_SUCCESS;
+        System.arraycopy(cmd, 5, reply, 5, Math.min(globals, len - 5));
+        out.write(reply);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        beacon.close();
+        server.close();
+        Socket s = client;
+        if (s != null)
+            s.close();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
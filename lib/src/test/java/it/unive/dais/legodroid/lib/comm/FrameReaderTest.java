@@ -0,0 +1,256 @@
+package it.unive.dais.legodroid.lib.comm;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FrameReaderTest {
+    // the smallest chunk size accepted by the reader
+    private static final int CHUNK_SIZE = 64;
+    // payload sizes of the test frames: empty, small, exactly filling a chunk and larger than a chunk
+    private static final int[] SIZES = {0, 1, 4, CHUNK_SIZE - 5, 7, CHUNK_SIZE + 30, 2};
+
+    private static byte[] payload(int frame, int size) {
+        byte[] r = new byte[size];
+        for (int i = 0; i < size; ++i)
+            r[i] = (byte) (31 * frame + i);
+        return r;
+    }
+
+    private static byte[] frames(int[] sizes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < sizes.length; ++i) {
+            final int len = 3 + sizes[i];
+            out.write(len & 0xFF);
+            out.write(len >> 8);
+            out.write(i);
+            out.write(0x10);
+            out.write(i % 3 == 0 ? Const.DIRECT_COMMAND_FAIL : Const.DIRECT_COMMAND_SUCCESS);
+            out.write(payload(i, sizes[i]), 0, sizes[i]);
+        }
+        return out.toByteArray();
+    }
+
+    private static void check(int i, Reply r) {
+        assertEquals(0x1000 | i, r.getCounter());
+        assertEquals(i % 3 == 0, r.isError());
+        assertEquals(SIZES[i], r.length());
+        assertArrayEquals(payload(i, SIZES[i]), r.getData());
+    }
+
+    /**
+     * A stream that hands out its bytes in two parts split at the given offset, or one byte at a time when the offset is negative.
+     */
+    private static final class SplitStream extends InputStream {
+        private final byte[] bytes;
+        private final int split;
+        private int pos = 0;
+
+        SplitStream(byte[] bytes, int split) {
+            this.bytes = bytes;
+            this.split = split;
+        }
+
+        private int available(int len) {
+            final int limit = split < 0 ? pos + 1 : pos < split ? split : bytes.length;
+            return Math.min(len, Math.min(limit, bytes.length) - pos);
+        }
+
+        @Override
+        public int read() {
+            return pos < bytes.length ? bytes[pos++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (pos == bytes.length)
+                return -1;
+            final int n = available(len);
+            System.arraycopy(bytes, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+
+    /**
+     * A channel that behaves as {@link SplitStream}, returning 0 bytes once before each part as a non-blocking channel with nothing ready does.
+     */
+    private static final class SplitChannel implements ReadableByteChannel {
+        private final SplitStream in;
+        private boolean ready = false;
+
+        SplitChannel(byte[] bytes, int split) {
+            in = new SplitStream(bytes, split);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!ready) {
+                ready = true;
+                return 0;
+            }
+            ready = false;
+            final int n = in.read(dst.array(), dst.position(), dst.remaining());
+            if (n > 0)
+                dst.position(dst.position() + n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static void readAll(FrameReader reader) throws IOException {
+        for (int i = 0; i < SIZES.length; ++i) {
+            Reply r = reader.read();
+            check(i, r);
+            r.release();
+        }
+        try {
+            reader.read();
+            fail("frame read past the end of stream");
+        } catch (EOFException ignored) {
+        }
+    }
+
+    private static void pollAll(FrameReader reader, ReadableByteChannel ch) throws IOException {
+        for (int i = 0; i < SIZES.length; ++i) {
+            Reply r;
+            while ((r = reader.poll()) == null)
+                reader.fill(ch);
+            check(i, r);
+            r.release();
+        }
+        assertNull(reader.poll());
+        try {
+            while (true)
+                reader.fill(ch);
+        } catch (EOFException ignored) {
+        }
+    }
+
+    @Test
+    public void readSplitAtEveryOffset() throws IOException {
+        final byte[] bytes = frames(SIZES);
+        for (int split = 0; split <= bytes.length; ++split)
+            readAll(new FrameReader(new SplitStream(bytes, split), CHUNK_SIZE));
+    }
+
+    @Test
+    public void readOneByteAtATime() throws IOException {
+        readAll(new FrameReader(new SplitStream(frames(SIZES), -1), CHUNK_SIZE));
+    }
+
+    @Test
+    public void pollSplitAtEveryOffset() throws IOException {
+        final byte[] bytes = frames(SIZES);
+        for (int split = 0; split <= bytes.length; ++split)
+            pollAll(new FrameReader(CHUNK_SIZE), new SplitChannel(bytes, split));
+    }
+
+    @Test
+    public void pollOneByteAtATime() throws IOException {
+        pollAll(new FrameReader(CHUNK_SIZE), new SplitChannel(frames(SIZES), -1));
+    }
+
+    @Test
+    public void bufferedFramesNeedNoRead() throws IOException {
+        FrameReader reader = new FrameReader(new SplitStream(frames(new int[]{1, 2, 3}), 0), 1024);
+        for (int i = 0; i < 3; ++i)
+            reader.read().release();
+        assertEquals(1, reader.getReads());
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncatedFrameIsReported() throws IOException {
+        final byte[] bytes = frames(new int[]{10});
+        byte[] truncated = new byte[bytes.length - 1];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        new FrameReader(new SplitStream(truncated, 0)).read();
+    }
+
+    @Test(expected = IOException.class)
+    public void malformedFrameIsReported() throws IOException {
+        new FrameReader(new SplitStream(new byte[]{2, 0, 0, 0}, 0)).read();
+    }
+
+    private static int distinctBuffers(boolean release) throws IOException {
+        final int n = 1000;
+        final int[] sizes = new int[n];
+        for (int i = 0; i < n; ++i)
+            sizes[i] = i % 9;
+        FrameReader reader = new FrameReader(new SplitStream(frames(sizes), -1), CHUNK_SIZE);
+        IdentityHashMap<byte[], Boolean> seen = new IdentityHashMap<>();
+        for (int i = 0; i < n; ++i) {
+            Reply r = reader.read();
+            seen.put(r.data, true);
+            if (release)
+                r.release();
+        }
+        return seen.size();
+    }
+
+    @Test
+    public void releasedChunksAreRecycled() throws IOException {
+        assertEquals(1, distinctBuffers(true));
+        assertTrue(distinctBuffers(false) > 10);
+    }
+
+    @Test
+    public void heldRepliesKeepTheirBytes() throws IOException {
+        final int n = 200;
+        final int[] sizes = new int[n];
+        for (int i = 0; i < n; ++i)
+            sizes[i] = 1 + i % 5;
+        FrameReader reader = new FrameReader(new SplitStream(frames(sizes), -1), CHUNK_SIZE);
+        List<Reply> held = new ArrayList<>();
+        for (int i = 0; i < n; ++i) {
+            Reply r = reader.read();
+            // hold one reply every 10, release the others
+            if (i % 10 == 0)
+                held.add(r);
+            else
+                r.release();
+        }
+        for (int k = 0; k < held.size(); ++k) {
+            final int i = 10 * k;
+            Reply r = held.get(k);
+            assertEquals(0x1000 | (i & 0xFF), r.getCounter());
+            assertArrayEquals(payload(i, sizes[i]), r.getData());
+            r.release();
+        }
+    }
+
+    @Test
+    public void releasedReplyCannotBeRead() throws IOException {
+        FrameReader reader = new FrameReader(new SplitStream(frames(new int[]{4}), 0));
+        Reply r = reader.read();
+        r.release();
+        r.release();
+        try {
+            r.getByte(0);
+            fail("released reply read");
+        } catch (IllegalStateException ignored) {
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package it.unive.dais.legodroid.lib.comm;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ReplyTableTest {
+    private static final long NEVER_STALE = Long.MAX_VALUE;
+    // entries are evicted as soon as their slot is needed again
+    private static final long ALWAYS_STALE = -1;
+
+    private final CreditWindow window = new CreditWindow(ReplyTable.SLOTS, Integer.MAX_VALUE);
+
+    private SpooledAsyncChannel.FutureReply newReply(ReplyTable table) {
+        return new SpooledAsyncChannel.FutureReply(table, window);
+    }
+
+    @Test
+    public void slotsAreReusedAcrossWraparound() throws IOException {
+        ReplyTable table = new ReplyTable(NEVER_STALE);
+        for (int i = 0; i < 3 * 65536; ++i) {
+            SpooledAsyncChannel.FutureReply r = newReply(table);
+            int seq = table.register(r);
+            assertEquals(i & 0xFFFF, seq);
+            assertSame(r, table.remove(seq));
+        }
+    }
+
+    @Test
+    public void wrappedSequenceNumbersDoNotMatchOlderEntries() throws IOException {
+        ReplyTable table = new ReplyTable(NEVER_STALE);
+        SpooledAsyncChannel.FutureReply first = newReply(table);
+        int seq = table.register(first);
+        assertNull(table.remove(seq + ReplyTable.SLOTS));
+        assertNull(table.remove(seq + 65536 - ReplyTable.SLOTS));
+        assertFalse(first.isDone());
+        assertSame(first, table.remove(seq + 65536));
+        assertNull(table.remove(seq));
+    }
+
+    @Test
+    public void occupiedSlotsAreSkipped() throws IOException {
+        ReplyTable table = new ReplyTable(NEVER_STALE);
+        SpooledAsyncChannel.FutureReply pending = newReply(table);
+        int seq = table.register(pending);
+        for (int i = 1; i < ReplyTable.SLOTS; ++i)
+            assertNotNull(table.remove(table.register(newReply(table))));
+        // the next sequence number maps to the slot still taken, hence it is skipped
+        int next = table.register(newReply(table));
+        assertEquals(seq + ReplyTable.SLOTS + 1, next);
+        assertFalse(pending.isDone());
+        assertSame(pending, table.remove(seq));
+    }
+
+    @Test(expected = IOException.class)
+    public void fullTableIsRejected() throws IOException {
+        ReplyTable table = new ReplyTable(NEVER_STALE);
+        for (int i = 0; i < ReplyTable.SLOTS; ++i)
+            table.register(newReply(table));
+        table.register(newReply(table));
+    }
+
+    @Test
+    public void staleEntriesAreEvicted() throws Exception {
+        ReplyTable table = new ReplyTable(ALWAYS_STALE);
+        SpooledAsyncChannel.FutureReply[] rs = new SpooledAsyncChannel.FutureReply[ReplyTable.SLOTS];
+        for (int i = 0; i < rs.length; ++i) {
+            rs[i] = newReply(table);
+            table.register(rs[i]);
+        }
+        SpooledAsyncChannel.FutureReply late = newReply(table);
+        int seq = table.register(late);
+        assertEquals(ReplyTable.SLOTS, seq);
+        assertTrue(rs[0].isFailed());
+        assertTrue(rs[0].getFailure() instanceof TimeoutException);
+        assertFalse(rs[1].isDone());
+        // a late reply to the evicted command does not match the entry that took its slot
+        assertNull(table.remove(0));
+        assertSame(late, table.remove(seq));
+    }
+
+    @Test
+    public void settledEntriesFreeTheirSlot() throws IOException {
+        ReplyTable table = new ReplyTable(NEVER_STALE);
+        SpooledAsyncChannel.FutureReply r = newReply(table);
+        int seq = table.register(r);
+        r.cancel(true);
+        assertNull(table.remove(seq));
+        for (int i = 0; i < ReplyTable.SLOTS; ++i)
+            table.register(newReply(table));
+    }
+
+    @Test
+    public void failAllEmptiesTheTable() throws IOException {
+        ReplyTable table = new ReplyTable(NEVER_STALE);
+        SpooledAsyncChannel.FutureReply r = newReply(table);
+        int seq = table.register(r);
+        IOException e = new IOException("link lost");
+        table.failAll(e);
+        assertSame(e, r.getFailure());
+        assertNull(table.remove(seq));
+    }
+
+    @Test
+    public void sweepFailsExpiredEntriesOnly() throws IOException {
+        ReplyTable table = new ReplyTable(NEVER_STALE);
+        RttEstimator rtt = new RttEstimator();
+        assertEquals(Long.MAX_VALUE, table.sweep(0, rtt));
+        SpooledAsyncChannel.FutureReply early = newReply(table), late = newReply(table);
+        table.register(early);
+        table.register(late);
+        table.arm(early, 0, 10);
+        table.arm(late, 0, 100);
+        assertEquals(10, table.sweep(0, rtt));
+        assertEquals(50, table.sweep(50, rtt));
+        assertTrue(early.getFailure() instanceof TimeoutException);
+        assertFalse(late.isDone());
+        assertEquals(40, table.sweep(60, rtt));
+    }
+
+    @Test
+    public void sweepIsSkippedUntilTheEarliestDeadline() throws IOException {
+        ReplyTable table = new ReplyTable(NEVER_STALE);
+        RttEstimator rtt = new RttEstimator();
+        SpooledAsyncChannel.FutureReply armed = newReply(table), hidden = newReply(table);
+        table.register(armed);
+        table.register(hidden);
+        table.arm(armed, 0, 100);
+        // a deadline set behind the back of the table is not seen until the table is scanned
+        hidden.setWritten(0, 10);
+        assertEquals(50, table.sweep(50, rtt));
+        assertFalse(hidden.isDone());
+        assertEquals(Long.MAX_VALUE, table.sweep(100, rtt));
+        assertTrue(hidden.isFailed());
+        assertTrue(armed.isFailed());
+    }
+
+    @Test
+    public void completedEarliestEntryCostsOneScan() throws IOException {
+        ReplyTable table = new ReplyTable(NEVER_STALE);
+        RttEstimator rtt = new RttEstimator();
+        SpooledAsyncChannel.FutureReply early = newReply(table), late = newReply(table);
+        int seq = table.register(early);
+        table.register(late);
+        table.arm(early, 0, 10);
+        table.arm(late, 0, 100);
+        assertSame(early, table.remove(seq));
+        assertEquals(90, table.sweep(10, rtt));
+        assertFalse(late.isDone());
+    }
+}
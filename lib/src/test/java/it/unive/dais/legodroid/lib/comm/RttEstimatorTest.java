@@ -0,0 +1,81 @@
+package it.unive.dais.legodroid.lib.comm;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+public class RttEstimatorTest {
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void initialTimeout() {
+        RttEstimator rtt = new RttEstimator();
+        assertEquals(0, rtt.getSamples());
+        assertEquals(0, rtt.getSmoothedRtt(TimeUnit.NANOSECONDS));
+        assertEquals(RttEstimator.INITIAL_TIMEOUT_MS, rtt.getTimeout(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void firstSampleSetsMeanAndHalfVariance() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.sample(100 * MS);
+        assertEquals(1, rtt.getSamples());
+        assertEquals(100 * MS, rtt.getSmoothedRtt(TimeUnit.NANOSECONDS));
+        assertEquals(50 * MS, rtt.getRttVariance(TimeUnit.NANOSECONDS));
+        assertEquals(300 * MS, rtt.getTimeout(TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    public void laterSamplesAreSmoothed() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.sample(100 * MS);
+        rtt.sample(200 * MS);
+        // RTTVAR = 3/4 * 50 + 1/4 * |100 - 200|, SRTT = 7/8 * 100 + 1/8 * 200
+        assertEquals(62500 * 1000, rtt.getRttVariance(TimeUnit.NANOSECONDS));
+        assertEquals(112500 * 1000, rtt.getSmoothedRtt(TimeUnit.NANOSECONDS));
+        assertEquals(362500 * 1000, rtt.getTimeout(TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    public void negativeSamplesAreIgnored() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.sample(-1);
+        assertEquals(0, rtt.getSamples());
+        assertEquals(RttEstimator.INITIAL_TIMEOUT_MS, rtt.getTimeout(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void timeoutIsClampedBelow() {
+        RttEstimator rtt = new RttEstimator();
+        for (int i = 0; i < 100; ++i)
+            rtt.sample(MS);
+        assertEquals(RttEstimator.MIN_TIMEOUT_MS, rtt.getTimeout(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void timeoutIsClampedAbove() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.sample(TimeUnit.MINUTES.toNanos(1));
+        assertEquals(RttEstimator.MAX_TIMEOUT_MS, rtt.getTimeout(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void backoffDoublesUntilNextSample() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.sample(100 * MS);
+        rtt.backoff();
+        assertEquals(600, rtt.getTimeout(TimeUnit.MILLISECONDS));
+        rtt.backoff();
+        assertEquals(1200, rtt.getTimeout(TimeUnit.MILLISECONDS));
+        for (int i = 0; i < 10; ++i)
+            rtt.backoff();
+        assertEquals(RttEstimator.MAX_TIMEOUT_MS, rtt.getTimeout(TimeUnit.MILLISECONDS));
+        // the next sample recomputes the timeout from the estimates
+        rtt.sample(100 * MS);
+        assertEquals(100 * MS, rtt.getSmoothedRtt(TimeUnit.NANOSECONDS));
+        assertEquals(37500 * 1000, rtt.getRttVariance(TimeUnit.NANOSECONDS));
+        assertEquals(250 * MS, rtt.getTimeout(TimeUnit.NANOSECONDS));
+    }
+}
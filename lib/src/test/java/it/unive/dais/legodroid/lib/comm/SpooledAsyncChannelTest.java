@@ -0,0 +1,160 @@
+package it.unive.dais.legodroid.lib.comm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import it.unive.dais.legodroid.lib.util.Promise;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SpooledAsyncChannelTest {
+
+    /**
+     * A channel recording the first byte of the bytecode of each command written, whose writes block while the gate is closed. It never replies.
+     */
+    private static final class GatedChannel implements Channel {
+        final List<Integer> written = new ArrayList<>();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final Semaphore gate = new Semaphore(0);
+        private final CountDownLatch closed = new CountDownLatch(1);
+
+        @Override
+        public void send(Command cmd) throws IOException {
+            send(Arrays.asList(cmd));
+        }
+
+        @Override
+        public void send(List<Command> cmds) throws IOException {
+            entered.countDown();
+            gate.acquireUninterruptibly();
+            gate.release();
+            synchronized (written) {
+                for (Command c : cmds)
+                    written.add((int) c.getData()[0]);
+                written.notifyAll();
+            }
+        }
+
+        List<Integer> await(int n) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + 5000;
+            synchronized (written) {
+                while (written.size() < n && System.currentTimeMillis() < deadline)
+                    written.wait(100);
+                return new ArrayList<>(written);
+            }
+        }
+
+        @Override
+        public Reply receive() throws IOException {
+            try {
+                closed.await();
+            } catch (InterruptedException ignored) {
+            }
+            throw new EOFException();
+        }
+
+        @Override
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+    private static final int MARKER = 0, START = 1, POWER_50 = 2, POWER_60 = 3, OTHER = 4;
+    private static final int KEY = 7;
+
+    private GatedChannel channel;
+    private SpooledAsyncChannel ch;
+
+    @Before
+    public void setUp() throws Exception {
+        channel = new GatedChannel();
+        ch = new SpooledAsyncChannel(channel);
+        // hold the writer thread within a write, so that the following commands stay queued
+        ch.sendNoReply(bytecode(MARKER));
+        assertTrue(channel.entered.await(5, TimeUnit.SECONDS));
+    }
+
+    @After
+    public void tearDown() {
+        channel.gate.release();
+        ch.close();
+    }
+
+    private static Bytecode bytecode(int id) throws IOException {
+        Bytecode bc = new Bytecode();
+        bc.addConstant(id);
+        return bc;
+    }
+
+    @Test
+    public void supersedingKeepsThePlaceInTheQueue() throws Exception {
+        ch.sendLatest(KEY, bytecode(POWER_50), AsyncChannel.Priority.CONTROL);
+        ch.sendNoReply(bytecode(START));
+        ch.sendLatest(KEY, bytecode(POWER_60), AsyncChannel.Priority.CONTROL);
+        channel.gate.release();
+        assertEquals(Arrays.asList(MARKER, POWER_60, START), channel.await(3));
+        // once written, the next command with the same key is queued anew
+        ch.sendLatest(KEY, bytecode(POWER_50), AsyncChannel.Priority.CONTROL);
+        assertEquals(Arrays.asList(MARKER, POWER_60, START, POWER_50), channel.await(4));
+    }
+
+    @Test
+    public void supersedingAcrossScopesQueuesAtTheTail() throws Exception {
+        ch.sendLatest(KEY, bytecode(POWER_50), AsyncChannel.Priority.CONTROL);
+        ch.sendNoReply(bytecode(START));
+        ch.beginScope();
+        ch.sendLatest(KEY, bytecode(POWER_60), AsyncChannel.Priority.CONTROL);
+        channel.gate.release();
+        assertEquals(Arrays.asList(MARKER, START, POWER_60), channel.await(3));
+    }
+
+    @Test
+    public void onlyTheLatestHookRunsWhenDropped() throws Exception {
+        final AtomicInteger first = new AtomicInteger(), last = new AtomicInteger();
+        final int scope = ch.beginScope();
+        ch.sendLatest(KEY, bytecode(POWER_50), AsyncChannel.Priority.CONTROL, first::incrementAndGet);
+        ch.sendLatest(KEY, bytecode(POWER_60), AsyncChannel.Priority.CONTROL, last::incrementAndGet);
+        ch.cancelScope(scope);
+        ch.beginScope();
+        ch.sendNoReply(bytecode(OTHER));
+        channel.gate.release();
+        assertEquals(Arrays.asList(MARKER, OTHER), channel.await(2));
+        assertEquals(0, first.get());
+        assertEquals(1, last.get());
+    }
+
+    @Test
+    public void cancellingAScopeCancelsTheEarlierOnes() throws Exception {
+        final int older = ch.beginScope();
+        Promise<Reply> r = ch.send(4, bytecode(OTHER));
+        final int newer = ch.beginScope();
+        ch.cancelScope(newer);
+        assertTrue(r.isCancelled());
+        // cancelling an earlier scope afterwards does not reopen the later one
+        ch.cancelScope(older);
+        try {
+            ch.sendNoReply(bytecode(OTHER));
+            fail("command sent within a cancelled scope");
+        } catch (CancellationException ignored) {
+        }
+        ch.sendNoReply(bytecode(START), AsyncChannel.Priority.SAFETY);
+        ch.beginScope();
+        ch.sendNoReply(bytecode(POWER_50));
+        channel.gate.release();
+        assertEquals(Arrays.asList(MARKER, START, POWER_50), channel.await(3));
+    }
+}
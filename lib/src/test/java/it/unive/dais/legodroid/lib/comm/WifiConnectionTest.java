@@ -0,0 +1,97 @@
+package it.unive.dais.legodroid.lib.comm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class WifiConnectionTest {
+    private static final String SERIAL = "0016533f0c1e";
+    private static final int TIMEOUT_MS = 2000;
+
+    private FakeBrick brick;
+
+    @Before
+    public void setUp() throws IOException {
+        brick = new FakeBrick(SERIAL);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        brick.close();
+    }
+
+    private WifiConnection connection(String serialNumber, int timeout, int beaconPort) {
+        return new WifiConnection(new InetSocketAddress(InetAddress.getLoopbackAddress(), brick.getPort()), serialNumber, timeout, beaconPort);
+    }
+
+    private static byte[] bytecode(int... xs) throws IOException {
+        Bytecode bc = new Bytecode();
+        for (int x : xs)
+            bc.addConstant(x);
+        return bc.getBytes();
+    }
+
+    @Test
+    public void commandsAndRepliesAreFramed() throws IOException {
+        try (WifiConnection.TcpChannel ch = connection(SERIAL, TIMEOUT_MS, brick.getBeaconPort()).connect()) {
+            ch.send(new Command(1, true, 0, 3, bytecode(7, 8, 9)));
+            ch.send(Arrays.asList(new Command(2, false, 0, 0, bytecode(1)), new Command(0x1234, true, 0, 4, bytecode(1000))));
+            Reply r = ch.receive();
+            assertEquals(1, r.getCounter());
+            assertFalse(r.isError());
+            assertArrayEquals(bytecode(7, 8, 9), r.getData());
+            r.release();
+            r = ch.receive();
+            assertEquals(0x1234, r.getCounter());
+            // 1000 is encoded as LC2 in 3 bytes, then padded to the reservation
+            assertArrayEquals(new byte[]{(byte) 0x82, (byte) 0xE8, 0x03, 0}, r.getData());
+            r.release();
+            assertEquals(3, brick.getCommands().size());
+            assertArrayEquals(new Command(2, false, 0, 0, bytecode(1)).marshal(), brick.getCommands().get(1));
+        }
+    }
+
+    @Test
+    public void closedBrickEndsTheStream() throws IOException {
+        try (WifiConnection.TcpChannel ch = connection(SERIAL, TIMEOUT_MS, brick.getBeaconPort()).connect()) {
+            brick.close();
+            try {
+                ch.receive();
+                fail("reply received from a closed brick");
+            } catch (EOFException ignored) {
+            }
+        }
+    }
+
+    @Test
+    public void brickNotWokenUpDoesNotAnswer() throws IOException {
+        try {
+            connection(SERIAL, 300, WifiConnection.NO_BEACON_PORT).connect().close();
+            fail("connected to a brick that has not been woken up");
+        } catch (SocketTimeoutException ignored) {
+        }
+    }
+
+    @Test
+    public void wrongSerialNumberIsRejected() {
+        try {
+            connection("000000000000", TIMEOUT_MS, brick.getBeaconPort()).connect().close();
+            fail("handshake accepted with a wrong serial number");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("rejected"));
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package it.unive.dais.legodroid.lib.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PromiseTest {
+
+    @Test
+    public void cancellingTheDerivedPromiseCancelsTheSource() {
+        Promise<Integer> src = new Promise<>();
+        Promise<Integer> d = src.thenApply(x -> x + 1).thenApply(x -> x * 2);
+        assertTrue(d.cancel(true));
+        assertTrue(src.isCancelled());
+    }
+
+    @Test
+    public void cancellingTheSourceCancelsTheDerivedPromise() {
+        Promise<Integer> src = new Promise<>();
+        Promise<Integer> d = src.thenApply(x -> x + 1);
+        assertTrue(src.cancel(true));
+        assertTrue(d.isCancelled());
+        assertTrue(d.getFailure() instanceof CancellationException);
+    }
+
+    @Test
+    public void cancellingADoneDerivedPromiseLeavesTheSourceAlone() {
+        Promise<Integer> src = new Promise<>();
+        Promise<Integer> d = src.thenApply(x -> x + 1);
+        src.complete(1);
+        assertEquals(Integer.valueOf(2), d.getNow(null));
+        assertFalse(d.cancel(true));
+        assertFalse(src.isCancelled());
+    }
+
+    @Test
+    public void exceptionsThrownByTheFunctionFailTheDerivedPromise() {
+        final IllegalStateException e = new IllegalStateException();
+        Promise<Integer> src = new Promise<>();
+        Promise<Integer> d = src.thenApply(x -> {
+            throw e;
+        });
+        src.complete(1);
+        assertEquals(e, d.getFailure());
+        assertFalse(src.isFailed());
+    }
+}